@@ -0,0 +1,86 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * A bounded pool of empty aggregated records for a {@link RecordAggregator}
+ * that recycles its records. Records are taken from the pool by the
+ * aggregator's thread and returned to it by whichever thread releases them
+ * last, so their buffers, key tables and digests are reused instead of being
+ * rebuilt for every aggregated record. Records released while the pool is full
+ * are left to the garbage collector.
+ *
+ * This class is thread-safe.
+ */
+@ThreadSafe
+class AggRecordPool {
+	/** The explicit hash key cache given to every record this pool creates. */
+	private final ExplicitHashKeyCache explicitHashKeyCache;
+	/** The compression setting given to every record this pool creates. */
+	private final RecordCompression compression;
+	/** The empty records available for reuse. */
+	private final BlockingQueue<AggRecord> records;
+
+	/**
+	 * Create a new empty pool.
+	 *
+	 * @param explicitHashKeyCache The cache to give to new records, or null.
+	 * @param compression          The compression setting to give to new
+	 *                             records, or null.
+	 * @param maxSize              The maximum number of empty records to retain.
+	 */
+	AggRecordPool(ExplicitHashKeyCache explicitHashKeyCache, RecordCompression compression, int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1, got " + maxSize);
+		}
+
+		this.explicitHashKeyCache = explicitHashKeyCache;
+		this.compression = compression;
+		this.records = new ArrayBlockingQueue<>(maxSize);
+	}
+
+	/**
+	 * @return An empty record, reused from the pool if one is available.
+	 */
+	AggRecord acquire() {
+		AggRecord record = this.records.poll();
+		return record != null ? record : new AggRecord(this.explicitHashKeyCache, this.compression, this);
+	}
+
+	/**
+	 * Empty a released record and return it to the pool if there is room.
+	 *
+	 * @param record A record created by this pool that every holder has released.
+	 */
+	void recycle(AggRecord record) {
+		record.recycle();
+		this.records.offer(record);
+	}
+
+	/**
+	 * @return The number of empty records currently available for reuse.
+	 */
+	int size() {
+		return this.records.size();
+	}
+}
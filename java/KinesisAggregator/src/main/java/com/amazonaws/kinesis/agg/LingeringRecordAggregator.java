@@ -0,0 +1,274 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * A record aggregator that bounds how long user records wait to be sent. When
+ * the first user record is added to an empty aggregated record, a deadline is
+ * set at the maximum linger time; if the record has not filled up by then, it
+ * is completed anyway and handed to the listeners registered with
+ * onRecordComplete, just like a full record. Busy streams fill their records
+ * long before the deadline and are unaffected, while quiet streams no longer
+ * depend on someone calling clearAndGet. Records completed at their deadline
+ * have no caller to be returned to, so a listener must be registered before
+ * user records are added.
+ *
+ * An optional minimum fill trades some of that latency bound back for
+ * efficiency: a record that is still smaller than the minimum fill at its
+ * deadline keeps waiting, and is completed as soon as a user record takes it
+ * over the minimum fill.
+ *
+ * Deadlines are tracked on a scheduler thread, so unlike RecordAggregator
+ * this class is thread-safe: every method synchronizes on the aggregator.
+ */
+@ThreadSafe
+public class LingeringRecordAggregator extends RecordAggregator {
+	/** The longest a user record waits before its aggregated record is completed. */
+	private final long maxLingerNanos;
+	/** The size an aggregated record must reach before its deadline applies. */
+	private final long minFillBytes;
+	/** The scheduler that deadlines are tracked on. */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Incremented every time the current aggregated record is completed or
+	 * cleared, so that a deadline can tell whether its record is still current.
+	 */
+	private long generation;
+	/** The deadline of the current aggregated record, or null if it is empty. */
+	private ScheduledFuture<?> deadline;
+	/** True if the deadline of the current aggregated record has passed. */
+	private boolean overdue;
+
+	/**
+	 * Construct a new empty record aggregator that completes its aggregated
+	 * records after at most the given linger time.
+	 * 
+	 * @param maxLinger The longest a user record waits before its aggregated
+	 *                  record is completed.
+	 * @param unit      The unit of the linger time.
+	 */
+	public LingeringRecordAggregator(long maxLinger, TimeUnit unit) {
+		this(null, 0, maxLinger, unit, 0, null);
+	}
+
+	/**
+	 * Construct a new empty record aggregator that completes its aggregated
+	 * records after at most the given linger time, once they hold at least the
+	 * minimum fill.
+	 * 
+	 * @param explicitHashKeyCache The cache to share, or null to disable caching.
+	 * @param maxPooledRecords     The maximum number of released records to keep
+	 *                             for reuse, or 0 to disable recycling.
+	 * @param maxLinger            The longest a user record waits before its
+	 *                             aggregated record is completed.
+	 * @param unit                 The unit of the linger time.
+	 * @param minFillBytes         The size in bytes an aggregated record must
+	 *                             reach before it is completed at its deadline,
+	 *                             or 0 to always complete it.
+	 * @param scheduler            The scheduler to track deadlines on, or null
+	 *                             to use a shared daemon thread. Expired records
+	 *                             are completed on the common ForkJoin pool.
+	 */
+	public LingeringRecordAggregator(ExplicitHashKeyCache explicitHashKeyCache, int maxPooledRecords, long maxLinger,
+			TimeUnit unit, long minFillBytes, ScheduledExecutorService scheduler) {
+		this(explicitHashKeyCache, maxPooledRecords, null, maxLinger, unit, minFillBytes, scheduler);
+	}
+
+	/**
+	 * Construct a new empty record aggregator that completes its aggregated
+	 * records after at most the given linger time, once they hold at least the
+	 * minimum fill, and counts them against an in-flight byte budget. Records
+	 * completed at their deadline count against the budget without waiting.
+	 * 
+	 * @param explicitHashKeyCache The cache to share, or null to disable caching.
+	 * @param maxPooledRecords     The maximum number of released records to keep
+	 *                             for reuse, or 0 to disable recycling.
+	 * @param inFlightByteBudget   The budget to count completed records against,
+	 *                             or null for no limit.
+	 * @param maxLinger            The longest a user record waits before its
+	 *                             aggregated record is completed.
+	 * @param unit                 The unit of the linger time.
+	 * @param minFillBytes         The size in bytes an aggregated record must
+	 *                             reach before it is completed at its deadline,
+	 *                             or 0 to always complete it.
+	 * @param scheduler            The scheduler to track deadlines on, or null
+	 *                             to use a shared daemon thread. Expired records
+	 *                             are completed on the common ForkJoin pool.
+	 */
+	public LingeringRecordAggregator(ExplicitHashKeyCache explicitHashKeyCache, int maxPooledRecords,
+			InFlightByteBudget inFlightByteBudget, long maxLinger, TimeUnit unit, long minFillBytes,
+			ScheduledExecutorService scheduler) {
+		super(explicitHashKeyCache, maxPooledRecords, inFlightByteBudget);
+		if (maxLinger <= 0) {
+			throw new IllegalArgumentException("Maximum linger time must be positive, got " + maxLinger);
+		}
+		if (minFillBytes < 0) {
+			throw new IllegalArgumentException("Minimum fill cannot be negative, got " + minFillBytes);
+		}
+
+		this.maxLingerNanos = unit.toNanos(maxLinger);
+		this.minFillBytes = minFillBytes;
+		this.scheduler = scheduler != null ? scheduler : SharedScheduler.get();
+		this.generation = 0;
+		this.deadline = null;
+		this.overdue = false;
+	}
+
+	/**
+	 * @param unit The unit to return the linger time in.
+	 * @return The longest a user record waits before its aggregated record is
+	 *         completed.
+	 */
+	public long getMaxLinger(TimeUnit unit) {
+		return unit.convert(this.maxLingerNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return The size in bytes an aggregated record must reach before it is
+	 *         completed at its deadline.
+	 */
+	public long getMinFillBytes() {
+		return this.minFillBytes;
+	}
+
+	@Override
+	public synchronized int getNumUserRecords() {
+		return super.getNumUserRecords();
+	}
+
+	@Override
+	public synchronized long getSizeBytes() {
+		return super.getSizeBytes();
+	}
+
+	@Override
+	public synchronized void clearRecord() {
+		super.clearRecord();
+		resetDeadline();
+	}
+
+	@Override
+	public synchronized void clearListeners() {
+		super.clearListeners();
+	}
+
+	@Override
+	public synchronized void onRecordComplete(RecordCompleteListener listener, Executor executor) {
+		super.onRecordComplete(listener, executor);
+	}
+
+	@Override
+	public synchronized AggRecord clearAndGet() {
+		return super.clearAndGet();
+	}
+
+	@Override
+	public synchronized AggRecord flush() {
+		return super.flush();
+	}
+
+	@Override
+	public synchronized AggRecord addUserRecord(String partitionKey, String explicitHashKey, byte[] data)
+			throws Exception {
+		requireListener();
+		AggRecord completeRecord = super.addUserRecord(partitionKey, explicitHashKey, data);
+		userRecordAdded();
+		return completeRecord;
+	}
+
+	@Override
+	public synchronized AggRecord addUserRecord(byte[] partitionKey, byte[] explicitHashKey, byte[] data)
+			throws Exception {
+		requireListener();
+		AggRecord completeRecord = super.addUserRecord(partitionKey, explicitHashKey, data);
+		userRecordAdded();
+		return completeRecord;
+	}
+
+	/**
+	 * Reject user records while no listener would receive the records completed
+	 * at their deadlines.
+	 */
+	private void requireListener() {
+		if (!super.hasListeners()) {
+			throw new IllegalStateException(
+					"Register a listener with onRecordComplete before adding user records to a LingeringRecordAggregator");
+		}
+	}
+
+	/**
+	 * Set the deadline of a newly started aggregated record, or complete an
+	 * overdue one that has reached the minimum fill. Must be called while
+	 * holding this object's lock.
+	 */
+	private void userRecordAdded() {
+		if (this.deadline == null) {
+			long expected = this.generation;
+			this.deadline = this.scheduler.schedule(() -> {
+				try {
+					ForkJoinPool.commonPool().execute(() -> deadlinePassed(expected));
+				} catch (RejectedExecutionException e) {
+					deadlinePassed(expected);
+				}
+			}, this.maxLingerNanos, TimeUnit.NANOSECONDS);
+		} else if (this.overdue && super.getSizeBytes() >= this.minFillBytes) {
+			super.flush();
+		}
+	}
+
+	/**
+	 * Complete an overdue record if a listener will receive it. If the listeners
+	 * were cleared since the record was started, it is left for clearAndGet.
+	 */
+	private synchronized void deadlinePassed(long expected) {
+		if (expected != this.generation) {
+			// the record was completed or cleared before its deadline
+			return;
+		}
+
+		if (super.hasListeners() && super.getSizeBytes() >= this.minFillBytes) {
+			super.flush();
+		} else {
+			this.overdue = true;
+		}
+	}
+
+	/**
+	 * Forget the deadline of the current aggregated record when it has been
+	 * completed or cleared. Every path that replaces the current record goes
+	 * through clearRecord, so this is called from there.
+	 */
+	private void resetDeadline() {
+		this.generation++;
+		this.overdue = false;
+		if (this.deadline != null) {
+			this.deadline.cancel(false);
+			this.deadline = null;
+		}
+	}
+}
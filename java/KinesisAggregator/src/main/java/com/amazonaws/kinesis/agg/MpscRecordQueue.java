@@ -0,0 +1,178 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * A bounded, lock-free queue of user records with any number of producers and
+ * a single consumer. Every slot holds a preallocated entry that producers fill
+ * in place, so neither offering nor polling allocates.
+ *
+ * Each slot has a sequence number that tells producers and the consumer whose
+ * turn it is: a producer may claim position p when its slot's sequence is p,
+ * and publishes the filled entry by setting the sequence to p + 1; the
+ * consumer takes the entry at p once the sequence is p + 1 and hands the slot
+ * back by setting it to p + capacity.
+ *
+ * Only one thread may call {@link #poll(Consumer)}.
+ *
+ * @see <a href=
+ *      "https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue">https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue</a>
+ */
+@ThreadSafe
+class MpscRecordQueue {
+	/** A user record, or a request to flush, waiting in the queue. */
+	static final class Entry {
+		/** True if this entry is a request to flush rather than a user record. */
+		boolean flush;
+		String partitionKey;
+		String explicitHashKey;
+		byte[] partitionKeyBytes;
+		byte[] explicitHashKeyBytes;
+		byte[] data;
+
+		private void clear() {
+			this.flush = false;
+			this.partitionKey = null;
+			this.explicitHashKey = null;
+			this.partitionKeyBytes = null;
+			this.explicitHashKeyBytes = null;
+			this.data = null;
+		}
+	}
+
+	/** Receives the entries taken from the queue. */
+	interface Consumer {
+		void accept(Entry entry) throws Exception;
+	}
+
+	private final int mask;
+	private final Entry[] entries;
+	private final AtomicLongArray sequences;
+	/** The next position producers will claim. */
+	private final AtomicLong tail;
+	/** The next position the consumer will take. Only read by the consumer. */
+	private long head;
+
+	/**
+	 * Create a new empty queue.
+	 *
+	 * @param capacity The maximum number of entries, rounded up to a power of
+	 *                 two of at least 2.
+	 */
+	MpscRecordQueue(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Queue capacity must be between 1 and 2^30, got " + capacity);
+		}
+
+		// a single slot can't tell a full queue from an empty one
+		int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+		this.mask = size - 1;
+		this.entries = new Entry[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			this.entries[i] = new Entry();
+			this.sequences.set(i, i);
+		}
+		this.tail = new AtomicLong();
+		this.head = 0;
+	}
+
+	/**
+	 * @return The number of entries this queue can hold.
+	 */
+	int capacity() {
+		return this.entries.length;
+	}
+
+	/**
+	 * Add a user record, or a request to flush if every key and the data are
+	 * null, to the tail of the queue.
+	 *
+	 * @return True if the entry was added, false if the queue is full.
+	 */
+	boolean offer(String partitionKey, String explicitHashKey, byte[] partitionKeyBytes, byte[] explicitHashKeyBytes,
+			byte[] data) {
+		long position = this.tail.get();
+		int index;
+		while (true) {
+			index = (int) position & this.mask;
+			long difference = this.sequences.get(index) - position;
+			if (difference == 0) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = this.tail.get();
+			} else if (difference < 0) {
+				// the consumer has not yet taken the entry a full lap behind
+				return false;
+			} else {
+				// another producer claimed this position first
+				position = this.tail.get();
+			}
+		}
+
+		Entry entry = this.entries[index];
+		entry.flush = partitionKey == null && partitionKeyBytes == null;
+		entry.partitionKey = partitionKey;
+		entry.explicitHashKey = explicitHashKey;
+		entry.partitionKeyBytes = partitionKeyBytes;
+		entry.explicitHashKeyBytes = explicitHashKeyBytes;
+		entry.data = data;
+		// a volatile write, so that the consumer can check whether it needs
+		// waking after publishing its intent to sleep
+		this.sequences.set(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * Take the entry at the head of the queue, if there is one, and pass it to
+	 * the consumer. The entry is only valid during the call.
+	 *
+	 * @return True if an entry was taken, false if the queue is empty.
+	 * @throws Exception If the consumer throws. The entry is still removed.
+	 */
+	boolean poll(Consumer consumer) throws Exception {
+		int index = (int) this.head & this.mask;
+		if (this.sequences.get(index) != this.head + 1) {
+			return false;
+		}
+
+		Entry entry = this.entries[index];
+		try {
+			consumer.accept(entry);
+		} finally {
+			entry.clear();
+			this.sequences.lazySet(index, this.head + this.entries.length);
+			this.head++;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if the queue has no entry ready for the consumer. Only
+	 *         meaningful when called by the consumer.
+	 */
+	boolean isEmpty() {
+		return this.sequences.get((int) this.head & this.mask) != this.head + 1;
+	}
+}
@@ -0,0 +1,807 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Sends completed aggregated records to Kinesis in PutRecords requests that are
+ * filled up to the API limits of 500 entries and 5 MB, instead of making one
+ * request per aggregated record. Register it as the listener of one or more
+ * record aggregators (or pass it records directly with {@link #send(AggRecord)})
+ * and it batches the records, sends each full batch with at most a fixed number
+ * of requests in flight, and reports the outcome of every aggregated record to
+ * its send listeners.
+ *
+ * With a {@link PutRecordsRetryPolicy}, entries that fail are resubmitted on
+ * their own after a backoff rather than with the rest of their request. Each
+ * record has an ordering key, which must be given when retrying, usually its
+ * shard from {@link #shardOrderingKey(List)}; while a record waits to be
+ * retried, records with the same key that are still waiting in the current
+ * batch or in a batch queued for a request permit, or sent to this sender
+ * later, are held back behind it, and they are all resubmitted in the order
+ * they were sent. That is the only order kept: records with the same key that
+ * were in flight in other requests when the record failed, and entries of the
+ * same request that succeeded, are written before its retry.
+ * Applications that need strict per-shard order across retries must not have
+ * a second record for a shard outstanding until the first has been reported.
+ *
+ * Only failures that can go away on their own are retried: throttling, server
+ * errors and errors reaching the service. Errors such as a missing stream, an
+ * invalid request, denied access or an unusable KMS key are reported straight
+ * away, whether they fail a whole request or a single entry, as are exceptions
+ * that do not come from the SDK, which are bugs rather than failures.
+ *
+ * Once a record's final outcome has been reported, the record is released (see
+ * {@link AggRecord#release()}), so this sender can be used with aggregators
+ * that recycle their records as long as it is their only listener.
+ *
+ * This class is thread-safe.
+ *
+ * @see <a href=
+ *      "https://docs.aws.amazon.com/kinesis/latest/APIReference/API_PutRecords.html">https://docs.aws.amazon.com/kinesis/latest/APIReference/API_PutRecords.html</a>
+ */
+@ThreadSafe
+public class PutRecordsSender implements RecordCompleteListener {
+	/**
+	 * A listener interface for receiving the outcome of every aggregated record
+	 * sent by a {@link PutRecordsSender}.
+	 */
+	public interface SendListener {
+		/**
+		 * Called when an aggregated record has been written to the stream.
+		 * 
+		 * @param aggRecord The aggregated record that was sent.
+		 * @param result    The result entry for the record, including the shard it
+		 *                  was written to and its sequence number.
+		 */
+		public abstract void recordSent(AggRecord aggRecord, PutRecordsResultEntry result);
+
+		/**
+		 * Called when an aggregated record could not be written to the stream and
+		 * will not be retried, either because Kinesis rejected its entry or
+		 * because the whole request failed.
+		 * 
+		 * @param aggRecord    The aggregated record that failed.
+		 * @param errorCode    The error code of the entry, or the name of the
+		 *                     exception that failed the request.
+		 * @param errorMessage The error message of the entry or the exception.
+		 * @param cause        The exception that failed the whole request, or null
+		 *                     if only this entry was rejected.
+		 */
+		public abstract void recordFailed(AggRecord aggRecord, String errorCode, String errorMessage, Throwable cause);
+	}
+
+	// Kinesis Limits
+	// (https://docs.aws.amazon.com/kinesis/latest/APIReference/API_PutRecords.html)
+	public static final int MAX_RECORDS_PER_REQUEST = 500;
+	public static final int MAX_BYTES_PER_REQUEST = 5 * 1024 * 1024; // 5 MB
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+	/**
+	 * The error codes of failed requests and entries that are worth retrying,
+	 * besides server errors.
+	 */
+	private static final Set<String> RETRYABLE_ERROR_CODES = Collections.unmodifiableSet(new HashSet<>(
+			Arrays.asList("ProvisionedThroughputExceededException", "ThrottlingException", "LimitExceededException",
+					"KMSThrottlingException", "InternalFailure", "ServiceUnavailable")));
+
+	/** The client used to send requests. */
+	private final AmazonKinesis kinesisClient;
+	/** The stream that records are sent to. */
+	private final String streamName;
+	/** The executor that requests and retries are sent on. */
+	private final Executor executor;
+	/** The maximum number of requests in flight at once. */
+	private final int maxConcurrentRequests;
+	/** The listeners to notify of the outcome of each record. */
+	private final List<SendListener> listeners;
+	/** How failed entries are retried. */
+	private final PutRecordsRetryPolicy retryPolicy;
+	/** The function giving the ordering key of each record. */
+	private final Function<AggRecord, String> orderingKey;
+
+	/** The records waiting for the current batch to fill up. */
+	private List<PendingRecord> batch;
+	/** The PutRecords size of the records in the current batch. */
+	private long batchBytes;
+	/** The number of requests that have been started but not completed. */
+	private int inFlightRequests;
+	/** The number of requests that can be started before the limit is reached. */
+	private int availablePermits;
+	/** The batches waiting for a request to finish before they are sent. */
+	private final Deque<List<PendingRecord>> waitingBatches;
+	/** The number of records sent to this sender so far. */
+	private long sequence;
+	/**
+	 * The records waiting to be retried, and the records held back behind them,
+	 * by ordering key.
+	 */
+	private final Map<String, PriorityQueue<PendingRecord>> heldRecords;
+	/** The number of records in heldRecords. */
+	private int heldRecordCount;
+	/** The number of retries that can be made before the budget is exhausted. */
+	private int retryTokens;
+
+	/** The number of entries that have been resubmitted. */
+	private final AtomicLong retryCount;
+	/** The number of records that failed because the retry budget was empty. */
+	private final AtomicLong budgetExhaustedCount;
+	/** The number of records that failed after their last allowed attempt. */
+	private final AtomicLong attemptsExhaustedCount;
+
+	/**
+	 * Construct a new sender that sends requests on the common ForkJoin pool with
+	 * up to {@value #DEFAULT_MAX_CONCURRENT_REQUESTS} requests in flight and does
+	 * not retry failed entries.
+	 * 
+	 * @param kinesisClient The client to send requests with.
+	 * @param streamName    The stream to send records to.
+	 */
+	public PutRecordsSender(AmazonKinesis kinesisClient, String streamName) {
+		this(kinesisClient, streamName, DEFAULT_MAX_CONCURRENT_REQUESTS, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Construct a new sender that does not retry failed entries.
+	 * 
+	 * @param kinesisClient         The client to send requests with.
+	 * @param streamName            The stream to send records to.
+	 * @param maxConcurrentRequests The maximum number of requests in flight at
+	 *                              once. Once it is reached, completed batches
+	 *                              wait in a queue until a request finishes;
+	 *                              use an {@link InFlightByteBudget} to bound
+	 *                              how many records can pile up.
+	 * @param executor              The executor to send requests on.
+	 */
+	public PutRecordsSender(AmazonKinesis kinesisClient, String streamName, int maxConcurrentRequests,
+			Executor executor) {
+		this(kinesisClient, streamName, maxConcurrentRequests, executor, PutRecordsRetryPolicy.NONE, null);
+	}
+
+	/**
+	 * Construct a new sender.
+	 * 
+	 * @param kinesisClient         The client to send requests with.
+	 * @param streamName            The stream to send records to.
+	 * @param maxConcurrentRequests The maximum number of requests in flight at
+	 *                              once. Once it is reached, completed batches
+	 *                              wait in a queue until a request finishes;
+	 *                              use an {@link InFlightByteBudget} to bound
+	 *                              how many records can pile up.
+	 * @param executor              The executor to send requests and retries on.
+	 * @param retryPolicy           How failed entries are retried.
+	 * @param orderingKey           The function giving the ordering key of each
+	 *                              record, such as
+	 *                              {@link #shardOrderingKey(List)}. Only null if
+	 *                              the retry policy never retries.
+	 * @throws IllegalArgumentException If the retry policy retries and there is
+	 *                                  no ordering key.
+	 */
+	public PutRecordsSender(AmazonKinesis kinesisClient, String streamName, int maxConcurrentRequests,
+			Executor executor, PutRecordsRetryPolicy retryPolicy, Function<AggRecord, String> orderingKey) {
+		if (kinesisClient == null || streamName == null || executor == null || retryPolicy == null) {
+			throw new IllegalArgumentException("Kinesis client, stream name, executor and retry policy cannot be null");
+		}
+		if (orderingKey == null && retryPolicy.getMaxAttempts() > 1) {
+			throw new IllegalArgumentException("An ordering key is required to retry failed entries");
+		}
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException(
+					"Maximum concurrent requests must be at least 1, got " + maxConcurrentRequests);
+		}
+
+		this.kinesisClient = kinesisClient;
+		this.streamName = streamName;
+		this.executor = executor;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.listeners = new CopyOnWriteArrayList<>();
+		this.retryPolicy = retryPolicy;
+		// without retries nothing is ever held back, so every record can share a key
+		this.orderingKey = orderingKey != null ? orderingKey : aggRecord -> "";
+		this.batch = new ArrayList<>();
+		this.batchBytes = 0;
+		this.inFlightRequests = 0;
+		this.availablePermits = maxConcurrentRequests;
+		this.waitingBatches = new ArrayDeque<>();
+		this.sequence = 0;
+		this.heldRecords = new HashMap<>();
+		this.heldRecordCount = 0;
+		this.retryTokens = retryPolicy.getRetryBudget();
+		this.retryCount = new AtomicLong();
+		this.budgetExhaustedCount = new AtomicLong();
+		this.attemptsExhaustedCount = new AtomicLong();
+	}
+
+	/**
+	 * Create an ordering key that orders aggregated records by the shard they
+	 * are written to: the open shard whose hash key range contains the explicit
+	 * hash key of the record. Aggregated records for the same shard get the
+	 * same key even when their first user records have different explicit hash
+	 * keys.
+	 * 
+	 * @param shards The shards of the stream, e.g. from ListShards. Closed
+	 *               shards are ignored.
+	 * @return The ordering key function. Records outside every open shard, e.g.
+	 *         after a reshard, are keyed by their explicit hash key.
+	 * @throws IllegalArgumentException If there are no open shards or their hash
+	 *                                  key ranges overlap.
+	 */
+	public static Function<AggRecord, String> shardOrderingKey(List<Shard> shards) {
+		ShardMap shardMap = ShardMap.of(shards);
+		return aggRecord -> {
+			String explicitHashKey = aggRecord.getExplicitHashKey();
+			HashKey hashKey = HashKey.parse(explicitHashKey);
+			int shard = shardMap.find(hashKey.getHighBits(), hashKey.getLowBits());
+			return shard < 0 ? explicitHashKey : shardMap.getShardId(shard);
+		};
+	}
+
+	/**
+	 * @return The stream that records are sent to.
+	 */
+	public String getStreamName() {
+		return this.streamName;
+	}
+
+	/**
+	 * @return The maximum number of requests in flight at once.
+	 */
+	public int getMaxConcurrentRequests() {
+		return this.maxConcurrentRequests;
+	}
+
+	/**
+	 * @return How failed entries are retried.
+	 */
+	public PutRecordsRetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	/**
+	 * Register a listener to be notified of the outcome of every record. Listeners
+	 * are called on the thread that completed the request.
+	 * 
+	 * @param listener The listener to notify.
+	 */
+	public void onSendComplete(SendListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Clear all the listeners registered with the onSendComplete method.
+	 */
+	public void clearListeners() {
+		this.listeners.clear();
+	}
+
+	/**
+	 * @return The number of records waiting for the current batch to fill up.
+	 */
+	public synchronized int getPendingRecordCount() {
+		return this.batch.size();
+	}
+
+	/**
+	 * @return The number of records waiting to be retried or held back behind a
+	 *         record that is.
+	 */
+	public synchronized int getHeldRecordCount() {
+		return this.heldRecordCount;
+	}
+
+	/**
+	 * @return The number of requests that have been started but not completed.
+	 */
+	public synchronized int getInFlightRequestCount() {
+		return this.inFlightRequests;
+	}
+
+	/**
+	 * @return The number of retries that can currently be made before the retry
+	 *         budget is exhausted.
+	 */
+	public synchronized int getRetryTokens() {
+		return this.retryTokens;
+	}
+
+	/**
+	 * @return The number of failed entries that have been resubmitted.
+	 */
+	public long getRetryCount() {
+		return this.retryCount.get();
+	}
+
+	/**
+	 * @return The number of records reported as failed because the retry budget
+	 *         was exhausted.
+	 */
+	public long getBudgetExhaustedCount() {
+		return this.budgetExhaustedCount.get();
+	}
+
+	/**
+	 * @return The number of records reported as failed after their last allowed
+	 *         attempt.
+	 */
+	public long getAttemptsExhaustedCount() {
+		return this.attemptsExhaustedCount.get();
+	}
+
+	/**
+	 * Queue a completed aggregated record from a record aggregator for sending.
+	 */
+	@Override
+	public void recordComplete(AggRecord aggRecord) {
+		send(aggRecord);
+	}
+
+	/**
+	 * Add an aggregated record to the current batch, sending the batch first if
+	 * the record would take it over the PutRecords limits. A batch that reaches
+	 * {@value #MAX_RECORDS_PER_REQUEST} records is sent immediately; otherwise
+	 * it is sent when it is full or {@link #flush()} is called. If an earlier
+	 * record with the same ordering key is waiting to be retried, the record is
+	 * held back until then. Records with that key already in flight in other
+	 * requests are not, so they may be written before the retried record.
+	 * 
+	 * @param aggRecord The aggregated record to send. Empty records are released
+	 *                  without being sent.
+	 */
+	public void send(AggRecord aggRecord) {
+		if (aggRecord == null) {
+			return;
+		}
+		if (aggRecord.getNumUserRecords() == 0) {
+			// nothing to send, but this listener still holds the record
+			aggRecord.release();
+			return;
+		}
+
+		String key = this.orderingKey.apply(aggRecord);
+		long entryBytes = getEntrySize(aggRecord);
+		List<List<PendingRecord>> full = new ArrayList<>(2);
+		synchronized (this) {
+			PendingRecord record = new PendingRecord(aggRecord, key, entryBytes, this.sequence++);
+			PriorityQueue<PendingRecord> held = this.heldRecords.get(key);
+			if (held != null) {
+				held.add(record);
+				this.heldRecordCount++;
+			} else {
+				addToBatch(record, full);
+			}
+		}
+
+		for (List<PendingRecord> records : full) {
+			sendBatch(records);
+		}
+	}
+
+	/**
+	 * Send the current batch now, however full it is.
+	 */
+	public void flush() {
+		List<PendingRecord> records;
+		synchronized (this) {
+			records = this.batch.isEmpty() ? null : takeBatch();
+		}
+		sendBatch(records);
+	}
+
+	/**
+	 * Wait until every request that has been started has completed and every
+	 * record waiting to be retried has been reported. Records still waiting in
+	 * the current batch are not sent; call {@link #flush()} first to send them.
+	 * 
+	 * @param timeout The maximum time to wait.
+	 * @param unit    The unit of the timeout.
+	 * @return True if all requests completed, false if the timeout elapsed first.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public synchronized boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (this.inFlightRequests > 0 || this.heldRecordCount > 0) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Calculate how much an aggregated record counts towards the PutRecords
+	 * request size limit, which includes the partition key of each entry.
+	 */
+	static long getEntrySize(AggRecord aggRecord) {
+		return aggRecord.getSizeBytes() + aggRecord.getPartitionKey().getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	/**
+	 * Add a record to the current batch, moving any batches that fill up to the
+	 * list of batches to send. Must be called while holding this object's lock.
+	 */
+	private void addToBatch(PendingRecord record, List<List<PendingRecord>> full) {
+		if (!this.batch.isEmpty() && this.batchBytes + record.entryBytes > MAX_BYTES_PER_REQUEST) {
+			full.add(takeBatch());
+		}
+		this.batch.add(record);
+		this.batchBytes += record.entryBytes;
+		if (this.batch.size() == MAX_RECORDS_PER_REQUEST) {
+			full.add(takeBatch());
+		}
+	}
+
+	private List<PendingRecord> takeBatch() {
+		List<PendingRecord> records = this.batch;
+		this.batch = new ArrayList<>();
+		this.batchBytes = 0;
+		this.inFlightRequests++;
+		return records;
+	}
+
+	/**
+	 * Send a batch if another request can be started, or queue it until one
+	 * finishes. Never blocks, so it is safe to call from listeners and from the
+	 * executor's own threads.
+	 */
+	private void sendBatch(List<PendingRecord> records) {
+		if (records == null) {
+			return;
+		}
+
+		synchronized (this) {
+			if (this.availablePermits == 0) {
+				this.waitingBatches.add(records);
+				return;
+			}
+			this.availablePermits--;
+		}
+		startRequest(records);
+	}
+
+	/**
+	 * Start a request for a batch that holds a permit, and for every waiting
+	 * batch that inherits the permit if the executor rejects it.
+	 */
+	private void startRequest(List<PendingRecord> records) {
+		while (records != null) {
+			List<PendingRecord> batch = records;
+			try {
+				this.executor.execute(() -> {
+					try {
+						putRecords(batch);
+					} finally {
+						startRequest(completeRequest());
+					}
+				});
+				return;
+			} catch (RejectedExecutionException e) {
+				try {
+					recordsFailed(batch, e.getClass().getSimpleName(), e.getMessage(), e, false);
+				} catch (RuntimeException | Error t) {
+					startRequest(completeRequest());
+					throw t;
+				}
+				records = completeRequest();
+			}
+		}
+	}
+
+	private void putRecords(List<PendingRecord> records) {
+		List<PutRecordsRequestEntry> entries = new ArrayList<>(records.size());
+		for (PendingRecord record : records) {
+			entries.add(record.aggRecord.toPutRecordsRequestEntry());
+		}
+
+		PutRecordsResult result;
+		try {
+			result = this.kinesisClient
+					.putRecords(new PutRecordsRequest().withStreamName(this.streamName).withRecords(entries));
+		} catch (RuntimeException e) {
+			recordsFailed(records, e.getClass().getSimpleName(), e.getMessage(), e, isRetryable(e));
+			return;
+		}
+
+		List<PutRecordsResultEntry> resultEntries = result.getRecords();
+		List<PendingRecord> failed = new ArrayList<>();
+		for (int i = 0; i < records.size(); i++) {
+			PendingRecord record = records.get(i);
+			PutRecordsResultEntry entry = resultEntries.get(i);
+			if (entry.getErrorCode() == null) {
+				recordSent(record, entry);
+			} else {
+				record.errorCode = entry.getErrorCode();
+				record.errorMessage = entry.getErrorMessage();
+				if (RETRYABLE_ERROR_CODES.contains(record.errorCode)) {
+					failed.add(record);
+				} else {
+					reportFailure(record, null);
+				}
+			}
+		}
+
+		if (!failed.isEmpty()) {
+			retryOrFail(failed, null);
+		}
+	}
+
+	/**
+	 * @return Whether a request that failed with an exception is worth retrying.
+	 *         Errors returned by the service are only retried if they are server
+	 *         errors or throttling, and other client errors only if they come
+	 *         from the SDK, such as network errors and timeouts. Any other
+	 *         exception is a bug that retrying would not fix.
+	 */
+	private static boolean isRetryable(RuntimeException e) {
+		if (e instanceof AmazonServiceException) {
+			AmazonServiceException serviceException = (AmazonServiceException) e;
+			return serviceException.getStatusCode() >= 500 || serviceException.getStatusCode() == 429
+					|| RETRYABLE_ERROR_CODES.contains(serviceException.getErrorCode());
+		}
+		return e instanceof SdkClientException;
+	}
+
+	private void recordSent(PendingRecord record, PutRecordsResultEntry entry) {
+		synchronized (this) {
+			// every success earns back a token of the retry budget
+			if (this.retryTokens < this.retryPolicy.getRetryBudget()) {
+				this.retryTokens++;
+			}
+		}
+
+		try {
+			for (SendListener listener : this.listeners) {
+				listener.recordSent(record.aggRecord, entry);
+			}
+		} finally {
+			record.aggRecord.release();
+		}
+	}
+
+	private void recordsFailed(List<PendingRecord> records, String errorCode, String errorMessage, Throwable cause,
+			boolean retryable) {
+		for (PendingRecord record : records) {
+			record.errorCode = errorCode;
+			record.errorMessage = errorMessage;
+		}
+
+		if (retryable) {
+			retryOrFail(records, cause);
+		} else {
+			for (PendingRecord record : records) {
+				reportFailure(record, cause);
+			}
+		}
+	}
+
+	/**
+	 * Hold failed records back for a retry, or report them as failed if they have
+	 * no attempts left or the retry budget is empty.
+	 */
+	private void retryOrFail(List<PendingRecord> failed, Throwable cause) {
+		List<PendingRecord> givenUp = new ArrayList<>();
+		List<PendingRecord> newlyHeld = new ArrayList<>();
+		synchronized (this) {
+			for (PendingRecord record : failed) {
+				record.attempts++;
+				if (record.attempts >= this.retryPolicy.getMaxAttempts()) {
+					if (this.retryPolicy.getMaxAttempts() > 1) {
+						this.attemptsExhaustedCount.incrementAndGet();
+					}
+					givenUp.add(record);
+				} else if (this.retryTokens == 0) {
+					this.budgetExhaustedCount.incrementAndGet();
+					givenUp.add(record);
+				} else {
+					this.retryTokens--;
+					if (hold(record)) {
+						newlyHeld.add(record);
+					}
+				}
+			}
+		}
+
+		for (PendingRecord record : givenUp) {
+			reportFailure(record, cause);
+		}
+		for (PendingRecord record : newlyHeld) {
+			scheduleRetry(record.key, this.retryPolicy.backoffMillis(record.attempts));
+		}
+	}
+
+	/**
+	 * Hold a record back for a retry. The first record held for an ordering key
+	 * also holds back the records with that key still waiting in the current
+	 * batch or in a batch queued for a permit, since they were sent after it.
+	 * Queued batches left empty are dropped. Records in requests that have
+	 * already been started can no longer be held back. Must be called while
+	 * holding this object's lock.
+	 * 
+	 * @return True if the record's ordering key was not already held.
+	 */
+	private boolean hold(PendingRecord record) {
+		PriorityQueue<PendingRecord> held = this.heldRecords.get(record.key);
+		boolean newlyHeld = held == null;
+		if (newlyHeld) {
+			held = new PriorityQueue<>(Comparator.comparingLong((PendingRecord r) -> r.sequence));
+			this.heldRecords.put(record.key, held);
+
+			this.batchBytes -= holdLater(this.batch, record.key, held);
+			Iterator<List<PendingRecord>> queued = this.waitingBatches.iterator();
+			while (queued.hasNext()) {
+				List<PendingRecord> waiting = queued.next();
+				holdLater(waiting, record.key, held);
+				if (waiting.isEmpty()) {
+					// the batch was counted as in flight when it was taken
+					queued.remove();
+					this.inFlightRequests--;
+				}
+			}
+		}
+
+		held.add(record);
+		this.heldRecordCount++;
+		return newlyHeld;
+	}
+
+	/**
+	 * Move the records with an ordering key from a batch that hasn't been sent
+	 * yet to the records held for that key. Must be called while holding this
+	 * object's lock.
+	 * 
+	 * @return The PutRecords size of the records moved.
+	 */
+	private long holdLater(List<PendingRecord> records, String key, PriorityQueue<PendingRecord> held) {
+		long bytes = 0;
+		Iterator<PendingRecord> waiting = records.iterator();
+		while (waiting.hasNext()) {
+			PendingRecord later = waiting.next();
+			if (later.key.equals(key)) {
+				waiting.remove();
+				bytes += later.entryBytes;
+				held.add(later);
+				this.heldRecordCount++;
+			}
+		}
+		return bytes;
+	}
+
+	private void scheduleRetry(String key, long delayMillis) {
+		SharedScheduler.get().schedule(() -> {
+			try {
+				this.executor.execute(() -> resubmit(key));
+			} catch (RejectedExecutionException e) {
+				resubmit(key);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Move the records held for an ordering key back into batches, in the order
+	 * they were originally sent, and send them.
+	 */
+	private void resubmit(String key) {
+		List<List<PendingRecord>> full = new ArrayList<>();
+		synchronized (this) {
+			PriorityQueue<PendingRecord> held = this.heldRecords.remove(key);
+			if (held == null) {
+				return;
+			}
+
+			while (!held.isEmpty()) {
+				PendingRecord record = held.poll();
+				this.heldRecordCount--;
+				if (record.attempts > 0) {
+					this.retryCount.incrementAndGet();
+				}
+				addToBatch(record, full);
+			}
+			if (!this.batch.isEmpty()) {
+				full.add(takeBatch());
+			}
+			notifyAll();
+		}
+
+		for (List<PendingRecord> records : full) {
+			sendBatch(records);
+		}
+	}
+
+	private void reportFailure(PendingRecord record, Throwable cause) {
+		try {
+			for (SendListener listener : this.listeners) {
+				listener.recordFailed(record.aggRecord, record.errorCode, record.errorMessage, cause);
+			}
+		} finally {
+			record.aggRecord.release();
+		}
+	}
+
+	/**
+	 * Mark a request as completed and pass its permit on to the next waiting
+	 * batch, if there is one.
+	 * 
+	 * @return The batch to send with the permit, or null if the permit was
+	 *         returned.
+	 */
+	private synchronized List<PendingRecord> completeRequest() {
+		this.inFlightRequests--;
+		List<PendingRecord> next = this.waitingBatches.poll();
+		if (next == null) {
+			this.availablePermits++;
+		}
+		notifyAll();
+		return next;
+	}
+
+	/**
+	 * An aggregated record on its way through this sender.
+	 */
+	private static class PendingRecord {
+		private final AggRecord aggRecord;
+		private final String key;
+		private final long entryBytes;
+		/** The order in which the record was given to the sender. */
+		private final long sequence;
+		/** The number of times the record has been sent. */
+		private int attempts;
+		/** The error code and message of the record's last failed attempt. */
+		private String errorCode, errorMessage;
+
+		private PendingRecord(AggRecord aggRecord, String key, long entryBytes, long sequence) {
+			this.aggRecord = aggRecord;
+			this.key = key;
+			this.entryBytes = entryBytes;
+			this.sequence = sequence;
+			this.attempts = 0;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+/**
+ * A compression codec for the payload of aggregated records (see
+ * {@link RecordCompression}). The codec's ID is written into every compressed
+ * record so that deaggregators can pick the matching decompressor, so an ID
+ * must never be reused for a different algorithm. IDs 1 to 63 are reserved
+ * for the built-in codecs; custom codecs may use 64 to 255 and must be
+ * registered with the deaggregator as well.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface RecordCodec {
+	/** The gzip format (RFC 1952), as produced by GZIPOutputStream. */
+	public static final RecordCodec GZIP = new ZipRecordCodec(1, true);
+	/** The zlib deflate format (RFC 1950), as produced by Deflater. */
+	public static final RecordCodec DEFLATE = new ZipRecordCodec(2, false);
+	/**
+	 * The LZ4 block format, implemented in Java. It compresses less than the
+	 * deflate based codecs but many times faster.
+	 */
+	public static final RecordCodec LZ4 = new Lz4RecordCodec(3);
+
+	/**
+	 * @return The ID that identifies this codec in compressed records, between 1
+	 *         and 255.
+	 */
+	public int getId();
+
+	/**
+	 * Calculate the largest size the compressed form of any input of a given
+	 * length can have, used to keep compressed aggregated records within the
+	 * Kinesis record size limit.
+	 * 
+	 * @param length The length of the uncompressed input.
+	 * @return The maximum length of the compressed output.
+	 */
+	public int maxCompressedLength(int length);
+
+	/**
+	 * Compress a range of bytes.
+	 * 
+	 * @param src    The array holding the input.
+	 * @param offset The position of the first byte to compress.
+	 * @param length The number of bytes to compress.
+	 * @return The compressed bytes, at most
+	 *         {@link #maxCompressedLength(int)} long.
+	 */
+	public byte[] compress(byte[] src, int offset, int length);
+
+	/**
+	 * Decompress a range of bytes produced by {@link #compress(byte[], int, int)}.
+	 * 
+	 * @param src                The array holding the compressed input.
+	 * @param offset             The position of the first compressed byte.
+	 * @param length             The number of compressed bytes.
+	 * @param uncompressedLength The length of the original input.
+	 * @return The decompressed bytes.
+	 * @throws IllegalArgumentException If the input is not valid compressed data
+	 *                                  of the expected length.
+	 */
+	public byte[] decompress(byte[] src, int offset, int length, int uncompressedLength);
+}
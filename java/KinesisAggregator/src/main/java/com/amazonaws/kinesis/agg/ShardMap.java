@@ -0,0 +1,194 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.amazonaws.annotation.Immutable;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * The hash key ranges of the open shards of a stream, sorted so that the shard
+ * containing a hash key can be found with a binary search over primitive
+ * arrays.
+ */
+@Immutable
+final class ShardMap {
+	/** The IDs of the open shards, sorted by starting hash key. */
+	private final String[] shardIds;
+	/** The high and low bits of each shard's starting hash key. */
+	private final long[] startingHigh, startingLow;
+	/** The high and low bits of each shard's ending hash key. */
+	private final long[] endingHigh, endingLow;
+
+	private ShardMap(String[] shardIds, HashKey[] starting, HashKey[] ending) {
+		int count = shardIds.length;
+		this.shardIds = shardIds;
+		this.startingHigh = new long[count];
+		this.startingLow = new long[count];
+		this.endingHigh = new long[count];
+		this.endingLow = new long[count];
+		for (int i = 0; i < count; i++) {
+			this.startingHigh[i] = starting[i].getHighBits();
+			this.startingLow[i] = starting[i].getLowBits();
+			this.endingHigh[i] = ending[i].getHighBits();
+			this.endingLow[i] = ending[i].getLowBits();
+		}
+	}
+
+	/**
+	 * Build the map of the open shards in a shard list. Closed shards are
+	 * ignored.
+	 * 
+	 * @param shards The shards of the stream.
+	 * @return The map of the open shards.
+	 * @throws IllegalArgumentException If there are no open shards or the hash
+	 *                                  key ranges of open shards overlap.
+	 */
+	static ShardMap of(List<Shard> shards) {
+		if (shards == null) {
+			throw new IllegalArgumentException("Shards cannot be null");
+		}
+
+		List<Shard> openShards = new ArrayList<>(shards.size());
+		for (Shard shard : shards) {
+			if (shard.getSequenceNumberRange() == null
+					|| shard.getSequenceNumberRange().getEndingSequenceNumber() == null) {
+				openShards.add(shard);
+			}
+		}
+		if (openShards.isEmpty()) {
+			throw new IllegalArgumentException("At least one open shard is required");
+		}
+
+		int count = openShards.size();
+		HashKey[] starting = new HashKey[count];
+		HashKey[] ending = new HashKey[count];
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			Shard shard = openShards.get(i);
+			starting[i] = HashKey.parse(shard.getHashKeyRange().getStartingHashKey());
+			ending[i] = HashKey.parse(shard.getHashKeyRange().getEndingHashKey());
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparing(i -> starting[i]));
+
+		String[] sortedIds = new String[count];
+		HashKey[] sortedStarting = new HashKey[count];
+		HashKey[] sortedEnding = new HashKey[count];
+		for (int i = 0; i < count; i++) {
+			int shard = order[i];
+			if (i > 0 && starting[shard].compareTo(sortedEnding[i - 1]) <= 0) {
+				throw new IllegalArgumentException("The hash key ranges of open shards " + sortedIds[i - 1] + " and "
+						+ openShards.get(shard).getShardId() + " overlap");
+			}
+
+			sortedIds[i] = openShards.get(shard).getShardId();
+			sortedStarting[i] = starting[shard];
+			sortedEnding[i] = ending[shard];
+		}
+		return new ShardMap(sortedIds, sortedStarting, sortedEnding);
+	}
+
+	/**
+	 * Build a map that splits the hash key space into equal ranges, the way
+	 * Kinesis lays out the shards of a stream created with a given shard count
+	 * or uniformly rescaled to it. The ranges have no shard IDs.
+	 * 
+	 * @param count The number of ranges.
+	 * @return The map of the ranges.
+	 */
+	static ShardMap uniform(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("At least one hash key range is required, got " + count);
+		}
+
+		BigInteger space = BigInteger.ONE.shiftLeft(128);
+		BigInteger step = space.divide(BigInteger.valueOf(count));
+		HashKey[] starting = new HashKey[count];
+		HashKey[] ending = new HashKey[count];
+		for (int i = 0; i < count; i++) {
+			starting[i] = toHashKey(step.multiply(BigInteger.valueOf(i)));
+			ending[i] = i == count - 1 ? HashKey.MAX_VALUE
+					: toHashKey(step.multiply(BigInteger.valueOf(i + 1)).subtract(BigInteger.ONE));
+		}
+		return new ShardMap(new String[count], starting, ending);
+	}
+
+	private static HashKey toHashKey(BigInteger value) {
+		return HashKey.of(value.shiftRight(64).longValue(), value.longValue());
+	}
+
+	/**
+	 * @return The number of shards.
+	 */
+	int size() {
+		return this.shardIds.length;
+	}
+
+	/**
+	 * @param index The position of the shard in hash key order.
+	 * @return The ID of the shard, or null for a map of equal ranges.
+	 */
+	String getShardId(int index) {
+		return this.shardIds[index];
+	}
+
+	/**
+	 * @return The IDs of the shards, in hash key order.
+	 */
+	List<String> getShardIds() {
+		return new ArrayList<>(Arrays.asList(this.shardIds));
+	}
+
+	/**
+	 * Binary search for the shard whose hash key range contains a hash key.
+	 * 
+	 * @param high The most significant 64 bits of the hash key.
+	 * @param low  The least significant 64 bits of the hash key.
+	 * @return The position of the shard in hash key order, or -1 if no shard
+	 *         contains the key.
+	 */
+	int find(long high, long low) {
+		// find the last shard starting at or before the key
+		int lo = 0, hi = this.shardIds.length - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(this.startingHigh[mid], this.startingLow[mid], high, low) <= 0) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+
+		if (found < 0 || compare(high, low, this.endingHigh[found], this.endingLow[found]) > 0) {
+			return -1;
+		}
+		return found;
+	}
+
+	private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+		int result = Long.compareUnsigned(aHigh, bHigh);
+		return result != 0 ? result : Long.compareUnsigned(aLow, bLow);
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import com.amazonaws.annotation.ThreadSafe;
+
+/**
+ * The timer thread shared by the aggregation classes for delayed work, such as
+ * linger deadlines and retry backoffs. Tasks scheduled on it must be short and
+ * must not block; anything more is handed off to an executor.
+ */
+@ThreadSafe
+final class SharedScheduler {
+	private static final ScheduledExecutorService INSTANCE = createScheduler();
+
+	private SharedScheduler() {
+	}
+
+	/**
+	 * @return The shared scheduler. It runs on a single daemon thread, so it does
+	 *         not keep the JVM alive.
+	 */
+	static ScheduledExecutorService get() {
+		return INSTANCE;
+	}
+
+	private static ScheduledExecutorService createScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "kinesis-aggregator-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+}
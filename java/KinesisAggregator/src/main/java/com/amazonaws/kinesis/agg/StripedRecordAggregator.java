@@ -0,0 +1,319 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+
+/**
+ * A record aggregator that can be shared by many producer threads. User
+ * records are spread across a fixed number of stripes by the hash of their
+ * partition key, and each stripe is a {@link RecordAggregator} with its own
+ * lock, so threads adding user records with different partition keys rarely
+ * wait for each other. Every user record with a given partition key goes to
+ * the same stripe, so user records with the same partition key stay in the
+ * order they were added.
+ *
+ * Each stripe fills and completes its aggregated records independently, so
+ * with N stripes up to N partially filled aggregated records are open at once.
+ * Use about as many stripes as there are threads adding user records
+ * concurrently.
+ *
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class StripedRecordAggregator {
+	/** The aggregator of each stripe, which is also the stripe's lock. */
+	private final RecordAggregator[] stripes;
+
+	/**
+	 * Construct a new striped aggregator with one stripe per available
+	 * processor.
+	 */
+	public StripedRecordAggregator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct a new striped aggregator.
+	 * 
+	 * @param stripeCount The number of stripes to spread user records across.
+	 */
+	public StripedRecordAggregator(int stripeCount) {
+		this(stripeCount, null, 0);
+	}
+
+	/**
+	 * Construct a new striped aggregator.
+	 * 
+	 * @param stripeCount               The number of stripes to spread user
+	 *                                  records across.
+	 * @param explicitHashKeyCache      The cache to share, or null to disable
+	 *                                  caching.
+	 * @param maxPooledRecordsPerStripe The maximum number of released records to
+	 *                                  keep for reuse by each stripe, or 0 to
+	 *                                  disable recycling (see
+	 *                                  {@link RecordAggregator#RecordAggregator(ExplicitHashKeyCache, int)}).
+	 */
+	public StripedRecordAggregator(int stripeCount, ExplicitHashKeyCache explicitHashKeyCache,
+			int maxPooledRecordsPerStripe) {
+		this(stripeCount, explicitHashKeyCache, maxPooledRecordsPerStripe, null);
+	}
+
+	/**
+	 * Construct a new striped aggregator whose completed records count against
+	 * an in-flight byte budget (see
+	 * {@link RecordAggregator#RecordAggregator(ExplicitHashKeyCache, int, InFlightByteBudget)}).
+	 * A thread waiting for the budget holds its stripe's lock.
+	 * 
+	 * @param stripeCount               The number of stripes to spread user
+	 *                                  records across.
+	 * @param explicitHashKeyCache      The cache to share, or null to disable
+	 *                                  caching.
+	 * @param maxPooledRecordsPerStripe The maximum number of released records to
+	 *                                  keep for reuse by each stripe, or 0 to
+	 *                                  disable recycling.
+	 * @param inFlightByteBudget        The budget shared by every stripe, or null
+	 *                                  for no limit.
+	 */
+	public StripedRecordAggregator(int stripeCount, ExplicitHashKeyCache explicitHashKeyCache,
+			int maxPooledRecordsPerStripe, InFlightByteBudget inFlightByteBudget) {
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException("Stripe count must be at least 1, got " + stripeCount);
+		}
+
+		this.stripes = new RecordAggregator[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			this.stripes[i] = new RecordAggregator(explicitHashKeyCache, maxPooledRecordsPerStripe,
+					inFlightByteBudget);
+		}
+	}
+
+	/**
+	 * @return The number of stripes user records are spread across.
+	 */
+	public int getStripeCount() {
+		return this.stripes.length;
+	}
+
+	/**
+	 * @return The total number of user records in the open aggregated records of
+	 *         all stripes.
+	 */
+	public int getNumUserRecords() {
+		int total = 0;
+		for (RecordAggregator stripe : this.stripes) {
+			synchronized (stripe) {
+				total += stripe.getNumUserRecords();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return The total size in bytes of the open aggregated records of all
+	 *         stripes.
+	 */
+	public long getSizeBytes() {
+		long total = 0;
+		for (RecordAggregator stripe : this.stripes) {
+			synchronized (stripe) {
+				total += stripe.getSizeBytes();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Register a callback method to be notified when the aggregated record of any
+	 * stripe is full. Callbacks registered via this method are executed on a
+	 * separate thread from the common ForkJoin pool.
+	 * 
+	 * @param listener The listener to receive a callback when there is a complete
+	 *                 aggregated record available (can be a lambda function).
+	 */
+	public void onRecordComplete(RecordCompleteListener listener) {
+		for (RecordAggregator stripe : this.stripes) {
+			synchronized (stripe) {
+				stripe.onRecordComplete(listener);
+			}
+		}
+	}
+
+	/**
+	 * Register a callback method to be notified when the aggregated record of any
+	 * stripe is full and invoke the callback using the specified executor. The
+	 * executor is called while the stripe is locked, so a listener that runs on
+	 * the calling thread should not block.
+	 * 
+	 * @param listener The listener to receive a callback when there is a complete
+	 *                 aggregated record available (can be a lambda function).
+	 * @param executor The executor to use to execute the callback.
+	 */
+	public void onRecordComplete(RecordCompleteListener listener, Executor executor) {
+		for (RecordAggregator stripe : this.stripes) {
+			synchronized (stripe) {
+				stripe.onRecordComplete(listener, executor);
+			}
+		}
+	}
+
+	/**
+	 * Clear all the listeners registered with the onRecordComplete method.
+	 */
+	public void clearListeners() {
+		for (RecordAggregator stripe : this.stripes) {
+			synchronized (stripe) {
+				stripe.clearListeners();
+			}
+		}
+	}
+
+	/**
+	 * Discard the user records in the open aggregated records of all stripes.
+	 */
+	public void clearRecords() {
+		for (RecordAggregator stripe : this.stripes) {
+			synchronized (stripe) {
+				stripe.clearRecord();
+			}
+		}
+	}
+
+	/**
+	 * Get the open aggregated record of every stripe that has any user records,
+	 * whether full or not, and start new empty ones (e.g. to flush all stripes at
+	 * shutdown or on a timer). Listeners are not notified.
+	 * 
+	 * @return The sealed aggregated records. The list is empty if no stripe has
+	 *         any user records.
+	 */
+	public List<AggRecord> clearAndGet() {
+		List<AggRecord> records = new ArrayList<>();
+		for (RecordAggregator stripe : this.stripes) {
+			AggRecord record;
+			synchronized (stripe) {
+				record = stripe.clearAndGet();
+			}
+			if (record != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Complete the open aggregated record of every stripe that has any user
+	 * records, whether full or not, and notify the listeners registered with
+	 * onRecordComplete (see {@link RecordAggregator#flush()}).
+	 * 
+	 * @return The completed aggregated records. The list is empty if no stripe
+	 *         has any user records.
+	 */
+	public List<AggRecord> flush() {
+		List<AggRecord> records = new ArrayList<>();
+		for (RecordAggregator stripe : this.stripes) {
+			AggRecord record;
+			synchronized (stripe) {
+				record = stripe.flush();
+			}
+			if (record != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Add a new user record to the aggregated record of its partition key's
+	 * stripe (will trigger a callback via onRecordComplete if that aggregated
+	 * record is full).
+	 * 
+	 * @param partitionKey The partition key of the record to add
+	 * @param data         The record data of the record to add
+	 * @return A AggRecord if the stripe's aggregated record is full and ready to
+	 *         be transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to an agg record
+	 */
+	public AggRecord addUserRecord(String partitionKey, byte[] data) throws Exception {
+		return addUserRecord(partitionKey, null, data);
+	}
+
+	/**
+	 * Add a new user record to the aggregated record of its partition key's
+	 * stripe (will trigger a callback via onRecordComplete if that aggregated
+	 * record is full).
+	 * 
+	 * @param partitionKey    The partition key of the record to add
+	 * @param explicitHashKey The explicit hash key of the record to add
+	 * @param data            The record data of the record to add
+	 * @return A AggRecord if the stripe's aggregated record is full and ready to
+	 *         be transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to an agg record
+	 */
+	public AggRecord addUserRecord(String partitionKey, String explicitHashKey, byte[] data) throws Exception {
+		if (partitionKey == null) {
+			throw new IllegalArgumentException("Partition key cannot be null");
+		}
+
+		RecordAggregator stripe = this.stripes[stripeIndex(KeyTable.hash(partitionKey))];
+		synchronized (stripe) {
+			return stripe.addUserRecord(partitionKey, explicitHashKey, data);
+		}
+	}
+
+	/**
+	 * Add a new user record with a pre-encoded partition key to the aggregated
+	 * record of its partition key's stripe (will trigger a callback via
+	 * onRecordComplete if that aggregated record is full). The user record goes
+	 * to the same stripe as it would if its partition key were added as a
+	 * string.
+	 * 
+	 * @param partitionKey    The UTF-8 encoded partition key of the record to add
+	 * @param explicitHashKey The explicit hash key of the record to add as a 16
+	 *                        byte big-endian unsigned integer, or null to derive
+	 *                        it from the partition key
+	 * @param data            The record data of the record to add
+	 * @return A AggRecord if the stripe's aggregated record is full and ready to
+	 *         be transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to an agg record
+	 */
+	public AggRecord addUserRecord(byte[] partitionKey, byte[] explicitHashKey, byte[] data) throws Exception {
+		if (partitionKey == null) {
+			throw new IllegalArgumentException("Partition key cannot be null");
+		}
+
+		RecordAggregator stripe = this.stripes[stripeIndex(KeyTable.hash(partitionKey, 0, partitionKey.length))];
+		synchronized (stripe) {
+			return stripe.addUserRecord(partitionKey, explicitHashKey, data);
+		}
+	}
+
+	/**
+	 * Pick the stripe for a partition key hash, mixing the high bits of the hash
+	 * into the low bits first so that the stripes are used evenly.
+	 */
+	private int stripeIndex(int hash) {
+		int h = hash * 0x9E3779B9;
+		return Math.floorMod(h ^ (h >>> 16), this.stripes.length);
+	}
+}
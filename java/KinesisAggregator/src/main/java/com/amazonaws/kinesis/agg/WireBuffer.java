@@ -0,0 +1,196 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import com.amazonaws.annotation.NotThreadSafe;
+
+/**
+ * A growable byte buffer that protocol buffer wire-format fields are appended
+ * to as user records are added to an aggregated record. The backing array is
+ * retained across calls to {@link #reset()}, so a buffer that has grown to hold
+ * one full aggregated record never needs to grow again.
+ *
+ * This class is NOT thread-safe.
+ *
+ * @see <a href=
+ *      "https://developers.google.com/protocol-buffers/docs/encoding">https://developers.google.com/protocol-buffers/docs/encoding</a>
+ */
+@NotThreadSafe
+class WireBuffer {
+	private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+	/** The backing array holding the encoded bytes. */
+	private byte[] buffer;
+	/** The number of bytes currently written to the backing array. */
+	private int size;
+
+	/**
+	 * Create a new empty buffer with a default initial capacity.
+	 */
+	WireBuffer() {
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Create a new empty buffer.
+	 *
+	 * @param initialCapacity The number of bytes to pre-allocate.
+	 */
+	WireBuffer(int initialCapacity) {
+		this.buffer = new byte[initialCapacity];
+		this.size = 0;
+	}
+
+	/**
+	 * @return The number of bytes currently written to this buffer.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Discard the contents of this buffer, keeping the backing array for reuse.
+	 */
+	void reset() {
+		this.size = 0;
+	}
+
+	/**
+	 * Append a single byte (e.g. a field tag) to this buffer.
+	 *
+	 * @param b The byte to append (only the low 8 bits are used).
+	 */
+	void writeByte(int b) {
+		ensureCapacity(1);
+		this.buffer[this.size++] = (byte) b;
+	}
+
+	/**
+	 * Append an unsigned value using the protobuf base 128 varint encoding.
+	 *
+	 * @param value The non-negative value to append.
+	 */
+	void writeVarint(long value) {
+		ensureCapacity(varintSize(value));
+		while ((value & ~0x7FL) != 0) {
+			this.buffer[this.size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		this.buffer[this.size++] = (byte) value;
+	}
+
+	/**
+	 * Append a range of raw bytes to this buffer.
+	 *
+	 * @param src    The array to copy from.
+	 * @param offset The offset of the first byte to copy.
+	 * @param length The number of bytes to copy.
+	 */
+	void writeBytes(byte[] src, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(src, offset, this.buffer, this.size, length);
+		this.size += length;
+	}
+
+	/**
+	 * Append a complete length-delimited field (tag, length, value).
+	 *
+	 * @param tag    The pre-computed field tag (field number and wire type).
+	 * @param src    The array holding the field value.
+	 * @param offset The offset of the field value.
+	 * @param length The length of the field value.
+	 */
+	void writeLengthDelimited(int tag, byte[] src, int offset, int length) {
+		writeByte(tag);
+		writeVarint(length);
+		writeBytes(src, offset, length);
+	}
+
+	/**
+	 * Copy the contents of this buffer into a destination array.
+	 *
+	 * @param dest   The array to copy into.
+	 * @param offset The position in the destination array to start writing at.
+	 * @return The position in the destination array just past the copied bytes.
+	 */
+	int copyTo(byte[] dest, int offset) {
+		System.arraycopy(this.buffer, 0, dest, offset, this.size);
+		return offset + this.size;
+	}
+
+	/**
+	 * Feed the bytes of this buffer from an offset to the current end into a
+	 * message digest.
+	 *
+	 * @param digest The digest to update.
+	 * @param offset The position of the first byte to feed to the digest.
+	 */
+	void update(MessageDigest digest, int offset) {
+		digest.update(this.buffer, offset, this.size - offset);
+	}
+
+	/**
+	 * Compress the bytes of this buffer from an offset to the current end.
+	 *
+	 * @param codec  The codec to compress with.
+	 * @param offset The position of the first byte to compress.
+	 * @return The compressed bytes.
+	 */
+	byte[] compress(RecordCodec codec, int offset) {
+		return codec.compress(this.buffer, offset, this.size - offset);
+	}
+
+	/**
+	 * Write an unsigned value using the protobuf base 128 varint encoding into
+	 * an array that has room for it.
+	 *
+	 * @param value  The non-negative value to write.
+	 * @param dest   The array to write into.
+	 * @param offset The position to start writing at.
+	 * @return The position just past the written bytes.
+	 */
+	static int writeVarint(long value, byte[] dest, int offset) {
+		while ((value & ~0x7FL) != 0) {
+			dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dest[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Calculate how many bytes the varint encoding of a value occupies.
+	 *
+	 * @param value The non-negative value to measure.
+	 * @return The number of bytes (1-10) needed to encode the value.
+	 */
+	static int varintSize(long value) {
+		int bits = 64 - Long.numberOfLeadingZeros(value | 1);
+		return (bits + 6) / 7;
+	}
+
+	private void ensureCapacity(int additional) {
+		int required = this.size + additional;
+		if (required > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(required, this.buffer.length * 2));
+		}
+	}
+}
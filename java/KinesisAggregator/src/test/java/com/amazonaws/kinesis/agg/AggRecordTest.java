@@ -21,6 +21,7 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -72,4 +73,25 @@ public class AggRecordTest {
         Assert.assertThat(record.getExplicitHashKey(), equalTo(expectedHashKeyDecimal));
     }
 
+    @Test
+    public void shouldReturnWritableRequestData() {
+        final AggRecord record = new AggRecord();
+        record.addUserRecord(partitionKey, null, "dummy data".getBytes());
+
+        final ByteBuffer entryData = record.toPutRecordsRequestEntry().getData();
+        final ByteBuffer requestData = record.toPutRecordRequest("stream").getData();
+
+        Assert.assertThat(entryData.isReadOnly(), is(false));
+        Assert.assertThat(entryData.array(), equalTo(record.toRecordBytes()));
+        Assert.assertThat(requestData.array(), equalTo(record.toRecordBytes()));
+        // every call gets its own copy of the data
+        entryData.position(entryData.limit());
+        Assert.assertThat(record.toPutRecordsRequestEntry().getData().remaining(), equalTo(record.getSizeBytes()));
+        final byte[] expected = record.toRecordBytes();
+        entryData.array()[0] ^= 1;
+        requestData.put(0, (byte) (requestData.get(0) ^ 1));
+        Assert.assertThat(record.toRecordBytes(), equalTo(expected));
+        Assert.assertThat(record.toPutRecordsRequestEntry().getData().array(), equalTo(expected));
+    }
+
 }
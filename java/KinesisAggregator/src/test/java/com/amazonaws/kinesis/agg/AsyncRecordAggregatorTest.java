@@ -0,0 +1,292 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.kinesis.agg.AsyncRecordAggregator.BackpressurePolicy;
+import com.amazonaws.kinesis.agg.AsyncRecordAggregator.WaitStrategy;
+import com.amazonaws.services.kinesis.clientlibrary.types.Messages.AggregatedRecord;
+
+public class AsyncRecordAggregatorTest {
+	private static AggregatedRecord parse(AggRecord record) throws Exception {
+		byte[] recordBytes = record.toRecordBytes();
+		return AggregatedRecord.parseFrom(Arrays.copyOfRange(recordBytes, 4, recordBytes.length - 16));
+	}
+
+	private static void testProducersKeepOrder(WaitStrategy waitStrategy) throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		List<AggRecord> completed = Collections.synchronizedList(new ArrayList<>());
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+		AsyncRecordAggregator async = new AsyncRecordAggregator(aggregator, 128, waitStrategy,
+				BackpressurePolicy.BLOCK);
+
+		int threads = 4;
+		int recordsPerThread = 20000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> running = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				String partitionKey = "producer-" + t;
+				byte[] encodedKey = partitionKey.getBytes(StandardCharsets.UTF_8);
+				running.add(executor.submit(() -> {
+					for (int i = 0; i < recordsPerThread; i++) {
+						byte[] data = Integer.toString(i).getBytes(StandardCharsets.UTF_8);
+						Assert.assertTrue(i % 2 == 0 ? async.addUserRecord(partitionKey, data)
+								: async.addUserRecord(encodedKey, null, data));
+					}
+				}));
+			}
+			for (Future<?> future : running) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		async.close();
+
+		// each producer's user records must come out in the order it added them
+		Map<String, Integer> lastSequence = new HashMap<>();
+		int total = 0;
+		for (AggRecord record : completed) {
+			AggregatedRecord parsed = parse(record);
+			for (int i = 0; i < parsed.getRecordsCount(); i++) {
+				String partitionKey = parsed.getPartitionKeyTable((int) parsed.getRecords(i).getPartitionKeyIndex());
+				int sequence = Integer.parseInt(parsed.getRecords(i).getData().toStringUtf8());
+				Assert.assertEquals(lastSequence.getOrDefault(partitionKey, -1) + 1, sequence);
+				lastSequence.put(partitionKey, sequence);
+				total++;
+			}
+		}
+		Assert.assertEquals(threads * recordsPerThread, total);
+		Assert.assertEquals(0, async.getFailedRecordCount());
+	}
+
+	@Test
+	public void testProducersKeepOrderWhenParking() throws Exception {
+		testProducersKeepOrder(WaitStrategy.PARK);
+	}
+
+	@Test
+	public void testProducersKeepOrderWhenYielding() throws Exception {
+		testProducersKeepOrder(WaitStrategy.YIELD);
+	}
+
+	@Test
+	public void testProducersKeepOrderWhenSpinning() throws Exception {
+		testProducersKeepOrder(WaitStrategy.BUSY_SPIN);
+	}
+
+	/**
+	 * Create an async aggregator whose writer thread is stuck in a listener
+	 * until the gate opens, with one completed record already being delivered.
+	 */
+	private static AsyncRecordAggregator stalled(BackpressurePolicy policy, CountDownLatch gate) throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		aggregator.onRecordComplete(record -> {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, Runnable::run);
+		AsyncRecordAggregator async = new AsyncRecordAggregator(aggregator, 4, WaitStrategy.PARK, policy);
+
+		async.addUserRecord("a", new byte[10]);
+		async.flush();
+		return async;
+	}
+
+	@Test
+	public void testDropsWhenFull() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		AsyncRecordAggregator async = stalled(BackpressurePolicy.DROP, gate);
+
+		int queued = 0;
+		for (int i = 0; i < 10; i++) {
+			if (async.addUserRecord("b", new byte[10])) {
+				queued++;
+			}
+		}
+		Assert.assertTrue(queued <= async.getQueueCapacity());
+		Assert.assertEquals(10 - queued, async.getDroppedRecordCount());
+
+		gate.countDown();
+		async.close();
+	}
+
+	@Test
+	public void testFailsWhenFull() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		AsyncRecordAggregator async = stalled(BackpressurePolicy.FAIL, gate);
+
+		try {
+			for (int i = 0; i < 10; i++) {
+				async.addUserRecord("b", new byte[10]);
+			}
+			Assert.fail("Expected a full queue to fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		gate.countDown();
+		async.close();
+	}
+
+	@Test
+	public void testCloseStopsWaitingWhenInterrupted() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		AsyncRecordAggregator async = stalled(BackpressurePolicy.BLOCK, gate);
+		Assert.assertFalse(async.awaitClose(10, TimeUnit.MILLISECONDS));
+
+		Thread.currentThread().interrupt();
+		async.close();
+		Assert.assertTrue(Thread.interrupted());
+
+		gate.countDown();
+		Assert.assertTrue(async.awaitClose(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCountsRejectedRecords() throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		List<AggRecord> completed = Collections.synchronizedList(new ArrayList<>());
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+		AsyncRecordAggregator async = new AsyncRecordAggregator(aggregator);
+
+		async.addUserRecord("a", new byte[10]);
+		async.addUserRecord("b", "not a number", new byte[10]);
+		async.addUserRecord("c", new byte[10]);
+		async.close();
+
+		Assert.assertEquals(1, async.getFailedRecordCount());
+		Assert.assertTrue(async.getLastFailure() instanceof IllegalArgumentException);
+		Assert.assertEquals(1, completed.size());
+		Assert.assertEquals(2, completed.get(0).getNumUserRecords());
+	}
+
+	@Test
+	public void testFlushCompletesRecord() throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		CountDownLatch completed = new CountDownLatch(1);
+		aggregator.onRecordComplete(record -> completed.countDown(), Runnable::run);
+		AsyncRecordAggregator async = new AsyncRecordAggregator(aggregator);
+
+		async.addUserRecord("a", new byte[10]);
+		async.flush();
+		Assert.assertTrue(completed.await(10, TimeUnit.SECONDS));
+
+		async.close();
+		try {
+			async.addUserRecord("b", new byte[10]);
+			Assert.fail("Expected a closed aggregator to refuse user records");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsAggregatorWithoutListener() {
+		new AsyncRecordAggregator(new RecordAggregator());
+	}
+
+	@Test
+	public void testCloseKeepsEveryAcceptedRecord() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			RecordAggregator aggregator = new RecordAggregator();
+			List<AggRecord> completed = Collections.synchronizedList(new ArrayList<>());
+			aggregator.onRecordComplete(completed::add, Runnable::run);
+			AsyncRecordAggregator async = new AsyncRecordAggregator(aggregator, 64, WaitStrategy.PARK,
+					BackpressurePolicy.BLOCK);
+
+			// producers race close, and every user record they were told was
+			// queued must be aggregated
+			int threads = 4;
+			AtomicInteger accepted = new AtomicInteger();
+			CountDownLatch started = new CountDownLatch(threads);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<?>> running = new ArrayList<>();
+				for (int t = 0; t < threads; t++) {
+					running.add(executor.submit(() -> {
+						started.countDown();
+						try {
+							while (true) {
+								if (async.addUserRecord("pk", new byte[10])) {
+									accepted.incrementAndGet();
+								}
+							}
+						} catch (IllegalStateException e) {
+							// closed
+						}
+					}));
+				}
+				started.await();
+				async.close();
+				for (Future<?> future : running) {
+					future.get();
+				}
+			} finally {
+				executor.shutdown();
+			}
+
+			int total = 0;
+			for (AggRecord record : completed) {
+				total += record.getNumUserRecords();
+			}
+			Assert.assertEquals(accepted.get(), total);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testWriterDeathClosesAggregator() throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		aggregator.onRecordComplete(record -> {
+			throw new Error("listener failure");
+		}, Runnable::run);
+		AsyncRecordAggregator async = new AsyncRecordAggregator(aggregator, 4, WaitStrategy.PARK,
+				BackpressurePolicy.BLOCK);
+
+		async.addUserRecord("a", new byte[10]);
+		async.flush();
+		try {
+			// blocked producers must give up rather than wait for a dead writer
+			while (true) {
+				async.addUserRecord("b", new byte[10]);
+			}
+		} catch (IllegalStateException e) {
+			Assert.assertTrue(e.getCause() instanceof Error);
+		}
+		async.close();
+	}
+}
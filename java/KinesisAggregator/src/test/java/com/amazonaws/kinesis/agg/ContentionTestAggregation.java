@@ -0,0 +1,155 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+
+/**
+ * Compares how user record throughput scales with the number of producer
+ * threads when they share one RecordAggregator behind a global lock and when
+ * they share a StripedRecordAggregator.
+ */
+public class ContentionTestAggregation {
+	private static final int TOTAL_RECORDS = 400_000;
+	private static final int KEY_COUNT = 1000;
+	private static final int DATA_SIZE = 100;
+
+	private final String[] partitionKeys = new String[KEY_COUNT];
+	private final byte[] data = new byte[DATA_SIZE];
+
+	private interface Producer {
+		void addUserRecord(String partitionKey, byte[] data) throws Exception;
+	}
+
+	private final class CountingListener implements RecordCompleteListener {
+		private final AtomicLong userRecordCount = new AtomicLong();
+
+		public void recordComplete(AggRecord aggRecord) {
+			this.userRecordCount.addAndGet(aggRecord.getNumUserRecords());
+		}
+
+		public long getCount() {
+			return this.userRecordCount.get();
+		}
+	}
+
+	public ContentionTestAggregation() {
+		Random r = new Random();
+		for (int i = 0; i < KEY_COUNT; i++) {
+			this.partitionKeys[i] = Long.toHexString(r.nextLong());
+		}
+		r.nextBytes(this.data);
+	}
+
+	/**
+	 * Add TOTAL_RECORDS user records split between the given number of threads,
+	 * all starting at once.
+	 * 
+	 * @return The elapsed time in nanoseconds.
+	 */
+	private long run(int threads, Producer producer) throws Exception {
+		ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<?>> running = new ArrayList<>(threads);
+			for (int t = 0; t < threads; t++) {
+				int offset = t;
+				running.add(threadPool.submit(() -> {
+					start.await();
+					for (int i = 0; i < TOTAL_RECORDS / threads; i++) {
+						producer.addUserRecord(this.partitionKeys[(offset + i) % KEY_COUNT], this.data);
+					}
+					return null;
+				}));
+			}
+
+			long startNanos = System.nanoTime();
+			start.countDown();
+			for (Future<?> f : running) {
+				f.get();
+			}
+			return System.nanoTime() - startNanos;
+		} finally {
+			threadPool.shutdown();
+		}
+	}
+
+	private long runGlobalLock(int threads) throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		CountingListener listener = new CountingListener();
+		aggregator.onRecordComplete(listener, Runnable::run);
+
+		long nanos = run(threads, (partitionKey, data) -> {
+			synchronized (aggregator) {
+				aggregator.addUserRecord(partitionKey, data);
+			}
+		});
+
+		listener.recordComplete(aggregator.clearAndGet());
+		assertEquals("Correct User Record Count", TOTAL_RECORDS / threads * threads, listener.getCount());
+		return nanos;
+	}
+
+	private long runStriped(int threads) throws Exception {
+		StripedRecordAggregator aggregator = new StripedRecordAggregator(threads);
+		CountingListener listener = new CountingListener();
+		aggregator.onRecordComplete(listener, Runnable::run);
+
+		long nanos = run(threads, aggregator::addUserRecord);
+
+		for (AggRecord record : aggregator.clearAndGet()) {
+			listener.recordComplete(record);
+		}
+		assertEquals("Correct User Record Count", TOTAL_RECORDS / threads * threads, listener.getCount());
+		return nanos;
+	}
+
+	private static double recordsPerSecond(int threads, long nanos) {
+		return (double) (TOTAL_RECORDS / threads * threads) / nanos * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	@Test
+	public void contentionTest() throws Exception {
+		int cpus = Runtime.getRuntime().availableProcessors();
+
+		// warm up both paths before measuring
+		runGlobalLock(1);
+		runStriped(1);
+
+		for (int threads = 1; threads <= Math.max(cpus, 2); threads *= 2) {
+			long globalLockNanos = runGlobalLock(threads);
+			long stripedNanos = runStriped(threads);
+			System.out.println(String.format("%s threads: global lock %,.0f records/s, striped %,.0f records/s",
+					threads, recordsPerSecond(threads, globalLockNanos), recordsPerSecond(threads, stripedNanos)));
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyTableTest {
+	private static int indexOf(KeyTable table, String key) {
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		return table.indexOf(bytes, 0, bytes.length, KeyTable.hash(bytes, 0, bytes.length));
+	}
+
+	private static int add(KeyTable table, String key) {
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		return table.add(bytes, 0, bytes.length, KeyTable.hash(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void testIndexesFollowInsertionOrder() {
+		KeyTable table = new KeyTable();
+		int c = 5000;
+		String[] keys = new String[c];
+
+		for (int i = 0; i < c; i++) {
+			keys[i] = UUID.randomUUID().toString();
+			Assert.assertEquals(-1, indexOf(table, keys[i]));
+			Assert.assertEquals(-(i + 1), add(table, keys[i]));
+		}
+
+		Assert.assertEquals(c, table.size());
+		for (int i = 0; i < c; i++) {
+			Assert.assertEquals(i, indexOf(table, keys[i]));
+			Assert.assertEquals(i, add(table, keys[i]));
+			Assert.assertEquals(keys[i], table.getString(i));
+		}
+		Assert.assertEquals(-1, indexOf(table, "not-a-key"));
+	}
+
+	@Test
+	public void testKeysAreCopied() {
+		KeyTable table = new KeyTable();
+		byte[] buffer = "first-key".getBytes(StandardCharsets.UTF_8);
+		table.add(buffer, 6, 3, KeyTable.hash(buffer, 6, 3));
+		buffer[6] = 'x';
+
+		Assert.assertEquals("key", table.getString(0));
+		Assert.assertEquals(0, indexOf(table, "key"));
+	}
+
+	@Test
+	public void testClear() {
+		KeyTable table = new KeyTable();
+		add(table, "a");
+		add(table, "b");
+		table.clear();
+
+		Assert.assertEquals(0, table.size());
+		Assert.assertEquals(-1, indexOf(table, "a"));
+		Assert.assertEquals(-1, add(table, "b"));
+		Assert.assertEquals(0, indexOf(table, "b"));
+		Assert.assertEquals("b", table.getString(0));
+	}
+
+	@Test
+	public void testStringHashMatchesEncodedHash() {
+		String[] keys = { "", "partition_key", "caf\u00e9", "\u6f22\u5b57", "emoji \ud83d\ude00",
+				"lone \ud83d surrogate", "trailing \ud83d", "\ude00 reversed" };
+		for (String key : keys) {
+			byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+			Assert.assertEquals(key, KeyTable.hash(bytes, 0, bytes.length), KeyTable.hash(key));
+		}
+	}
+}
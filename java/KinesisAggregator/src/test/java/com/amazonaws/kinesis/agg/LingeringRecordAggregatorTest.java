@@ -0,0 +1,107 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LingeringRecordAggregatorTest {
+	@Test
+	public void testFlushesAfterMaxLinger() throws Exception {
+		LingeringRecordAggregator aggregator = new LingeringRecordAggregator(50, TimeUnit.MILLISECONDS);
+		BlockingQueue<AggRecord> completed = new LinkedBlockingQueue<>();
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+
+		long start = System.nanoTime();
+		aggregator.addUserRecord("a", new byte[10]);
+		aggregator.addUserRecord("b", new byte[10]);
+		Assert.assertTrue(completed.isEmpty());
+
+		AggRecord record = completed.poll(10, TimeUnit.SECONDS);
+		Assert.assertNotNull(record);
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		Assert.assertEquals(2, record.getNumUserRecords());
+		Assert.assertEquals(0, aggregator.getNumUserRecords());
+
+		// the next record gets a deadline of its own
+		aggregator.addUserRecord("c", new byte[10]);
+		record = completed.poll(10, TimeUnit.SECONDS);
+		Assert.assertNotNull(record);
+		Assert.assertEquals(1, record.getNumUserRecords());
+	}
+
+	@Test
+	public void testClearedRecordIsNotFlushed() throws Exception {
+		LingeringRecordAggregator aggregator = new LingeringRecordAggregator(50, TimeUnit.MILLISECONDS);
+		BlockingQueue<AggRecord> completed = new LinkedBlockingQueue<>();
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+
+		aggregator.addUserRecord("a", new byte[10]);
+		Assert.assertEquals(1, aggregator.clearAndGet().getNumUserRecords());
+
+		Assert.assertNull(completed.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testWaitsForMinFill() throws Exception {
+		LingeringRecordAggregator aggregator = new LingeringRecordAggregator(null, 0, 20, TimeUnit.MILLISECONDS,
+				1000, null);
+		BlockingQueue<AggRecord> completed = new LinkedBlockingQueue<>();
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+
+		aggregator.addUserRecord("a", new byte[10]);
+		Assert.assertNull(completed.poll(200, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(1, aggregator.getNumUserRecords());
+
+		// reaching the minimum fill after the deadline completes the record
+		aggregator.addUserRecord("b", new byte[1000]);
+		AggRecord record = completed.poll(0, TimeUnit.MILLISECONDS);
+		Assert.assertNotNull(record);
+		Assert.assertEquals(2, record.getNumUserRecords());
+		Assert.assertEquals(0, aggregator.getNumUserRecords());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRejectsUserRecordsWithoutListener() throws Exception {
+		LingeringRecordAggregator aggregator = new LingeringRecordAggregator(50, TimeUnit.MILLISECONDS);
+		aggregator.addUserRecord("pk", new byte[10]);
+	}
+
+	@Test
+	public void testKeepsOverdueRecordWithoutListener() throws Exception {
+		LingeringRecordAggregator aggregator = new LingeringRecordAggregator(20, TimeUnit.MILLISECONDS);
+		aggregator.onRecordComplete(record -> Assert.fail("The listener was cleared"), Runnable::run);
+		aggregator.addUserRecord("pk", new byte[10]);
+		aggregator.clearListeners();
+
+		// the deadline passes with nobody to hand the record to
+		Thread.sleep(200);
+		AggRecord record = aggregator.clearAndGet();
+		Assert.assertNotNull(record);
+		Assert.assertEquals(1, record.getNumUserRecords());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNonPositiveLinger() {
+		new LingeringRecordAggregator(0, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+
+public class ShardAwareAggregatorTest {
+	private static final BigInteger HALF = BigInteger.ONE.shiftLeft(127);
+	private static final BigInteger MAX = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+	private static Shard shard(String shardId, BigInteger start, BigInteger end, boolean closed) {
+		SequenceNumberRange sequenceNumbers = new SequenceNumberRange().withStartingSequenceNumber("1");
+		if (closed) {
+			sequenceNumbers.withEndingSequenceNumber("2");
+		}
+		return new Shard().withShardId(shardId)
+				.withHashKeyRange(new HashKeyRange().withStartingHashKey(start.toString())
+						.withEndingHashKey(end.toString()))
+				.withSequenceNumberRange(sequenceNumbers);
+	}
+
+	private static List<Shard> twoShards() {
+		return Arrays.asList(shard("shardId-000000000002", HALF, MAX, false),
+				shard("shardId-000000000000", BigInteger.ZERO, MAX, true),
+				shard("shardId-000000000001", BigInteger.ZERO, HALF.subtract(BigInteger.ONE), false));
+	}
+
+	@Test
+	public void testIgnoresClosedShards() {
+		ShardAwareAggregator aggregator = new ShardAwareAggregator(twoShards());
+		Assert.assertEquals(Arrays.asList("shardId-000000000001", "shardId-000000000002"),
+				aggregator.getShardIds());
+		Assert.assertEquals("shardId-000000000001", aggregator.getShardId("0"));
+		Assert.assertEquals("shardId-000000000001", aggregator.getShardId(HALF.subtract(BigInteger.ONE).toString()));
+		Assert.assertEquals("shardId-000000000002", aggregator.getShardId(HALF.toString()));
+		Assert.assertEquals("shardId-000000000002", aggregator.getShardId(MAX.toString()));
+	}
+
+	@Test
+	public void testRoutesByExplicitHashKey() throws Exception {
+		ShardAwareAggregator aggregator = new ShardAwareAggregator(twoShards());
+		byte[] data = "data".getBytes(StandardCharsets.UTF_8);
+		aggregator.addUserRecord("a", "1", data);
+		aggregator.addUserRecord("b", HALF.add(BigInteger.TEN).toString(), data);
+		aggregator.addUserRecord("c", "2", data);
+		Assert.assertEquals(3, aggregator.getNumUserRecords());
+
+		List<AggRecord> records = aggregator.clearAndGet();
+		Assert.assertEquals(2, records.size());
+		Assert.assertEquals(2, records.get(0).getNumUserRecords());
+		Assert.assertEquals("1", records.get(0).getExplicitHashKey());
+		Assert.assertEquals(1, records.get(1).getNumUserRecords());
+		Assert.assertEquals(HALF.add(BigInteger.TEN).toString(), records.get(1).getExplicitHashKey());
+		Assert.assertEquals(0, aggregator.getNumUserRecords());
+		Assert.assertTrue(aggregator.clearAndGet().isEmpty());
+	}
+
+	@Test
+	public void testRoutesByPartitionKey() throws Exception {
+		ShardAwareAggregator aggregator = new ShardAwareAggregator(twoShards(), new ExplicitHashKeyCache(100));
+		byte[] data = "data".getBytes(StandardCharsets.UTF_8);
+		Map<String, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 200; i++) {
+			String partitionKey = "key-" + (i % 50);
+			BigInteger hashKey = new BigInteger(1, DigestUtils.md5(partitionKey));
+			expected.merge(hashKey.compareTo(HALF) < 0 ? "shardId-000000000001" : "shardId-000000000002", 1,
+					Integer::sum);
+			if (i % 2 == 0) {
+				aggregator.addUserRecord(partitionKey, data);
+			} else {
+				aggregator.addUserRecord(partitionKey.getBytes(StandardCharsets.UTF_8), null, data);
+			}
+		}
+
+		Map<String, Integer> actual = new HashMap<>();
+		for (AggRecord record : aggregator.clearAndGet()) {
+			actual.put(aggregator.getShardId(record.getExplicitHashKey()), record.getNumUserRecords());
+		}
+		Assert.assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testCompletedRecordsStayWithinShard() throws Exception {
+		ShardAwareAggregator aggregator = new ShardAwareAggregator(twoShards());
+		List<AggRecord> completed = new ArrayList<>();
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+
+		byte[] data = new byte[100 * 1024];
+		for (int i = 0; i < 40; i++) {
+			AggRecord record = aggregator.addUserRecord("key-" + i, data);
+			if (record != null) {
+				Assert.assertSame(record, completed.get(completed.size() - 1));
+			}
+		}
+		completed.addAll(aggregator.clearAndGet());
+
+		int total = 0;
+		for (AggRecord record : completed) {
+			total += record.getNumUserRecords();
+			Assert.assertTrue(record.getSizeBytes() <= 1024 * 1024);
+		}
+		Assert.assertEquals(40, total);
+		Assert.assertTrue(completed.size() > 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsKeysOutsideAllShards() throws Exception {
+		ShardAwareAggregator aggregator = new ShardAwareAggregator(
+				Arrays.asList(shard("shardId-000000000000", BigInteger.ZERO, HALF, false)));
+		aggregator.addUserRecord("a", HALF.add(BigInteger.ONE).toString(), new byte[1]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsOverlappingShards() {
+		new ShardAwareAggregator(Arrays.asList(shard("shardId-000000000000", BigInteger.ZERO, HALF, false),
+				shard("shardId-000000000001", HALF, MAX, false)));
+	}
+}
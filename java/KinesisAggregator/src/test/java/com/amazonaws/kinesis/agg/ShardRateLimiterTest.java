@@ -0,0 +1,180 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.Shard;
+
+public class ShardRateLimiterTest {
+	private static final String LOW_KEY = "0";
+	private static final String HIGH_KEY = BigInteger.ONE.shiftLeft(127).toString();
+
+	private final List<AggRecord> sent = Collections.synchronizedList(new ArrayList<>());
+
+	private static Shard shard(String shardId, String start, String end) {
+		return new Shard().withShardId(shardId)
+				.withHashKeyRange(new HashKeyRange().withStartingHashKey(start).withEndingHashKey(end));
+	}
+
+	private static AggRecord aggRecord(String explicitHashKey, int dataSize) {
+		AggRecord aggRecord = new AggRecord();
+		aggRecord.addUserRecord("pk", explicitHashKey, new byte[dataSize]);
+		return aggRecord;
+	}
+
+	private void awaitSent(int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (this.sent.size() < count && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(count, this.sent.size());
+	}
+
+	@Test
+	public void testPassesRecordsWithinLimitsStraightAway() {
+		ShardRateLimiter limiter = new ShardRateLimiter(2, this.sent::add);
+		for (int i = 0; i < 10; i++) {
+			limiter.recordComplete(aggRecord(i % 2 == 0 ? LOW_KEY : HIGH_KEY, 1024));
+		}
+
+		Assert.assertEquals(10, this.sent.size());
+		Assert.assertEquals(0, limiter.getDelayedRecordCount());
+		Assert.assertEquals(0, limiter.getQueuedRecordCount());
+	}
+
+	@Test
+	public void testPacesRecordsPerSecond() throws Exception {
+		ShardRateLimiter limiter = new ShardRateLimiter(1, this.sent::add, ShardRateLimiter.SHARD_BYTES_PER_SECOND,
+				20);
+		List<AggRecord> records = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < 30; i++) {
+			AggRecord aggRecord = aggRecord(LOW_KEY, 10);
+			records.add(aggRecord);
+			limiter.recordComplete(aggRecord);
+		}
+
+		// the bucket starts with a second's worth of records
+		Assert.assertEquals(20, this.sent.size());
+		Assert.assertEquals(10, limiter.getQueuedRecordCount());
+		awaitSent(30);
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+		Assert.assertEquals(records, this.sent);
+		Assert.assertEquals(10, limiter.getDelayedRecordCount());
+	}
+
+	@Test
+	public void testPacesBytesPerSecond() throws Exception {
+		ShardRateLimiter limiter = new ShardRateLimiter(1, this.sent::add, 10_000,
+				ShardRateLimiter.SHARD_RECORDS_PER_SECOND);
+		for (int i = 0; i < 3; i++) {
+			limiter.recordComplete(aggRecord(LOW_KEY, 4_000));
+		}
+
+		Assert.assertEquals(2, this.sent.size());
+		Assert.assertEquals(1, limiter.getQueuedRecordCount());
+		awaitSent(3);
+	}
+
+	@Test
+	public void testPassesWaitingRecordsOnFromDedicatedThreads() throws Exception {
+		List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+		ShardRateLimiter limiter = new ShardRateLimiter(1, aggRecord -> {
+			threads.add(Thread.currentThread());
+			this.sent.add(aggRecord);
+		}, ShardRateLimiter.SHARD_BYTES_PER_SECOND, 10);
+		for (int i = 0; i < 11; i++) {
+			limiter.recordComplete(aggRecord(LOW_KEY, 10));
+		}
+
+		awaitSent(11);
+		Assert.assertFalse(threads.get(10) instanceof ForkJoinWorkerThread);
+		Assert.assertEquals("kinesis-aggregator-rate-limiter", threads.get(10).getName());
+	}
+
+	@Test
+	public void testPassesWaitingRecordsOnFromTheGivenExecutor() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "drainer"));
+		try {
+			List<String> threadNames = Collections.synchronizedList(new ArrayList<>());
+			ShardRateLimiter limiter = new ShardRateLimiter(1, aggRecord -> {
+				threadNames.add(Thread.currentThread().getName());
+				this.sent.add(aggRecord);
+			}, ShardRateLimiter.SHARD_BYTES_PER_SECOND, 10, executor);
+			for (int i = 0; i < 11; i++) {
+				limiter.recordComplete(aggRecord(LOW_KEY, 10));
+			}
+
+			awaitSent(11);
+			Assert.assertEquals("drainer", threadNames.get(10));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testShardsHaveSeparateBuckets() throws Exception {
+		List<Shard> shards = Arrays.asList(
+				shard("shardId-000000000001", "0", new BigInteger(HIGH_KEY).subtract(BigInteger.ONE).toString()),
+				shard("shardId-000000000002", HIGH_KEY, HashKey.MAX_VALUE.toString()));
+		ShardRateLimiter limiter = new ShardRateLimiter(shards, this.sent::add, ShardRateLimiter.SHARD_BYTES_PER_SECOND,
+				1);
+		Assert.assertEquals(Arrays.asList("shardId-000000000001", "shardId-000000000002"), limiter.getShardIds());
+
+		limiter.recordComplete(aggRecord(LOW_KEY, 10));
+		limiter.recordComplete(aggRecord(LOW_KEY, 10));
+		limiter.recordComplete(aggRecord(HIGH_KEY, 10));
+		Assert.assertEquals(2, this.sent.size());
+		Assert.assertEquals(1, limiter.getQueuedRecordCount());
+		Assert.assertEquals(HIGH_KEY, this.sent.get(1).getExplicitHashKey());
+	}
+
+	@Test
+	public void testPassesOnRecordsOutsideTheShards() {
+		List<Shard> shards = Collections.singletonList(shard("shardId-000000000001", "0", "1000"));
+		ShardRateLimiter limiter = new ShardRateLimiter(shards, this.sent::add, ShardRateLimiter.SHARD_BYTES_PER_SECOND,
+				1);
+
+		limiter.recordComplete(aggRecord(HIGH_KEY, 10));
+		limiter.recordComplete(aggRecord(HIGH_KEY, 10));
+		Assert.assertEquals(2, this.sent.size());
+		Assert.assertEquals(2, limiter.getUnmatchedRecordCount());
+	}
+
+	@Test
+	public void testUniformRangesCoverTheHashKeySpace() {
+		ShardMap map = ShardMap.uniform(3);
+		Assert.assertEquals(0, map.find(0, 0));
+		Assert.assertEquals(2, map.find(-1L, -1L));
+		HashKey third = HashKey.parse(BigInteger.ONE.shiftLeft(128).divide(BigInteger.valueOf(3)).toString());
+		Assert.assertEquals(1, map.find(third.getHighBits(), third.getLowBits()));
+	}
+}
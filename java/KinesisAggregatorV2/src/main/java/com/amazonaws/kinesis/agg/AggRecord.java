@@ -17,28 +17,20 @@
  */
 package com.amazonaws.kinesis.agg;
 
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.annotation.concurrent.NotThreadSafe;
-
-import org.apache.commons.lang3.StringUtils;
+import com.amazonaws.kinesis.agg.RecordCompression.Scope;
 
-import com.google.protobuf.ByteString;
+import javax.annotation.concurrent.NotThreadSafe;
 
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
 import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
-import software.amazon.kinesis.retrieval.kpl.Messages.AggregatedRecord;
-import software.amazon.kinesis.retrieval.kpl.Messages.Record;
 
 /**
  * 
@@ -60,7 +52,23 @@ public class AggRecord {
 	private static final byte[] AGGREGATED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
 			(byte) 0xc2 };
 	protected static final String MESSAGE_DIGEST_NAME = "MD5";
-	private static final BigInteger UINT_128_MAX = new BigInteger(StringUtils.repeat("FF", 16), 16);
+	// Magic numbers that mark compressed payloads for RecordDeaggregator: a
+	// whole aggregated record, and the data of a single user record
+	private static final byte[] COMPRESSED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc3 };
+	private static final byte[] COMPRESSED_USER_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc4 };
+	/** The codec ID of user record data stored uncompressed. */
+	private static final int STORED_CODEC_ID = 0;
+
+	// Protobuf field tags (field number << 3 | wire type) for the
+	// AggregatedRecord and Record messages
+	private static final int PARTITION_KEY_TABLE_TAG = (1 << 3) | 2;
+	private static final int EXPLICIT_HASH_KEY_TABLE_TAG = (2 << 3) | 2;
+	private static final int RECORDS_TAG = (3 << 3) | 2;
+	private static final int RECORD_PARTITION_KEY_INDEX_TAG = (1 << 3) | 0;
+	private static final int RECORD_EXPLICIT_HASH_KEY_INDEX_TAG = (2 << 3) | 0;
+	private static final int RECORD_DATA_TAG = (3 << 3) | 2;
 
 	// Kinesis Limits
 	// (https://docs.aws.amazon.com/kinesis/latest/APIReference/API_PutRecord.html)
@@ -68,44 +76,165 @@ public class AggRecord {
 	protected static final int AGGREGATION_OVERHEAD_BYTES = 256;
 	protected static final int PARTITION_KEY_MIN_LENGTH = 1;
 	protected static final int PARTITION_KEY_MAX_LENGTH = 256;
-
-	/** The current size of the aggregated protobuf message. */
-	private int aggregatedMessageSizeBytes;
-	/** The set of unique explicit hash keys in the protocol buffer message. */
-	private final KeySet explicitHashKeys;
-	/** The set of unique partition keys in the protocol buffer message. */
-	private final KeySet partitionKeys;
+	private static final int BINARY_HASH_KEY_LENGTH = 16;
+
+	/** The current number of user records in the protobuf message. */
+	private int numUserRecords;
+	/** The table of unique explicit hash keys in the protocol buffer message. */
+	private final KeyTable explicitHashKeys;
+	/** The table of unique partition keys in the protocol buffer message. */
+	private final KeyTable partitionKeys;
 	/**
-	 * The current builder object by which we're actively constructing a record.
+	 * For each entry in the partition key table, the index of the explicit hash
+	 * key derived from it, or -1 if it has only been added with an explicit hash
+	 * key of its own. A partition key is hashed at most once per aggregated
+	 * record.
+	 */
+	private int[] derivedExplicitHashKeyIndexes;
+	/**
+	 * The encoded protobuf message. Key table entries are written immediately
+	 * before the first record that refers to them, so the message only ever grows
+	 * at its end and can be checksummed as it is built.
 	 */
-	private AggregatedRecord.Builder aggregatedRecordBuilder;
+	private final WireBuffer message;
+	/** How this record's payload is compressed, or null if it isn't. */
+	private final RecordCompression compression;
 	/**
-	 * The message digest to use for calculating MD5 checksums per the protocol
+	 * For a record compressed as a whole, the compressed segments of the message
+	 * built so far, or null if the record isn't compressed as a whole. Each
+	 * segment is the uncompressed length, the compressed length and the
+	 * compressed bytes of a range of the message, so a record only grows while
+	 * the worst case compressed size of its uncompressed tail still fits.
+	 */
+	private final WireBuffer compressedSegments;
+	/** The number of bytes at the start of the message that are compressed. */
+	private int compressedMessageBytes;
+	/**
+	 * The running MD5 checksum of the encoded protobuf message, per the protocol
 	 * specification.
 	 */
 	private final MessageDigest md5;
-	/** The partition key for the entire aggregated record. */
+	/**
+	 * The message digest to use for deriving explicit hash keys from partition
+	 * keys.
+	 */
+	private final MessageDigest keyDigest;
+	/** Scratch space for the digest of a partition key. */
+	private final byte[] keyDigestBytes;
+	/** Scratch space for the decimal digits of an explicit hash key. */
+	private final byte[] explicitHashKeyBytes;
+	/**
+	 * The cache of explicit hash keys derived from partition keys, or null if
+	 * they are derived for every user record.
+	 */
+	private final ExplicitHashKeyCache explicitHashKeyCache;
+	/**
+	 * The pool this record is returned to once every holder has released it, or
+	 * null if it is not recycled.
+	 */
+	private final AggRecordPool pool;
+	/** The number of holders of this sealed record that have yet to release it. */
+	private final AtomicInteger references;
+	/**
+	 * The in-flight byte budget this sealed record counts against until it is
+	 * released, or null if there is none.
+	 */
+	private InFlightByteBudget budget;
+	/** The number of bytes this record took from its budget. */
+	private long budgetBytes;
+	/**
+	 * The partition key for the entire aggregated record, or null if it has not
+	 * been decoded from the key table yet.
+	 */
 	private String aggPartitionKey;
-	/** The explicit hash key for the entire aggregated record. */
+	/**
+	 * The explicit hash key for the entire aggregated record, or null if it has
+	 * not been decoded from the key table yet.
+	 */
 	private String aggExplicitHashKey;
+	/**
+	 * The memoized serialized form of this record, or null if it has not been
+	 * built since the last change to the record's contents.
+	 */
+	private byte[] recordBytes;
+	/**
+	 * Whether this record has been handed off for transmission and can no longer
+	 * be modified.
+	 */
+	private boolean sealed;
 
 	/**
 	 * Construct a new (empty) aggregated Kinesis record.
 	 */
 	public AggRecord() {
-		this.aggregatedRecordBuilder = AggregatedRecord.newBuilder();
-		this.aggregatedMessageSizeBytes = 0;
-		this.explicitHashKeys = new KeySet();
-		this.partitionKeys = new KeySet();
+		this(null);
+	}
 
-		this.aggExplicitHashKey = "";
-		this.aggPartitionKey = "";
+	/**
+	 * Construct a new (empty) aggregated Kinesis record that looks up the explicit
+	 * hash keys of user records added without one in a shared cache before
+	 * deriving them from the partition key.
+	 * 
+	 * @param explicitHashKeyCache The cache to use, or null to derive every
+	 *                             explicit hash key.
+	 */
+	public AggRecord(ExplicitHashKeyCache explicitHashKeyCache) {
+		this(explicitHashKeyCache, null, null);
+	}
+
+	/**
+	 * Construct a new (empty) aggregated Kinesis record whose payload is
+	 * compressed. The size limits of the record apply to its compressed size.
+	 * 
+	 * @param explicitHashKeyCache The cache to use, or null to derive every
+	 *                             explicit hash key.
+	 * @param compression          How to compress the record, or null to leave
+	 *                             it uncompressed.
+	 */
+	public AggRecord(ExplicitHashKeyCache explicitHashKeyCache, RecordCompression compression) {
+		this(explicitHashKeyCache, compression, null);
+	}
+
+	/**
+	 * Construct a new (empty) aggregated Kinesis record that belongs to a
+	 * recycling pool.
+	 * 
+	 * @param explicitHashKeyCache The cache to use, or null to derive every
+	 *                             explicit hash key.
+	 * @param compression          How to compress the record, or null.
+	 * @param pool                 The pool to return this record to once it has
+	 *                             been released, or null if it isn't recycled.
+	 */
+	AggRecord(ExplicitHashKeyCache explicitHashKeyCache, RecordCompression compression, AggRecordPool pool) {
+		this.explicitHashKeyCache = explicitHashKeyCache;
+		this.compression = compression;
+		this.compressedSegments = compression != null && compression.getScope() == Scope.AGGREGATED_RECORD
+				? new WireBuffer()
+				: null;
+		this.compressedMessageBytes = 0;
+		this.pool = pool;
+		this.references = new AtomicInteger();
+		this.budget = null;
+		this.budgetBytes = 0;
+		this.numUserRecords = 0;
+		this.message = new WireBuffer();
+		this.explicitHashKeys = new KeyTable();
+		this.partitionKeys = new KeyTable();
+		this.derivedExplicitHashKeyIndexes = new int[16];
+
+		this.aggExplicitHashKey = null;
+		this.aggPartitionKey = null;
+		this.recordBytes = null;
+		this.sealed = false;
 
 		try {
 			this.md5 = MessageDigest.getInstance(MESSAGE_DIGEST_NAME);
+			this.keyDigest = MessageDigest.getInstance(MESSAGE_DIGEST_NAME);
 		} catch (NoSuchAlgorithmException e) {
 			throw new IllegalStateException("Could not create an MD5 message digest.", e);
 		}
+		this.keyDigestBytes = new byte[this.keyDigest.getDigestLength()];
+		this.explicitHashKeyBytes = new byte[HashKey.MAX_DECIMAL_DIGITS];
 	}
 
 	/**
@@ -116,11 +245,13 @@ public class AggRecord {
 	 *         method.
 	 */
 	public int getNumUserRecords() {
-		return this.aggregatedRecordBuilder.getRecordsCount();
+		return this.numUserRecords;
 	}
 
 	/**
 	 * Get the current size in bytes of the fully serialized aggregated record.
+	 * For a record compressed as a whole this is an upper bound until the
+	 * record has been serialized or sealed, after which it is exact.
 	 * 
 	 * @return The current size in bytes of this message in its serialized form.
 	 */
@@ -129,12 +260,102 @@ public class AggRecord {
 			return 0;
 		}
 
-		return AGGREGATED_RECORD_MAGIC.length + this.aggregatedMessageSizeBytes + this.md5.getDigestLength();
+		if (this.compressedSegments != null) {
+			return getCompressedSizeBound(0);
+		}
+		return getUncompressedSizeBytes();
+	}
+
+	/**
+	 * Get the size in bytes this aggregated record would have without
+	 * compression, which is its serialized size if it isn't compressed as a
+	 * whole.
+	 * 
+	 * @return The size in bytes of this message in the uncompressed Kinesis
+	 *         aggregated record format.
+	 */
+	public int getUncompressedSizeBytes() {
+		if (getNumUserRecords() == 0) {
+			return 0;
+		}
+
+		return AGGREGATED_RECORD_MAGIC.length + this.message.size() + this.md5.getDigestLength();
+	}
+
+	/**
+	 * @return How this record's payload is compressed, or null if it isn't.
+	 */
+	public RecordCompression getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * Calculate the largest serialized size of a record compressed as a whole if
+	 * its message grew by a number of bytes: the compressed segments so far plus
+	 * the worst case for the uncompressed tail.
+	 */
+	private int getCompressedSizeBound(int additionalMessageBytes) {
+		int size = COMPRESSED_RECORD_MAGIC.length + 1 + this.compressedSegments.size() + this.md5.getDigestLength();
+		int pending = this.message.size() - this.compressedMessageBytes + additionalMessageBytes;
+		if (pending > 0) {
+			int maxCompressed = this.compression.getCodec().maxCompressedLength(pending);
+			size += WireBuffer.varintSize(pending) + WireBuffer.varintSize(maxCompressed) + maxCompressed;
+		}
+		return size;
+	}
+
+	/**
+	 * Compress the uncompressed tail of the message of a record compressed as a
+	 * whole into a new segment.
+	 * 
+	 * @return True if there was anything to compress, false otherwise.
+	 */
+	private boolean compressPendingMessage() {
+		int pending = this.message.size() - this.compressedMessageBytes;
+		if (pending == 0) {
+			return false;
+		}
+
+		byte[] compressed = this.message.compress(this.compression.getCodec(), this.compressedMessageBytes);
+		this.compressedSegments.writeVarint(pending);
+		this.compressedSegments.writeVarint(compressed.length);
+		this.compressedSegments.writeBytes(compressed, 0, compressed.length);
+		this.compressedMessageBytes = this.message.size();
+		return true;
+	}
+
+	/**
+	 * @return The size the serialized record would have uncompressed if its
+	 *         message grew by a number of bytes.
+	 */
+	private int getUncompressedSize(int messageBytes) {
+		return AGGREGATED_RECORD_MAGIC.length + this.message.size() + messageBytes + this.md5.getDigestLength();
+	}
+
+	/**
+	 * Check whether the message can grow by a number of bytes without taking the
+	 * serialized record over the Kinesis limit. A record compressed as a whole
+	 * first compares the worst case for its uncompressed tail, and only
+	 * compresses the tail to find its actual size when that doesn't fit.
+	 */
+	private boolean hasRoomFor(int messageBytes) {
+		if (this.compressedSegments == null) {
+			return getSizeBytes() + messageBytes <= MAX_BYTES_PER_RECORD;
+		}
+
+		if (getUncompressedSize(messageBytes) > this.compression.getMaxUncompressedBytes()) {
+			return false;
+		}
+		if (getCompressedSizeBound(messageBytes) <= MAX_BYTES_PER_RECORD) {
+			return true;
+		}
+		return compressPendingMessage() && getCompressedSizeBound(messageBytes) <= MAX_BYTES_PER_RECORD;
 	}
 
 	/**
 	 * Serialize this record to bytes. Has no side effects (i.e. does not affect the
-	 * contents of this record object).
+	 * contents of this record object). The serialized form is built at most once
+	 * between changes to this record, so repeated calls only pay for a copy.
 	 * 
 	 * @return A byte array containing an Kinesis aggregated format-compatible
 	 *         Kinesis record.
@@ -144,21 +365,154 @@ public class AggRecord {
 			return new byte[0];
 		}
 
-		byte[] messageBody = this.aggregatedRecordBuilder.build().toByteArray();
+		return getRecordBytes().clone();
+	}
 
-		this.md5.reset();
-		byte[] messageDigest = this.md5.digest(messageBody);
+	/**
+	 * Get the memoized serialized form of this record, building it if the record
+	 * has changed since it was last serialized. The returned array is shared and
+	 * must not be modified.
+	 * 
+	 * @return A byte array containing an Kinesis aggregated format-compatible
+	 *         Kinesis record.
+	 */
+	private byte[] getRecordBytes() {
+		if (this.recordBytes == null && this.compressedSegments != null) {
+			compressPendingMessage();
+			byte[] out = new byte[getSizeBytes()];
+			System.arraycopy(COMPRESSED_RECORD_MAGIC, 0, out, 0, COMPRESSED_RECORD_MAGIC.length);
+			out[COMPRESSED_RECORD_MAGIC.length] = (byte) this.compression.getCodec().getId();
+			int position = this.compressedSegments.copyTo(out, COMPRESSED_RECORD_MAGIC.length + 1);
+			writeMessageDigest(out, position);
+			this.recordBytes = out;
+		} else if (this.recordBytes == null) {
+			byte[] out = new byte[getSizeBytes()];
+			System.arraycopy(AGGREGATED_RECORD_MAGIC, 0, out, 0, AGGREGATED_RECORD_MAGIC.length);
+			int position = this.message.copyTo(out, AGGREGATED_RECORD_MAGIC.length);
+			writeMessageDigest(out, position);
+			this.recordBytes = out;
+		}
 
-		// The way Java's API works is that write(byte[]) throws IOException on
-		// a ByteArrayOutputStream, but
-		// write(byte[],int,int) doesn't so that's why we're using the long
-		// version of "write" here
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(getSizeBytes());
-		baos.write(AGGREGATED_RECORD_MAGIC, 0, AGGREGATED_RECORD_MAGIC.length);
-		baos.write(messageBody, 0, messageBody.length);
-		baos.write(messageDigest, 0, messageDigest.length);
+		return this.recordBytes;
+	}
+
+	/**
+	 * @return True if this record has been sealed for transmission and can no
+	 *         longer be modified, false otherwise.
+	 */
+	public boolean isSealed() {
+		return this.sealed;
+	}
+
+	/**
+	 * Freeze this record once it is handed off for transmission. The serialized
+	 * form is built eagerly so that listeners on other threads only ever read it,
+	 * and any further attempt to add user records or clear the record fails.
+	 */
+	void seal() {
+		if (getNumUserRecords() > 0) {
+			getRecordBytes();
+			getPartitionKey();
+			getExplicitHashKey();
+		}
+		this.sealed = true;
+	}
+
+	/**
+	 * Set the number of holders that must release this sealed record before it
+	 * is recycled.
+	 * 
+	 * @param holders The number of holders, at least one.
+	 */
+	void retain(int holders) {
+		this.references.set(holders);
+	}
 
-		return baos.toByteArray();
+	/**
+	 * Record that this sealed record counts against an in-flight byte budget
+	 * until every holder has released it.
+	 * 
+	 * @param budget The budget the record's size has been taken from.
+	 * @param bytes  The number of bytes taken.
+	 */
+	void charge(InFlightByteBudget budget, long bytes) {
+		this.budget = budget;
+		this.budgetBytes = bytes;
+	}
+
+	/**
+	 * Release this record once it has been transmitted. After every holder (each
+	 * registered listener, or the caller of {@link RecordAggregator#clearAndGet()})
+	 * has released it, the record's size is returned to the aggregator's
+	 * in-flight byte budget, if it has one. When the aggregator recycles its
+	 * records, the record's buffers and digests are then reused for a later
+	 * aggregated record, so neither this record nor any request built from it
+	 * may be used afterwards. For records that neither count against a budget
+	 * nor are recycled this does nothing.
+	 * 
+	 * @throws IllegalStateException If a recycled or budgeted record is released
+	 *                               more times than it has holders.
+	 */
+	public void release() {
+		if (this.pool == null && this.budget == null) {
+			return;
+		}
+
+		int remaining = this.references.decrementAndGet();
+		if (remaining == 0) {
+			InFlightByteBudget charged = this.budget;
+			if (charged != null) {
+				this.budget = null;
+				charged.release(this.budgetBytes);
+			}
+			if (this.pool != null) {
+				this.pool.recycle(this);
+			}
+		} else if (remaining < 0) {
+			this.references.incrementAndGet();
+			throw new IllegalStateException("This aggregated record has already been released by every holder.");
+		}
+	}
+
+	/**
+	 * Return this record to the empty, unsealed state of a fresh instance so that
+	 * it can be reused, keeping its buffers, key tables and digests.
+	 */
+	void recycle() {
+		this.sealed = false;
+		clear();
+	}
+
+	private void checkNotSealed() {
+		if (this.sealed) {
+			throw new IllegalStateException(
+					"This aggregated record has been sealed for transmission and can no longer be modified.");
+		}
+	}
+
+	/**
+	 * Write the MD5 checksum of the message built so far into the output array.
+	 * The running digest has already consumed every byte of the message, so this
+	 * only finalizes a copy of it and leaves the running digest untouched for any
+	 * further user records.
+	 * 
+	 * @param dest   The array to write the checksum into
+	 * @param offset The position in the array to write the checksum at
+	 */
+	private void writeMessageDigest(byte[] dest, int offset) {
+		try {
+			MessageDigest snapshot;
+			try {
+				snapshot = (MessageDigest) this.md5.clone();
+			} catch (CloneNotSupportedException e) {
+				// the provider can't snapshot its state, so hash the whole message again
+				snapshot = MessageDigest.getInstance(MESSAGE_DIGEST_NAME);
+				this.message.update(snapshot, 0);
+			}
+			snapshot.digest(dest, offset, snapshot.getDigestLength());
+		} catch (DigestException | NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not calculate the MD5 checksum of the aggregated record.", e);
+		}
 	}
 
 	/**
@@ -166,13 +520,19 @@ public class AggRecord {
 	 * just like a fresh instance of this object.
 	 */
 	public void clear() {
+		checkNotSealed();
 		this.md5.reset();
-		this.aggExplicitHashKey = "";
-		this.aggPartitionKey = "";
-		this.aggregatedMessageSizeBytes = 0;
+		this.recordBytes = null;
+		this.aggExplicitHashKey = null;
+		this.aggPartitionKey = null;
+		this.numUserRecords = 0;
 		this.explicitHashKeys.clear();
 		this.partitionKeys.clear();
-		this.aggregatedRecordBuilder = AggregatedRecord.newBuilder();
+		this.message.reset();
+		if (this.compressedSegments != null) {
+			this.compressedSegments.reset();
+			this.compressedMessageBytes = 0;
+		}
 	}
 
 	/**
@@ -186,6 +546,10 @@ public class AggRecord {
 			return null;
 		}
 
+		// the first user record's keys are always at the start of the key tables
+		if (this.aggPartitionKey == null) {
+			this.aggPartitionKey = this.partitionKeys.getString(0);
+		}
 		return this.aggPartitionKey;
 	}
 
@@ -200,6 +564,9 @@ public class AggRecord {
 			return null;
 		}
 
+		if (this.aggExplicitHashKey == null) {
+			this.aggExplicitHashKey = this.explicitHashKeys.getString(0);
+		}
 		return this.aggExplicitHashKey;
 	}
 
@@ -210,20 +577,23 @@ public class AggRecord {
 	 * more user records). This calculation is highly dependent on the Kinesis
 	 * aggregated message format.
 	 * 
-	 * @param partitionKey    The partition key of the new record to simulate adding
-	 * @param explicitHashKey The explicit hash key of the new record to simulate
-	 *                        adding
-	 * @param data            The raw data of the new record to simulate adding
+	 * @param pkIndex    The index of the new record's partition key in the table of
+	 *                   known PKs, or -1 if it hasn't been added yet
+	 * @param pkLength   The encoded length of the new record's partition key
+	 * @param ehkIndex   The index of the new record's explicit hash key in the
+	 *                   table of known EHKs, or -1 if it hasn't been added yet
+	 * @param ehkLength  The encoded length of the new record's explicit hash key
+	 * @param dataLength The length of the new record's data
 	 * @return The new size of this existing record in bytes if a new user record
 	 *         with the specified parameters was added.
 	 * @see https://github.com/awslabs/amazon-kinesis-producer/blob/master/aggregation-format.md
 	 */
-	private int calculateRecordSize(String partitionKey, String explicitHashKey, byte[] data) {
+	private int calculateRecordSize(int pkIndex, int pkLength, int ehkIndex, int ehkLength, int dataLength) {
 		int messageSize = 0;
 
 		// has the partition key been added to the table of known PKs yet?
-		if (!this.partitionKeys.contains(partitionKey)) {
-			int pkLength = partitionKey.getBytes().length;
+		if (pkIndex < 0) {
+			pkIndex = this.partitionKeys.size();
 			messageSize += 1; // (message index + wire type for PK table)
 			messageSize += calculateVarintSize(pkLength); // size of pk length
 															// value
@@ -231,8 +601,8 @@ public class AggRecord {
 		}
 
 		// has the explicit hash key been added to the table of known EHKs yet?
-		if (!this.explicitHashKeys.contains(explicitHashKey)) {
-			int ehkLength = explicitHashKey.getBytes().length;
+		if (ehkIndex < 0) {
+			ehkIndex = this.explicitHashKeys.size();
 			messageSize += 1; // (message index + wire type for EHK table)
 			messageSize += calculateVarintSize(ehkLength); /* size of ehk length value */
 			messageSize += ehkLength; // actual ehk length
@@ -245,21 +615,16 @@ public class AggRecord {
 
 		// partition key field
 		innerRecordSize += 1; // (message index + wire type for PK index)
-		innerRecordSize += calculateVarintSize(
-				this.partitionKeys.getPotentialIndex(partitionKey)); /* size of pk index value */
+		innerRecordSize += calculateVarintSize(pkIndex); /* size of pk index value */
 
-		// explicit hash key field (this is optional)
-		if (explicitHashKey != null) {
-			innerRecordSize += 1; // (message index + wire type for EHK index)
-			innerRecordSize += calculateVarintSize(
-					this.explicitHashKeys.getPotentialIndex(explicitHashKey)); /* size of ehk index value */
-		}
+		// explicit hash key field
+		innerRecordSize += 1; // (message index + wire type for EHK index)
+		innerRecordSize += calculateVarintSize(ehkIndex); /* size of ehk index value */
 
 		// data field
 		innerRecordSize += 1; // (message index + wire type for record data)
-
-		innerRecordSize += calculateVarintSize(data.length); /* size of data length value */
-		innerRecordSize += data.length; // actual data length
+		innerRecordSize += calculateVarintSize(dataLength); /* size of data length value */
+		innerRecordSize += dataLength; // actual data length
 
 		messageSize += 1; // (message index + wire type for record)
 		messageSize += calculateVarintSize(innerRecordSize); /* size of entire record length value */
@@ -282,26 +647,7 @@ public class AggRecord {
 			throw new IllegalArgumentException("Size values should not be negative.");
 		}
 
-		int numBitsNeeded = 0;
-		if (value == 0) {
-			numBitsNeeded = 1;
-		} else {
-			// shift the value right one bit at a time until
-			// there are no more '1' bits left...this counts
-			// how many bits we need to represent the number
-			while (value > 0) {
-				numBitsNeeded++;
-				value = value >> 1;
-			}
-		}
-
-		// varints only use 7 bits of the byte for the actual value
-		int numVarintBytes = numBitsNeeded / 7;
-		if (numBitsNeeded % 7 > 0) {
-			numVarintBytes += 1;
-		}
-
-		return numVarintBytes;
+		return WireBuffer.varintSize(value);
 	}
 
 	/**
@@ -315,55 +661,187 @@ public class AggRecord {
 	 *         record or false if this aggregated record is too full.
 	 */
 	public boolean addUserRecord(String partitionKey, String explicitHashKey, byte[] data) {
-		// set the explicit hash key for the message to the partition key -
-		// required for encoding
-		explicitHashKey = explicitHashKey != null ? explicitHashKey : createExplicitHashKey(partitionKey);
+		checkNotSealed();
 
-		// validate values from the provided message
-		validatePartitionKey(partitionKey);
+		if (partitionKey == null) {
+			throw new IllegalArgumentException("Partition key cannot be null");
+		}
 		validateExplicitHashKey(explicitHashKey);
+
+		byte[] ehkBytes = explicitHashKey != null ? explicitHashKey.getBytes(StandardCharsets.UTF_8) : null;
+		return addEncodedUserRecord(partitionKey.getBytes(StandardCharsets.UTF_8), partitionKey, ehkBytes,
+				ehkBytes != null ? ehkBytes.length : 0, data);
+	}
+
+	/**
+	 * Add a new user record with a pre-encoded partition key and a binary explicit
+	 * hash key to this existing aggregated record if there is enough space (based
+	 * on the defined Kinesis limits for a PutRecord call). Once this record has
+	 * seen a partition key, adding further user records with it allocates
+	 * nothing.
+	 * 
+	 * @param partitionKey    The UTF-8 encoded partition key of the new user record
+	 *                        to add
+	 * @param explicitHashKey The explicit hash key of the new user record to add,
+	 *                        as a 16 byte big-endian unsigned integer, or null to
+	 *                        derive it from the partition key
+	 * @param data            The raw data of the new user record to add
+	 * @return True if the new user record was successfully added to this aggregated
+	 *         record or false if this aggregated record is too full.
+	 */
+	public boolean addUserRecord(byte[] partitionKey, byte[] explicitHashKey, byte[] data) {
+		checkNotSealed();
+
+		if (partitionKey == null) {
+			throw new IllegalArgumentException("Partition key cannot be null");
+		}
+
+		int ehkLength = 0;
+		if (explicitHashKey != null) {
+			if (explicitHashKey.length != BINARY_HASH_KEY_LENGTH) {
+				throw new IllegalArgumentException("Invalid explicitHashKey, binary form must be "
+						+ BINARY_HASH_KEY_LENGTH + " bytes, got " + explicitHashKey.length + " bytes");
+			}
+			ehkLength = HashKey.writeDecimal(HashKey.readLong(explicitHashKey, 0), HashKey.readLong(explicitHashKey, 8),
+					this.explicitHashKeyBytes, 0);
+		}
+
+		return addEncodedUserRecord(partitionKey, null, explicitHashKey != null ? this.explicitHashKeyBytes : null,
+				ehkLength, data);
+	}
+
+	/**
+	 * Add a new user record whose keys have already been encoded. Every other
+	 * addUserRecord method funnels into this one.
+	 * 
+	 * @param pkBytes      The UTF-8 encoded partition key
+	 * @param partitionKey The partition key as a string if the caller has one, or
+	 *                     null
+	 * @param ehkBytes     The UTF-8 encoded decimal explicit hash key, or null to
+	 *                     derive it from the partition key
+	 * @param ehkLength    The number of bytes of ehkBytes to use
+	 * @param data         The raw data of the new user record to add
+	 * @return True if the new user record was successfully added to this aggregated
+	 *         record or false if this aggregated record is too full.
+	 */
+	private boolean addEncodedUserRecord(byte[] pkBytes, String partitionKey, byte[] ehkBytes, int ehkLength,
+			byte[] data) {
+		// validate values from the provided message
+		validatePartitionKey(pkBytes);
 		validateData(data);
+		if (data != null && this.compression != null && this.compression.getScope() == Scope.USER_RECORD) {
+			data = compressUserRecord(data);
+		}
+
+		int pkHash = KeyTable.hash(pkBytes, 0, pkBytes.length);
+		int pkIndex = this.partitionKeys.indexOf(pkBytes, 0, pkBytes.length, pkHash);
+
+		// set the explicit hash key for the message to one derived from the
+		// partition key - required for encoding
+		boolean derived = ehkBytes == null;
+		int ehkIndex = -1;
+		int ehkHash = 0;
+		if (derived && pkIndex >= 0) {
+			ehkIndex = this.derivedExplicitHashKeyIndexes[pkIndex];
+		}
+		if (ehkIndex < 0) {
+			if (derived) {
+				ehkBytes = this.explicitHashKeyBytes;
+				ehkLength = deriveExplicitHashKey(pkBytes, partitionKey);
+			}
+			ehkHash = KeyTable.hash(ehkBytes, 0, ehkLength);
+			ehkIndex = this.explicitHashKeys.indexOf(ehkBytes, 0, ehkLength, ehkHash);
+		}
 
 		// Validate new record size won't overflow max size for a
 		// PutRecordRequest
-		int sizeOfNewRecord = calculateRecordSize(partitionKey, explicitHashKey, data);
-		if (getSizeBytes() + sizeOfNewRecord > MAX_BYTES_PER_RECORD) {
+		int dataLength = data != null ? data.length : 0;
+		int sizeOfNewRecord = calculateRecordSize(pkIndex, pkBytes.length, ehkIndex, ehkLength, dataLength);
+		boolean fits = sizeOfNewRecord <= MAX_BYTES_PER_RECORD && hasRoomFor(sizeOfNewRecord);
+		// the worst-case compressed size of a lone user record may be too large
+		// when its actual compressed size is not, so find out by compressing it
+		boolean compressAlone = !fits && getNumUserRecords() == 0 && this.compressedSegments != null
+				&& sizeOfNewRecord <= MAX_BYTES_PER_RECORD
+				&& getUncompressedSize(sizeOfNewRecord) <= this.compression.getMaxUncompressedBytes();
+		if (!fits && !compressAlone && (sizeOfNewRecord > MAX_BYTES_PER_RECORD || getNumUserRecords() == 0)) {
+			String limit;
+			if (this.compressedSegments == null || sizeOfNewRecord > MAX_BYTES_PER_RECORD) {
+				// a record compressed as a whole must also fit before compression
+				limit = "the maximum size before Aggregation encoding"
+						+ (this.compressedSegments != null ? " and compression" : "") + " of "
+						+ (MAX_BYTES_PER_RECORD - AGGREGATION_OVERHEAD_BYTES) + " bytes";
+			} else {
+				limit = "the maximum uncompressed size of a compressed aggregated record of "
+						+ this.compression.getMaxUncompressedBytes() + " bytes";
+			}
+			throw oversizedRecord(partitionKey != null ? partitionKey : new String(pkBytes, StandardCharsets.UTF_8),
+					ehkIndex >= 0 ? this.explicitHashKeys.getString(ehkIndex)
+							: new String(ehkBytes, 0, ehkLength, StandardCharsets.UTF_8),
+					sizeOfNewRecord, limit);
+		} else if (!fits && !compressAlone) {
 			return false;
-		} else if (sizeOfNewRecord > MAX_BYTES_PER_RECORD) {
-			throw new IllegalArgumentException(
-					"Input record (PK=" + partitionKey + ", EHK=" + explicitHashKey + ", SizeBytes=" + sizeOfNewRecord
-							+ ") is larger than the maximum size before Aggregation encoding of "
-							+ (MAX_BYTES_PER_RECORD - AGGREGATION_OVERHEAD_BYTES) + " bytes");
 		}
 
-		Record.Builder newRecord = Record.newBuilder()
-				.setData(data != null ? ByteString.copyFrom(data) : ByteString.EMPTY);
+		int messageStart = this.message.size();
 
-		ExistenceIndexPair pkAddResult = this.partitionKeys.add(partitionKey);
-		if (pkAddResult.getFirst().booleanValue()) {
-			this.aggregatedRecordBuilder.addPartitionKeyTable(partitionKey);
+		// a negative result from KeyTable.add means the key is new to the table
+		if (pkIndex < 0) {
+			pkIndex = -(this.partitionKeys.add(pkBytes, 0, pkBytes.length, pkHash) + 1);
+			if (pkIndex == this.derivedExplicitHashKeyIndexes.length) {
+				this.derivedExplicitHashKeyIndexes = Arrays.copyOf(this.derivedExplicitHashKeyIndexes, pkIndex * 2);
+			}
+			this.derivedExplicitHashKeyIndexes[pkIndex] = -1;
+			this.message.writeLengthDelimited(PARTITION_KEY_TABLE_TAG, pkBytes, 0, pkBytes.length);
 		}
-		newRecord.setPartitionKeyIndex(pkAddResult.getSecond());
 
-		ExistenceIndexPair ehkAddResult = this.explicitHashKeys.add(explicitHashKey);
-		if (ehkAddResult.getFirst().booleanValue()) {
-			this.aggregatedRecordBuilder.addExplicitHashKeyTable(explicitHashKey);
+		if (ehkIndex < 0) {
+			ehkIndex = -(this.explicitHashKeys.add(ehkBytes, 0, ehkLength, ehkHash) + 1);
+			this.message.writeLengthDelimited(EXPLICIT_HASH_KEY_TABLE_TAG, ehkBytes, 0, ehkLength);
 		}
-		newRecord.setExplicitHashKeyIndex(ehkAddResult.getSecond());
 
-		this.aggregatedMessageSizeBytes += sizeOfNewRecord;
-		this.aggregatedRecordBuilder.addRecords(newRecord.build());
+		if (derived) {
+			this.derivedExplicitHashKeyIndexes[pkIndex] = ehkIndex;
+		}
 
-		// if this is the first record, we use its partition key and hash key
-		// for the entire agg record
-		if (this.aggregatedRecordBuilder.getRecordsCount() == 1) {
-			this.aggPartitionKey = partitionKey;
-			this.aggExplicitHashKey = explicitHashKey;
+		// append the Record message directly in its wire format
+		int innerRecordSize = 1 + WireBuffer.varintSize(pkIndex) + 1 + WireBuffer.varintSize(ehkIndex) + 1
+				+ WireBuffer.varintSize(dataLength) + dataLength;
+		this.message.writeByte(RECORDS_TAG);
+		this.message.writeVarint(innerRecordSize);
+		this.message.writeByte(RECORD_PARTITION_KEY_INDEX_TAG);
+		this.message.writeVarint(pkIndex);
+		this.message.writeByte(RECORD_EXPLICIT_HASH_KEY_INDEX_TAG);
+		this.message.writeVarint(ehkIndex);
+		this.message.writeByte(RECORD_DATA_TAG);
+		this.message.writeVarint(dataLength);
+		if (dataLength > 0) {
+			this.message.writeBytes(data, 0, dataLength);
+		}
+		this.numUserRecords++;
+		this.recordBytes = null;
+
+		// fold everything this record appended into the running checksum
+		this.message.update(this.md5, messageStart);
+
+		if (compressAlone) {
+			compressPendingMessage();
+			if (getSizeBytes() > MAX_BYTES_PER_RECORD) {
+				IllegalArgumentException e = oversizedRecord(getPartitionKey(), getExplicitHashKey(),
+						sizeOfNewRecord, "the maximum size of " + MAX_BYTES_PER_RECORD + " bytes even when compressed");
+				clear();
+				throw e;
+			}
 		}
 
 		return true;
 	}
 
+	private static IllegalArgumentException oversizedRecord(String partitionKey, String explicitHashKey,
+			int sizeBytes, String limit) {
+		return new IllegalArgumentException("Input record (PK=" + partitionKey + ", EHK=" + explicitHashKey
+				+ ", SizeBytes=" + sizeBytes + ") is larger than " + limit);
+	}
+
 	/**
 	 * Convert the aggregated data in this record into a single PutRecordRequest.
 	 * This method has no side effects (i.e. it will not clear the current contents
@@ -375,7 +853,6 @@ public class AggRecord {
 	 *         record.
 	 */
 	public PutRecordsRequest toPutRecordRequest(String streamName) {
-		byte[] recordBytes = toRecordBytes();
 		return PutRecordsRequest.builder().streamName(streamName).records(toPutRecordsRequestEntry()).build();
 	}
 
@@ -391,7 +868,7 @@ public class AggRecord {
 	public PutRecordsRequestEntry toPutRecordsRequestEntry() {
 		if (this.getNumUserRecords() > 0) {
 			PutRecordsRequestEntry.Builder prre = PutRecordsRequestEntry.builder().partitionKey(this.getPartitionKey())
-					.data(SdkBytes.fromByteBuffer(ByteBuffer.wrap(this.toRecordBytes())));
+					.data(SdkBytes.fromByteArray(this.getRecordBytes()));
 
 			String ehk = this.getExplicitHashKey();
 			if (ehk != null) {
@@ -404,6 +881,30 @@ public class AggRecord {
 		}
 	}
 
+	/**
+	 * Compress the data of a user record, framed so that RecordDeaggregator can
+	 * recognize and decompress it: the compressed user record magic number, the
+	 * codec ID, the uncompressed length as a varint and the compressed bytes.
+	 * Data that doesn't get smaller is stored as it is, under codec ID 0.
+	 * 
+	 * @param data The raw data of the user record.
+	 * @return The framed data to store in the aggregated record.
+	 */
+	private byte[] compressUserRecord(byte[] data) {
+		RecordCodec codec = this.compression.getCodec();
+		byte[] compressed = codec.compress(data, 0, data.length);
+		boolean stored = compressed.length >= data.length;
+		byte[] payload = stored ? data : compressed;
+
+		int headerLength = COMPRESSED_USER_RECORD_MAGIC.length + 1 + WireBuffer.varintSize(data.length);
+		byte[] framed = new byte[headerLength + payload.length];
+		System.arraycopy(COMPRESSED_USER_RECORD_MAGIC, 0, framed, 0, COMPRESSED_USER_RECORD_MAGIC.length);
+		framed[COMPRESSED_USER_RECORD_MAGIC.length] = (byte) (stored ? STORED_CODEC_ID : codec.getId());
+		WireBuffer.writeVarint(data.length, framed, COMPRESSED_USER_RECORD_MAGIC.length + 1);
+		System.arraycopy(payload, 0, framed, headerLength, payload.length);
+		return framed;
+	}
+
 	/**
 	 * Validate the data portion of an input Kinesis user record.
 	 * 
@@ -421,25 +922,13 @@ public class AggRecord {
 	/**
 	 * Validate the partition key of an input Kinesis user record.
 	 * 
-	 * @param partitionKey The string containing the input partition key to
-	 *                     validate.
+	 * @param partitionKey The UTF-8 encoded partition key to validate.
 	 */
-	private void validatePartitionKey(final String partitionKey) {
-		if (partitionKey == null) {
-			throw new IllegalArgumentException("Partition key cannot be null");
-		}
-
-		if (partitionKey.getBytes().length < PARTITION_KEY_MIN_LENGTH
-				|| partitionKey.getBytes().length > PARTITION_KEY_MAX_LENGTH) {
+	private void validatePartitionKey(final byte[] partitionKey) {
+		if (partitionKey.length < PARTITION_KEY_MIN_LENGTH || partitionKey.length > PARTITION_KEY_MAX_LENGTH) {
 			throw new IllegalArgumentException(
 					"Invalid partition key. Length must be at least " + PARTITION_KEY_MIN_LENGTH + " and at most "
-							+ PARTITION_KEY_MAX_LENGTH + ", got length of " + partitionKey.getBytes().length);
-		}
-
-		try {
-			partitionKey.getBytes(StandardCharsets.UTF_8);
-		} catch (Exception e) {
-			throw new IllegalArgumentException("Partition key must be valid " + StandardCharsets.UTF_8.displayName());
+							+ PARTITION_KEY_MAX_LENGTH + ", got length of " + partitionKey.length);
 		}
 	}
 
@@ -454,140 +943,74 @@ public class AggRecord {
 			return;
 		}
 
-		BigInteger b = null;
 		try {
-			b = new BigInteger(explicitHashKey);
-			if (b.compareTo(UINT_128_MAX) > 0 || b.compareTo(BigInteger.ZERO) < 0) {
-				throw new IllegalArgumentException(
-						"Invalid explicitHashKey, must be greater or equal to zero and less than or equal to (2^128 - 1), got "
-								+ explicitHashKey);
-			}
+			HashKey.parse(explicitHashKey);
 		} catch (NumberFormatException e) {
 			throw new IllegalArgumentException("Invalid explicitHashKey, must be an integer, got " + explicitHashKey);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(
+					"Invalid explicitHashKey, must be greater or equal to zero and less than or equal to (2^128 - 1), got "
+							+ explicitHashKey);
 		}
 	}
 
 	/**
-	 * Calculate a new explicit hash key based on the input partition key (following
-	 * the algorithm from the original KPL).
+	 * Derive the explicit hash key for a user record that was added without one,
+	 * using the shared cache if this record has one, and write its decimal digits
+	 * into the explicit hash key scratch array.
 	 * 
-	 * @param partitionKey The partition key to seed the new explicit hash key with
-	 * @return An explicit hash key based on the input partition key generated using
-	 *         an algorithm from the original KPL.
+	 * @param pkBytes      The UTF-8 encoded partition key of the user record
+	 * @param partitionKey The partition key as a string, or null to decode it
+	 *                     from pkBytes if the cache needs it
+	 * @return The number of digits written.
 	 */
-	protected String createExplicitHashKey(final String partitionKey) {
-		BigInteger hashKey = BigInteger.ZERO;
-
-		this.md5.reset();
-		byte[] pkDigest = this.md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8));
-
-		for (int i = 0; i < this.md5.getDigestLength(); i++) {
-			BigInteger p = new BigInteger(String.valueOf((int) pkDigest[i] & 0xFF)); // convert
-																						// to
-																						// unsigned
-																						// integer
-			BigInteger shifted = p.shiftLeft((16 - i - 1) * 8);
-			hashKey = hashKey.add(shifted);
-		}
-
-		return hashKey.toString(10);
-	}
-
-	/**
-	 * A class for tracking unique partition keys or explicit hash keys for an
-	 * aggregated Kinesis record. Also assists in keeping track of indexes for their
-	 * locations in the protobuf tables.
-	 */
-	private class KeySet {
-		/** The list of unique keys in this keyset. */
-		private List<String> keys;
-		/** A lookup mapping of key to index in protobuf table. */
-		private Map<String, Long> lookup;
-
-		/**
-		 * Create a new empty keyset.
-		 */
-		public KeySet() {
-			this.keys = new LinkedList<>();
-			this.lookup = new TreeMap<>();
-		}
-
-		/**
-		 * If the input key were added to this KeySet, determine what its resulting
-		 * index would be.
-		 * 
-		 * @param s The input string to potentially add to the KeySet
-		 * 
-		 * @return The table index that this string would occupy if it were added to
-		 *         this KeySet.
-		 */
-		public Long getPotentialIndex(String s) {
-			Long it = this.lookup.get(s);
-			if (it != null) {
-				return it;
-			}
-
-			return Long.valueOf(this.keys.size());
-		}
-
-		/**
-		 * Add a new key to this keyset.
-		 * 
-		 * @param s The key to add to the keyset.
-		 * 
-		 * @return A pair of <boolean,long>. The boolean is true if this key is not
-		 *         already in this keyset, false otherwise. The long indicates the index
-		 *         of the key.
-		 */
-		public ExistenceIndexPair add(String s) {
-			Long it = this.lookup.get(s);
-			if (it != null) {
-				return new ExistenceIndexPair(false, it);
+	private int deriveExplicitHashKey(final byte[] pkBytes, String partitionKey) {
+		if (this.explicitHashKeyCache != null) {
+			if (partitionKey == null) {
+				partitionKey = new String(pkBytes, StandardCharsets.UTF_8);
 			}
 
-			if (!this.lookup.containsKey(s)) {
-				this.lookup.put(s, Long.valueOf(this.keys.size()));
+			HashKey hashKey = this.explicitHashKeyCache.get(partitionKey);
+			if (hashKey == null) {
+				digestPartitionKey(pkBytes);
+				hashKey = HashKey.fromDigest(this.keyDigestBytes);
+				this.explicitHashKeyCache.put(partitionKey, hashKey);
 			}
-
-			this.keys.add(s);
-			return new ExistenceIndexPair(true, Long.valueOf(this.keys.size() - 1));
-		}
-
-		/**
-		 * @return True if this keyset contains the input key, false otherwise.
-		 */
-		public boolean contains(String s) {
-			return s != null && this.lookup.containsKey(s);
+			return hashKey.writeDecimal(this.explicitHashKeyBytes, 0);
 		}
 
-		/**
-		 * Clear all the contents of this keyset.
-		 */
-		public void clear() {
-			this.keys.clear();
-			this.lookup.clear();
-		}
-	};
+		digestPartitionKey(pkBytes);
+		return HashKey.writeDecimal(HashKey.readLong(this.keyDigestBytes, 0), HashKey.readLong(this.keyDigestBytes, 8),
+				this.explicitHashKeyBytes, 0);
+	}
 
 	/**
-	 * A helper class for use with the KeySet that indicates whether or not a key
-	 * exists in the KeySet and what its saved index would be.
+	 * Calculate the digest that seeds the explicit hash key of a partition key
+	 * (following the algorithm from the original KPL) into the key digest scratch
+	 * array.
+	 * 
+	 * @param pkBytes The UTF-8 encoded partition key
 	 */
-	private class ExistenceIndexPair {
-		private Boolean first;
-		private Long second;
-
-		public ExistenceIndexPair(Boolean first, Long second) {
-			this.first = first;
-			this.second = second;
-		}
-
-		public Boolean getFirst() {
-			return this.first;
+	private void digestPartitionKey(final byte[] pkBytes) {
+		this.keyDigest.reset();
+		this.keyDigest.update(pkBytes);
+		try {
+			this.keyDigest.digest(this.keyDigestBytes, 0, this.keyDigestBytes.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException("Could not calculate the MD5 digest of the partition key.", e);
 		}
+	}
 
-		public Long getSecond() {
-			return this.second;
-		}
+	/**
+	 * Calculate a new explicit hash key based on the input partition key (following
+	 * the algorithm from the original KPL).
+	 * 
+	 * @param partitionKey The partition key to seed the new explicit hash key with
+	 * @return An explicit hash key based on the input partition key generated using
+	 *         an algorithm from the original KPL.
+	 */
+	protected String createExplicitHashKey(final String partitionKey) {
+		digestPartitionKey(partitionKey.getBytes(StandardCharsets.UTF_8));
+		return HashKey.fromDigest(this.keyDigestBytes).toString();
 	}
 }
@@ -0,0 +1,397 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A record aggregator that any number of threads can add user records to
+ * without taking a lock. User records are handed to a bounded lock-free queue,
+ * and a single dedicated writer thread drains the queue into a
+ * {@link RecordAggregator}, which notifies its listeners as usual. The
+ * aggregator itself is only ever touched by the writer thread, so it needs no
+ * synchronization, and producers only ever contend on one atomic counter.
+ *
+ * When the writer thread finds the queue empty, it waits according to the
+ * {@link WaitStrategy}; when producers find the queue full, they follow the
+ * {@link BackpressurePolicy}. User records that the aggregator rejects (e.g.
+ * because they are too large) are counted and the last such error is kept,
+ * since they are only discovered on the writer thread.
+ *
+ * Call {@link #close()} to add the remaining user records, complete the last
+ * aggregated record and stop the writer thread. Completed records are only
+ * handed to the aggregator's listeners, so it must have at least one. If the
+ * writer thread dies, the aggregator closes and producers get an
+ * IllegalStateException rather than waiting for it.
+ *
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class AsyncRecordAggregator implements AutoCloseable {
+	/**
+	 * How the writer thread waits for user records when the queue is empty, and
+	 * how blocked producers wait for space when it is full.
+	 */
+	public enum WaitStrategy {
+		/** Check again immediately. Lowest latency, but uses a whole core. */
+		BUSY_SPIN,
+		/** Yield the processor between checks. */
+		YIELD,
+		/** Park the thread until there is work to do. Uses no CPU while idle. */
+		PARK
+	}
+
+	/** What a producer does when the queue is full. */
+	public enum BackpressurePolicy {
+		/** Wait for the writer thread to make space. */
+		BLOCK,
+		/** Discard the user record and return false. */
+		DROP,
+		/** Throw an IllegalStateException. */
+		FAIL
+	}
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+
+	/** How long a blocked producer parks between checks for space. */
+	private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	/** The longest the writer thread parks before checking the queue anyway. */
+	private static final long WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final RecordAggregator aggregator;
+	private final MpscRecordQueue queue;
+	private final WaitStrategy waitStrategy;
+	private final BackpressurePolicy backpressurePolicy;
+	private final Thread writer;
+
+	/** True while the writer thread is parked or about to park. */
+	private volatile boolean writerParked;
+	/** True once close has been called or the writer thread has died. */
+	private volatile boolean closed;
+	/**
+	 * The number of producers between their check of closed and the end of
+	 * their offer. The writer thread only stops once this is zero, so that no
+	 * user record is queued behind its final poll.
+	 */
+	private final AtomicInteger activeProducers;
+	/** What killed the writer thread, or null while it is running normally. */
+	private volatile Throwable writerFailure;
+
+	private final AtomicLong droppedRecordCount;
+	private final AtomicLong failedRecordCount;
+	private volatile Exception lastFailure;
+
+	/**
+	 * Construct a new asynchronous aggregator with a queue of
+	 * {@value #DEFAULT_QUEUE_CAPACITY} user records whose writer thread parks
+	 * when idle and whose producers block when the queue is full.
+	 * 
+	 * @param aggregator The aggregator to drain the queue into. Register its
+	 *                   listeners before passing it in; from then on it belongs
+	 *                   to the writer thread and must not be used directly.
+	 * @throws IllegalArgumentException If the aggregator has no listeners.
+	 */
+	public AsyncRecordAggregator(RecordAggregator aggregator) {
+		this(aggregator, DEFAULT_QUEUE_CAPACITY, WaitStrategy.PARK, BackpressurePolicy.BLOCK);
+	}
+
+	/**
+	 * Construct a new asynchronous aggregator and start its writer thread.
+	 * 
+	 * @param aggregator         The aggregator to drain the queue into. Register
+	 *                           its listeners before passing it in; from then on
+	 *                           it belongs to the writer thread and must not be
+	 *                           used directly.
+	 * @param queueCapacity      The maximum number of user records waiting in the
+	 *                           queue, rounded up to a power of two.
+	 * @param waitStrategy       How the writer thread waits for user records.
+	 * @param backpressurePolicy What producers do when the queue is full.
+	 * @throws IllegalArgumentException If the aggregator has no listeners.
+	 */
+	public AsyncRecordAggregator(RecordAggregator aggregator, int queueCapacity, WaitStrategy waitStrategy,
+			BackpressurePolicy backpressurePolicy) {
+		if (aggregator == null || waitStrategy == null || backpressurePolicy == null) {
+			throw new IllegalArgumentException("Aggregator, wait strategy and backpressure policy cannot be null");
+		}
+		if (!aggregator.hasListeners()) {
+			throw new IllegalArgumentException(
+					"Register a listener with onRecordComplete before passing an aggregator to AsyncRecordAggregator");
+		}
+
+		this.aggregator = aggregator;
+		this.queue = new MpscRecordQueue(queueCapacity);
+		this.waitStrategy = waitStrategy;
+		this.backpressurePolicy = backpressurePolicy;
+		this.writerParked = false;
+		this.closed = false;
+		this.activeProducers = new AtomicInteger();
+		this.writerFailure = null;
+		this.droppedRecordCount = new AtomicLong();
+		this.failedRecordCount = new AtomicLong();
+		this.lastFailure = null;
+
+		this.writer = new Thread(this::drain, "kinesis-aggregator-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * @return The number of user records the queue can hold.
+	 */
+	public int getQueueCapacity() {
+		return this.queue.capacity();
+	}
+
+	/**
+	 * @return The number of user records discarded because the queue was full.
+	 */
+	public long getDroppedRecordCount() {
+		return this.droppedRecordCount.get();
+	}
+
+	/**
+	 * @return The number of user records the aggregator rejected.
+	 */
+	public long getFailedRecordCount() {
+		return this.failedRecordCount.get();
+	}
+
+	/**
+	 * @return The error from the last user record the aggregator rejected, or
+	 *         null if there is none.
+	 */
+	public Exception getLastFailure() {
+		return this.lastFailure;
+	}
+
+	/**
+	 * Queue a new user record for the aggregated record.
+	 * 
+	 * @param partitionKey The partition key of the record to add
+	 * @param data         The record data of the record to add
+	 * @return True if the user record was queued, false if it was dropped
+	 *         because the queue is full.
+	 */
+	public boolean addUserRecord(String partitionKey, byte[] data) {
+		return addUserRecord(partitionKey, null, data);
+	}
+
+	/**
+	 * Queue a new user record for the aggregated record.
+	 * 
+	 * @param partitionKey    The partition key of the record to add
+	 * @param explicitHashKey The explicit hash key of the record to add
+	 * @param data            The record data of the record to add
+	 * @return True if the user record was queued, false if it was dropped
+	 *         because the queue is full.
+	 */
+	public boolean addUserRecord(String partitionKey, String explicitHashKey, byte[] data) {
+		if (partitionKey == null || data == null) {
+			throw new IllegalArgumentException("Partition key and data cannot be null");
+		}
+		return enqueue(partitionKey, explicitHashKey, null, null, data, this.backpressurePolicy);
+	}
+
+	/**
+	 * Queue a new user record with a pre-encoded partition key for the
+	 * aggregated record.
+	 * 
+	 * @param partitionKey    The UTF-8 encoded partition key of the record to add
+	 * @param explicitHashKey The explicit hash key of the record to add as a 16
+	 *                        byte big-endian unsigned integer, or null to derive
+	 *                        it from the partition key
+	 * @param data            The record data of the record to add
+	 * @return True if the user record was queued, false if it was dropped
+	 *         because the queue is full.
+	 */
+	public boolean addUserRecord(byte[] partitionKey, byte[] explicitHashKey, byte[] data) {
+		if (partitionKey == null || data == null) {
+			throw new IllegalArgumentException("Partition key and data cannot be null");
+		}
+		return enqueue(null, null, partitionKey, explicitHashKey, data, this.backpressurePolicy);
+	}
+
+	/**
+	 * Ask the writer thread to complete the current aggregated record, whether
+	 * full or not, once it has added every user record queued before this call
+	 * (see {@link RecordAggregator#flush()}). Waits for space in the queue if it
+	 * is full, whatever the backpressure policy.
+	 */
+	public void flush() {
+		enqueue(null, null, null, null, null, BackpressurePolicy.BLOCK);
+	}
+
+	/**
+	 * Stop accepting user records, wait for the writer thread to add every queued
+	 * user record, complete the last aggregated record and notify its listeners,
+	 * then stop the writer thread. If the calling thread is interrupted, it stops
+	 * waiting and returns with its interrupt status set, while the writer thread
+	 * carries on in the background; use {@link #awaitClose(long, TimeUnit)} to
+	 * wait for it.
+	 */
+	@Override
+	public void close() {
+		try {
+			awaitClose(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Close this aggregator as {@link #close()} does, waiting at most the given
+	 * time for the writer thread to stop.
+	 * 
+	 * @param timeout The maximum time to wait.
+	 * @param unit    The unit of the timeout.
+	 * @return True if the writer thread has stopped, false if the timeout
+	 *         elapsed first.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		this.closed = true;
+		LockSupport.unpark(this.writer);
+		unit.timedJoin(this.writer, timeout);
+		return !this.writer.isAlive();
+	}
+
+	private boolean enqueue(String partitionKey, String explicitHashKey, byte[] partitionKeyBytes,
+			byte[] explicitHashKeyBytes, byte[] data, BackpressurePolicy policy) {
+		// register before checking closed, so that either this producer sees the
+		// aggregator closed or the writer thread waits for its offer
+		this.activeProducers.incrementAndGet();
+		try {
+			checkOpen();
+			while (!this.queue.offer(partitionKey, explicitHashKey, partitionKeyBytes, explicitHashKeyBytes, data)) {
+				switch (policy) {
+				case DROP:
+					this.droppedRecordCount.incrementAndGet();
+					return false;
+				case FAIL:
+					throw new IllegalStateException(
+							"Aggregation queue is full (capacity " + this.queue.capacity() + " user records)");
+				default:
+					checkOpen();
+					idle(PRODUCER_PARK_NANOS);
+				}
+			}
+		} finally {
+			this.activeProducers.decrementAndGet();
+		}
+
+		if (this.writerParked) {
+			LockSupport.unpark(this.writer);
+		}
+		// a dead writer thread will never take the user record
+		if (this.writerFailure != null) {
+			checkOpen();
+		}
+		return true;
+	}
+
+	private void checkOpen() {
+		if (this.writerFailure != null) {
+			throw new IllegalStateException("Aggregator writer thread has died", this.writerFailure);
+		}
+		if (this.closed) {
+			throw new IllegalStateException("Aggregator is closed");
+		}
+	}
+
+	/**
+	 * The writer thread's loop: add queued user records to the aggregator until
+	 * the queue is empty after close has been called and every producer has
+	 * finished its offer. If the thread dies, the aggregator is closed.
+	 */
+	private void drain() {
+		try {
+			drainQueue();
+		} catch (Throwable t) {
+			this.writerFailure = t;
+			throw t;
+		} finally {
+			this.closed = true;
+		}
+	}
+
+	private void drainQueue() {
+		MpscRecordQueue.Consumer consumer = entry -> {
+			if (entry.flush) {
+				this.aggregator.flush();
+			} else if (entry.partitionKey != null) {
+				this.aggregator.addUserRecord(entry.partitionKey, entry.explicitHashKey, entry.data);
+			} else {
+				this.aggregator.addUserRecord(entry.partitionKeyBytes, entry.explicitHashKeyBytes, entry.data);
+			}
+		};
+
+		while (true) {
+			boolean took;
+			try {
+				took = this.queue.poll(consumer);
+			} catch (Exception e) {
+				this.failedRecordCount.incrementAndGet();
+				this.lastFailure = e;
+				continue;
+			}
+
+			if (!took) {
+				// check the producers before the queue, as their offers are
+				// published before they leave
+				if (this.closed && this.activeProducers.get() == 0 && this.queue.isEmpty()) {
+					break;
+				}
+				waitForRecords();
+			}
+		}
+
+		this.aggregator.flush();
+	}
+
+	private void waitForRecords() {
+		if (this.waitStrategy != WaitStrategy.PARK) {
+			idle(0);
+			return;
+		}
+
+		// announce the park before checking the queue again, so that a producer
+		// that publishes after the check is sure to see the flag and unpark us
+		this.writerParked = true;
+		if (this.queue.isEmpty() && (!this.closed || this.activeProducers.get() > 0)) {
+			LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+		}
+		this.writerParked = false;
+	}
+
+	private void idle(long parkNanos) {
+		switch (this.waitStrategy) {
+		case BUSY_SPIN:
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		default:
+			LockSupport.parkNanos(this, parkNanos);
+		}
+	}
+}
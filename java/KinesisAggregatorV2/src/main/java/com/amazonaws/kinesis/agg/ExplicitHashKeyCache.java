@@ -0,0 +1,183 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded cache from partition keys to the explicit hash keys derived from
+ * them, which evicts entries that have not been used recently. Deriving an
+ * explicit hash key costs an MD5 digest of the partition key, so producers that
+ * reuse a working set of partition keys can share one of these across the
+ * aggregated records they build (see
+ * {@link RecordAggregator#RecordAggregator(ExplicitHashKeyCache)}).
+ *
+ * Lookups take no lock, so one cache can be shared by the aggregators of many
+ * threads, such as the stripes of a {@link StripedRecordAggregator}. Eviction
+ * approximates least-recently-used order with the CLOCK algorithm: a clock hand
+ * passes over the entries in the order they were added, and evicts the first
+ * one that has not been looked up since the hand last passed it. Only adding
+ * an entry, which follows an MD5 digest anyway, takes a lock.
+ *
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class ExplicitHashKeyCache {
+	/** A cached explicit hash key and its CLOCK reference bit. */
+	private static final class Entry {
+		private final HashKey explicitHashKey;
+		/** Whether the entry has been looked up since the clock hand passed it. */
+		private volatile boolean referenced;
+
+		private Entry(HashKey explicitHashKey) {
+			this.explicitHashKey = explicitHashKey;
+		}
+	}
+
+	/** The maximum number of partition keys to retain. */
+	private final int maxSize;
+	/** The cached explicit hash keys by partition key. */
+	private final ConcurrentMap<String, Entry> entries;
+	/**
+	 * The cached partition keys, in the order the clock hand visits them. Adding
+	 * or evicting entries locks it.
+	 */
+	private final Queue<String> clock;
+	/** The number of lookups that found a cached explicit hash key. */
+	private final LongAdder hitCount;
+	/** The number of lookups that did not find a cached explicit hash key. */
+	private final LongAdder missCount;
+
+	/**
+	 * Create a new empty cache.
+	 *
+	 * @param maxSize The maximum number of partition keys to retain before the
+	 *                ones not used recently are evicted.
+	 */
+	public ExplicitHashKeyCache(final int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Cache size must be at least 1, got " + maxSize);
+		}
+
+		this.maxSize = maxSize;
+		this.entries = new ConcurrentHashMap<>();
+		this.clock = new ArrayDeque<>();
+		this.hitCount = new LongAdder();
+		this.missCount = new LongAdder();
+	}
+
+	/**
+	 * Look up the explicit hash key previously derived from a partition key.
+	 *
+	 * @param partitionKey The partition key to look up.
+	 * @return The cached explicit hash key, or null if there is none.
+	 */
+	HashKey get(String partitionKey) {
+		Entry entry = this.entries.get(partitionKey);
+		if (entry == null) {
+			this.missCount.increment();
+			return null;
+		}
+
+		this.hitCount.increment();
+		// only write the bit when it changes, so that hot entries are not
+		// written to by every thread that looks them up
+		if (!entry.referenced) {
+			entry.referenced = true;
+		}
+		return entry.explicitHashKey;
+	}
+
+	/**
+	 * Cache the explicit hash key derived from a partition key.
+	 *
+	 * @param partitionKey    The partition key.
+	 * @param explicitHashKey The explicit hash key derived from it.
+	 */
+	void put(String partitionKey, HashKey explicitHashKey) {
+		if (this.entries.putIfAbsent(partitionKey, new Entry(explicitHashKey)) != null) {
+			// another thread derived the same explicit hash key first
+			return;
+		}
+
+		synchronized (this.clock) {
+			this.clock.add(partitionKey);
+			while (this.entries.size() > this.maxSize) {
+				String eldest = this.clock.poll();
+				if (eldest == null) {
+					return;
+				}
+
+				Entry entry = this.entries.get(eldest);
+				if (entry != null && entry.referenced) {
+					// give it a second chance
+					entry.referenced = false;
+					this.clock.add(eldest);
+				} else if (entry != null) {
+					this.entries.remove(eldest, entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The maximum number of partition keys this cache retains.
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * @return The number of partition keys currently cached.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return The number of lookups that found a cached explicit hash key.
+	 */
+	public long getHitCount() {
+		return this.hitCount.sum();
+	}
+
+	/**
+	 * @return The number of lookups that had to derive a new explicit hash key.
+	 */
+	public long getMissCount() {
+		return this.missCount.sum();
+	}
+
+	/**
+	 * Remove all cached entries and reset the hit and miss counters.
+	 */
+	public void clear() {
+		synchronized (this.clock) {
+			this.entries.clear();
+			this.clock.clear();
+		}
+		this.hitCount.reset();
+		this.missCount.reset();
+	}
+}
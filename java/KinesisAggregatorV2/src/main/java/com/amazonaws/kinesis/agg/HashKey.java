@@ -0,0 +1,277 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An unsigned 128-bit Kinesis hash key, as used for explicit hash keys and for
+ * the hash key ranges of shards. The value is held in two primitive longs and
+ * converted to and from the decimal string form Kinesis uses without going
+ * through BigInteger.
+ *
+ * @see <a href=
+ *      "https://docs.aws.amazon.com/kinesis/latest/APIReference/API_PutRecord.html">https://docs.aws.amazon.com/kinesis/latest/APIReference/API_PutRecord.html</a>
+ */
+@Immutable
+public final class HashKey implements Comparable<HashKey> {
+	/** The smallest valid hash key (0). */
+	public static final HashKey MIN_VALUE = new HashKey(0L, 0L);
+	/** The largest valid hash key (2^128 - 1). */
+	public static final HashKey MAX_VALUE = new HashKey(-1L, -1L);
+
+	/** The maximum number of decimal digits in a 128-bit unsigned value. */
+	static final int MAX_DECIMAL_DIGITS = 39;
+
+	// decimal conversion works on 9 digit chunks, the largest power of ten
+	// that keeps every intermediate product of a 32-bit limb within a long
+	private static final int CHUNK_DIGITS = 9;
+	private static final long CHUNK_DIVISOR = 1_000_000_000L;
+	private static final int[] POWERS_OF_TEN = { 1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000,
+			100_000_000, 1_000_000_000 };
+	private static final long LIMB_MASK = 0xFFFFFFFFL;
+
+	/** The most significant 64 bits of the value. */
+	private final long high;
+	/** The least significant 64 bits of the value. */
+	private final long low;
+
+	private HashKey(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * Create a hash key from its high and low 64 bits.
+	 *
+	 * @param high The most significant 64 bits, treated as unsigned.
+	 * @param low  The least significant 64 bits, treated as unsigned.
+	 * @return The corresponding hash key.
+	 */
+	public static HashKey of(long high, long low) {
+		return new HashKey(high, low);
+	}
+
+	/**
+	 * Create a hash key from the first 16 bytes of a message digest, read as a
+	 * big-endian unsigned integer (the algorithm the KPL uses to derive explicit
+	 * hash keys from MD5 digests of partition keys).
+	 *
+	 * @param digest A digest at least 16 bytes long.
+	 * @return The corresponding hash key.
+	 */
+	public static HashKey fromDigest(byte[] digest) {
+		return new HashKey(readLong(digest, 0), readLong(digest, 8));
+	}
+
+	/**
+	 * Parse a hash key from its decimal string form. The accepted syntax matches
+	 * that of BigInteger: an optional sign followed by one or more decimal digits.
+	 *
+	 * @param value The decimal string to parse.
+	 * @return The parsed hash key.
+	 * @throws NumberFormatException    If the value is not a decimal integer.
+	 * @throws IllegalArgumentException If the value is an integer outside the
+	 *                                  range [0, 2^128 - 1].
+	 */
+	public static HashKey parse(String value) {
+		if (value == null) {
+			throw new NumberFormatException("Hash key cannot be null");
+		}
+
+		int length = value.length();
+		int position = 0;
+		boolean negative = false;
+		if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+			negative = value.charAt(0) == '-';
+			position++;
+		}
+		if (position == length) {
+			throw new NumberFormatException("Hash key must contain at least one digit, got \"" + value + "\"");
+		}
+
+		// skip leading zeros so they don't count against the digit limit
+		while (position < length - 1 && Character.digit(value.charAt(position), 10) == 0) {
+			position++;
+		}
+		int significantDigits = length - position;
+
+		// accumulate the value 9 digits at a time into four 32-bit limbs
+		long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+		boolean overflow = significantDigits > MAX_DECIMAL_DIGITS;
+		while (position < length) {
+			int chunkDigits = Math.min(CHUNK_DIGITS, length - position);
+			long chunk = 0;
+			for (int i = 0; i < chunkDigits; i++) {
+				char c = value.charAt(position++);
+				int digit = Character.digit(c, 10);
+				if (digit < 0) {
+					throw new NumberFormatException("Hash key must be a decimal integer, got \"" + value + "\"");
+				}
+				chunk = chunk * 10 + digit;
+			}
+
+			if (!overflow) {
+				long multiplier = POWERS_OF_TEN[chunkDigits];
+				long t = l0 * multiplier + chunk;
+				l0 = t & LIMB_MASK;
+				t = l1 * multiplier + (t >>> 32);
+				l1 = t & LIMB_MASK;
+				t = l2 * multiplier + (t >>> 32);
+				l2 = t & LIMB_MASK;
+				t = l3 * multiplier + (t >>> 32);
+				l3 = t & LIMB_MASK;
+				overflow = (t >>> 32) != 0;
+			}
+		}
+
+		boolean zero = (l0 | l1 | l2 | l3) == 0;
+		if (overflow || (negative && !zero)) {
+			throw new IllegalArgumentException(
+					"Hash key must be greater or equal to zero and less than or equal to (2^128 - 1), got " + value);
+		}
+
+		return new HashKey((l3 << 32) | l2, (l1 << 32) | l0);
+	}
+
+	/**
+	 * @return The most significant 64 bits of this hash key, as an unsigned value.
+	 */
+	public long getHighBits() {
+		return this.high;
+	}
+
+	/**
+	 * @return The least significant 64 bits of this hash key, as an unsigned value.
+	 */
+	public long getLowBits() {
+		return this.low;
+	}
+
+	/**
+	 * Write the decimal digits of this hash key as ASCII bytes.
+	 *
+	 * @param dest   The array to write into, which must have room for up to
+	 *               {@value #MAX_DECIMAL_DIGITS} bytes from the offset.
+	 * @param offset The position to start writing at.
+	 * @return The number of bytes written.
+	 */
+	public int writeDecimal(byte[] dest, int offset) {
+		return writeDecimal(this.high, this.low, dest, offset);
+	}
+
+	/**
+	 * Write the decimal digits of an unsigned 128-bit value as ASCII bytes without
+	 * creating a HashKey for it.
+	 *
+	 * @param high   The most significant 64 bits of the value.
+	 * @param low    The least significant 64 bits of the value.
+	 * @param dest   The array to write into, which must have room for up to
+	 *               {@value #MAX_DECIMAL_DIGITS} bytes from the offset.
+	 * @param offset The position to start writing at.
+	 * @return The number of bytes written.
+	 */
+	static int writeDecimal(long high, long low, byte[] dest, int offset) {
+		// extract 9 digit chunks by repeated division, writing them right-aligned
+		// from the end of the output window
+		long l3 = high >>> 32, l2 = high & LIMB_MASK, l1 = low >>> 32, l0 = low & LIMB_MASK;
+		int end = offset + MAX_DECIMAL_DIGITS;
+		int position = end;
+		boolean last;
+		do {
+			long t = l3;
+			l3 = t / CHUNK_DIVISOR;
+			t = ((t % CHUNK_DIVISOR) << 32) | l2;
+			l2 = t / CHUNK_DIVISOR;
+			t = ((t % CHUNK_DIVISOR) << 32) | l1;
+			l1 = t / CHUNK_DIVISOR;
+			t = ((t % CHUNK_DIVISOR) << 32) | l0;
+			l0 = t / CHUNK_DIVISOR;
+			int chunk = (int) (t % CHUNK_DIVISOR);
+
+			// the most significant chunk is written without zero padding
+			last = (l0 | l1 | l2 | l3) == 0;
+			int digits = last ? decimalLength(chunk) : CHUNK_DIGITS;
+			for (int d = 0; d < digits; d++) {
+				dest[--position] = (byte) ('0' + chunk % 10);
+				chunk /= 10;
+			}
+		} while (!last);
+
+		int length = end - position;
+		System.arraycopy(dest, position, dest, offset, length);
+		return length;
+	}
+
+	/**
+	 * Compare two hash keys as unsigned 128-bit values.
+	 */
+	@Override
+	public int compareTo(HashKey other) {
+		int result = Long.compareUnsigned(this.high, other.high);
+		return result != 0 ? result : Long.compareUnsigned(this.low, other.low);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof HashKey)) {
+			return false;
+		}
+		HashKey other = (HashKey) o;
+		return this.high == other.high && this.low == other.low;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(this.high) * 31 + Long.hashCode(this.low);
+	}
+
+	/**
+	 * @return The decimal string form of this hash key, as accepted by Kinesis.
+	 */
+	@Override
+	public String toString() {
+		byte[] digits = new byte[MAX_DECIMAL_DIGITS];
+		int length = writeDecimal(digits, 0);
+		return new String(digits, 0, length, StandardCharsets.US_ASCII);
+	}
+
+	private static int decimalLength(int value) {
+		int length = 1;
+		while (length < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[length]) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Read 8 bytes as a big-endian long.
+	 */
+	static long readLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
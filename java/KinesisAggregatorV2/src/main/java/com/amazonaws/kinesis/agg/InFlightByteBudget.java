@@ -0,0 +1,212 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A limit on the total size of the aggregated records that have been completed
+ * but not yet acknowledged, shared by any number of record aggregators. An
+ * aggregated record counts against the budget from the moment it is completed
+ * until every holder has called {@link AggRecord#release()} on it, typically
+ * once it has been written to Kinesis.
+ *
+ * When completing a full aggregated record would take the in-flight bytes over
+ * the budget, the addUserRecord call that filled it waits, times out or is
+ * rejected according to the {@link Policy}, so that producers slow down to the
+ * rate at which records are acknowledged instead of piling unsent records up
+ * on the heap. A single record is always let through when nothing else is in
+ * flight. Records completed explicitly with clearAndGet or flush never wait,
+ * but still count against the budget.
+ *
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class InFlightByteBudget {
+	/** What an addUserRecord call does when the budget is exhausted. */
+	public enum Policy {
+		/** Wait until enough in-flight records are released. */
+		BLOCK,
+		/** Wait up to the timeout, then throw a TimeoutException. */
+		TIMEOUT,
+		/** Throw an IllegalStateException immediately. */
+		REJECT
+	}
+
+	/** The maximum number of in-flight bytes. */
+	private final long maxBytes;
+	/** What to do when the budget is exhausted. */
+	private final Policy policy;
+	/** How long to wait under the TIMEOUT policy. */
+	private final long timeoutNanos;
+
+	/** The total size of the records currently in flight. */
+	private long inFlightBytes;
+	/** The number of times a record had to wait for the budget. */
+	private long waitCount;
+	/** The number of times a record timed out or was rejected. */
+	private long rejectedCount;
+
+	/**
+	 * Create a new budget that blocks until there is room.
+	 * 
+	 * @param maxBytes The maximum number of in-flight bytes.
+	 */
+	public InFlightByteBudget(long maxBytes) {
+		this(maxBytes, Policy.BLOCK, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Create a new budget.
+	 * 
+	 * @param maxBytes The maximum number of in-flight bytes.
+	 * @param policy   What to do when the budget is exhausted.
+	 * @param timeout  How long to wait under the TIMEOUT policy.
+	 * @param unit     The unit of the timeout.
+	 */
+	public InFlightByteBudget(long maxBytes, Policy policy, long timeout, TimeUnit unit) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("Maximum in-flight bytes must be at least 1, got " + maxBytes);
+		}
+		if (policy == null) {
+			throw new IllegalArgumentException("Policy cannot be null");
+		}
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative, got " + timeout);
+		}
+
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		this.timeoutNanos = unit.toNanos(timeout);
+		this.inFlightBytes = 0;
+		this.waitCount = 0;
+		this.rejectedCount = 0;
+	}
+
+	/**
+	 * @return The maximum number of in-flight bytes.
+	 */
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * @return What an addUserRecord call does when the budget is exhausted.
+	 */
+	public Policy getPolicy() {
+		return this.policy;
+	}
+
+	/**
+	 * @return The total size of the aggregated records that have been completed
+	 *         but not yet released.
+	 */
+	public synchronized long getInFlightBytes() {
+		return this.inFlightBytes;
+	}
+
+	/**
+	 * @return The number of bytes that can be completed before the budget is
+	 *         exhausted.
+	 */
+	public synchronized long getAvailableBytes() {
+		return Math.max(0, this.maxBytes - this.inFlightBytes);
+	}
+
+	/**
+	 * @return The number of times an aggregated record had to wait for the
+	 *         budget.
+	 */
+	public synchronized long getWaitCount() {
+		return this.waitCount;
+	}
+
+	/**
+	 * @return The number of times an aggregated record timed out waiting for the
+	 *         budget or was rejected.
+	 */
+	public synchronized long getRejectedCount() {
+		return this.rejectedCount;
+	}
+
+	/**
+	 * Reserve room for a completed aggregated record, following the policy if
+	 * there is not enough.
+	 * 
+	 * @param bytes The size of the record.
+	 * @throws InterruptedException  If the thread was interrupted while waiting.
+	 * @throws TimeoutException      If the TIMEOUT policy's wait elapsed.
+	 * @throws IllegalStateException If the REJECT policy rejected the record.
+	 */
+	synchronized void acquire(long bytes) throws InterruptedException, TimeoutException {
+		if (!fits(bytes)) {
+			if (this.policy == Policy.REJECT) {
+				this.rejectedCount++;
+				throw new IllegalStateException(String.format(
+						"In-flight byte budget exhausted: %s of %s bytes in flight, %s more requested",
+						this.inFlightBytes, this.maxBytes, bytes));
+			}
+
+			this.waitCount++;
+			long deadline = System.nanoTime() + this.timeoutNanos;
+			while (!fits(bytes)) {
+				if (this.policy == Policy.BLOCK) {
+					wait();
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						this.rejectedCount++;
+						throw new TimeoutException(String.format(
+								"Timed out waiting for in-flight byte budget: %s of %s bytes in flight, %s more requested",
+								this.inFlightBytes, this.maxBytes, bytes));
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			}
+		}
+
+		this.inFlightBytes += bytes;
+	}
+
+	/**
+	 * Count a completed aggregated record against the budget without waiting,
+	 * even if that takes the in-flight bytes over the budget.
+	 * 
+	 * @param bytes The size of the record.
+	 */
+	synchronized void forceAcquire(long bytes) {
+		this.inFlightBytes += bytes;
+	}
+
+	/**
+	 * Return the room taken by an aggregated record that has been released.
+	 * 
+	 * @param bytes The size of the record.
+	 */
+	synchronized void release(long bytes) {
+		this.inFlightBytes -= bytes;
+		notifyAll();
+	}
+
+	private boolean fits(long bytes) {
+		return this.inFlightBytes == 0 || this.inFlightBytes + bytes <= this.maxBytes;
+	}
+}
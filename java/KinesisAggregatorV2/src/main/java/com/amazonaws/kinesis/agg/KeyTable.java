@@ -0,0 +1,271 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A table of unique partition keys or explicit hash keys for an aggregated
+ * Kinesis record, mapping each key to its index in the corresponding protobuf
+ * table. Keys are indexed in the order they were first added.
+ *
+ * Keys are held in their UTF-8 encoded form, packed end to end in a single byte
+ * array. Lookups use open addressing with linear probing over a primitive slot
+ * array, and every array is kept when the table is cleared, so once a table has
+ * grown to fit the keys of one aggregated record neither finding nor adding a
+ * key allocates.
+ *
+ * This class is NOT thread-safe.
+ */
+@NotThreadSafe
+class KeyTable {
+	private static final int DEFAULT_INITIAL_CAPACITY = 16;
+	private static final int DEFAULT_INITIAL_KEY_BYTES = 1024;
+
+	/** The encoded bytes of every key, packed in index order. */
+	private byte[] keyBytes;
+	/** The number of bytes used in the keyBytes array. */
+	private int keyBytesSize;
+	/** The offset of each key in the keyBytes array, in index order. */
+	private int[] offsets;
+	/** The encoded length of each key, in index order. */
+	private int[] lengths;
+	/** The hash of each key, in index order. */
+	private int[] hashes;
+	/**
+	 * The open-addressed hash slots. Each slot holds (key index + 1), or zero if
+	 * the slot is empty. The length is always a power of two and at least twice
+	 * the number of keys.
+	 */
+	private int[] slots;
+	/** The number of keys currently in this table. */
+	private int size;
+
+	/**
+	 * Create a new empty key table.
+	 */
+	KeyTable() {
+		this.keyBytes = new byte[DEFAULT_INITIAL_KEY_BYTES];
+		this.keyBytesSize = 0;
+		this.offsets = new int[DEFAULT_INITIAL_CAPACITY];
+		this.lengths = new int[DEFAULT_INITIAL_CAPACITY];
+		this.hashes = new int[DEFAULT_INITIAL_CAPACITY];
+		this.slots = new int[DEFAULT_INITIAL_CAPACITY * 2];
+		this.size = 0;
+	}
+
+	/**
+	 * Calculate the hash of an encoded key, as used by this table's lookups.
+	 *
+	 * @param key    The array holding the encoded key.
+	 * @param offset The offset of the key.
+	 * @param length The length of the key.
+	 * @return The hash of the key.
+	 */
+	static int hash(byte[] key, int offset, int length) {
+		int h = 1;
+		for (int i = offset; i < offset + length; i++) {
+			h = 31 * h + key[i];
+		}
+		return h;
+	}
+
+	/**
+	 * Calculate the hash of the UTF-8 encoding of a string without encoding it.
+	 * The result is the same as {@link #hash(byte[], int, int)} of the bytes
+	 * returned by {@code key.getBytes(StandardCharsets.UTF_8)}, including the
+	 * replacement of unpaired surrogates with '?'.
+	 *
+	 * @param key The key to hash.
+	 * @return The hash of the encoded key.
+	 */
+	static int hash(String key) {
+		int h = 1;
+		int length = key.length();
+		for (int i = 0; i < length; i++) {
+			char c = key.charAt(i);
+			if (c < 0x80) {
+				h = 31 * h + c;
+			} else if (c < 0x800) {
+				h = 31 * h + (byte) (0xC0 | (c >> 6));
+				h = 31 * h + (byte) (0x80 | (c & 0x3F));
+			} else if (!Character.isSurrogate(c)) {
+				h = 31 * h + (byte) (0xE0 | (c >> 12));
+				h = 31 * h + (byte) (0x80 | ((c >> 6) & 0x3F));
+				h = 31 * h + (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, key.charAt(++i));
+				h = 31 * h + (byte) (0xF0 | (codePoint >> 18));
+				h = 31 * h + (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				h = 31 * h + (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				h = 31 * h + (byte) (0x80 | (codePoint & 0x3F));
+			} else {
+				h = 31 * h + '?';
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * @return The number of unique keys in this table.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Decode the key stored at a table index.
+	 *
+	 * @param index The table index of the key.
+	 * @return The key at that index as a string.
+	 */
+	String getString(int index) {
+		checkIndex(index);
+		return new String(this.keyBytes, this.offsets[index], this.lengths[index], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Find the table index of an encoded key.
+	 *
+	 * @param key    The array holding the encoded key.
+	 * @param offset The offset of the key.
+	 * @param length The length of the key.
+	 * @param hash   The hash of the key, from {@link #hash(byte[], int, int)}.
+	 * @return The index of the key, or -1 if the key is not in this table.
+	 */
+	int indexOf(byte[] key, int offset, int length, int hash) {
+		int mask = this.slots.length - 1;
+		for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+			int entry = this.slots[slot];
+			if (entry == 0) {
+				return -1;
+			}
+			int index = entry - 1;
+			if (this.hashes[index] == hash && keyEquals(index, key, offset, length)) {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * Add an encoded key to this table if it is not already present. The key
+	 * bytes are copied, so the caller may reuse the source array afterwards.
+	 *
+	 * @param key    The array holding the encoded key.
+	 * @param offset The offset of the key.
+	 * @param length The length of the key.
+	 * @param hash   The hash of the key, from {@link #hash(byte[], int, int)}.
+	 * @return The index of the key if it was already present, or -(index + 1) if
+	 *         it was newly added at that index.
+	 */
+	int add(byte[] key, int offset, int length, int hash) {
+		int mask = this.slots.length - 1;
+		int slot = spread(hash) & mask;
+		for (;; slot = (slot + 1) & mask) {
+			int entry = this.slots[slot];
+			if (entry == 0) {
+				break;
+			}
+			int index = entry - 1;
+			if (this.hashes[index] == hash && keyEquals(index, key, offset, length)) {
+				return index;
+			}
+		}
+
+		int index = this.size;
+		if (index == this.offsets.length) {
+			grow();
+			// the slot array was rebuilt, so find the insertion slot again
+			mask = this.slots.length - 1;
+			slot = spread(hash) & mask;
+			while (this.slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		if (this.keyBytesSize + length > this.keyBytes.length) {
+			this.keyBytes = Arrays.copyOf(this.keyBytes, Math.max(this.keyBytesSize + length, this.keyBytes.length * 2));
+		}
+		System.arraycopy(key, offset, this.keyBytes, this.keyBytesSize, length);
+
+		this.offsets[index] = this.keyBytesSize;
+		this.lengths[index] = length;
+		this.hashes[index] = hash;
+		this.slots[slot] = index + 1;
+		this.keyBytesSize += length;
+		this.size++;
+
+		return -(index + 1);
+	}
+
+	/**
+	 * Remove all keys from this table, keeping its capacity for reuse.
+	 */
+	void clear() {
+		Arrays.fill(this.slots, 0);
+		this.keyBytesSize = 0;
+		this.size = 0;
+	}
+
+	private boolean keyEquals(int index, byte[] key, int offset, int length) {
+		if (this.lengths[index] != length) {
+			return false;
+		}
+		int stored = this.offsets[index];
+		for (int i = 0; i < length; i++) {
+			if (this.keyBytes[stored + i] != key[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("Key index " + index + " is out of range for table size " + this.size);
+		}
+	}
+
+	private void grow() {
+		int capacity = this.offsets.length * 2;
+		this.offsets = Arrays.copyOf(this.offsets, capacity);
+		this.lengths = Arrays.copyOf(this.lengths, capacity);
+		this.hashes = Arrays.copyOf(this.hashes, capacity);
+		this.slots = new int[capacity * 2];
+
+		int mask = this.slots.length - 1;
+		for (int index = 0; index < this.size; index++) {
+			int slot = spread(this.hashes[index]) & mask;
+			while (this.slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			this.slots[slot] = index + 1;
+		}
+	}
+
+	/**
+	 * Mix the high bits of a hash into the low bits used to pick a slot.
+	 */
+	private static int spread(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
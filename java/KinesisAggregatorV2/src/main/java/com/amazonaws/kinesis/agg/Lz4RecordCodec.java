@@ -0,0 +1,223 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.Arrays;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A Java implementation of the LZ4 block format: a greedy compressor that
+ * finds matches through a hash table of 4 byte sequences, and a decompressor
+ * that validates every length and offset against its buffers. The output can
+ * be decompressed by any LZ4 block decoder given the uncompressed length.
+ *
+ * @see <a href=
+ *      "https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md">https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md</a>
+ */
+@ThreadSafe
+final class Lz4RecordCodec implements RecordCodec {
+	private static final int MIN_MATCH = 4;
+	// the last 5 bytes are always literals, and the last match must start at
+	// least 12 bytes before the end of the input
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_BITS = 12;
+	private static final int RUN_MASK = 15;
+
+	private final int id;
+
+	Lz4RecordCodec(int id) {
+		this.id = id;
+	}
+
+	@Override
+	public int getId() {
+		return this.id;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	@Override
+	public byte[] compress(byte[] src, int offset, int length) {
+		byte[] out = new byte[maxCompressedLength(length)];
+		int end = offset + length;
+		int matchLimit = end - LAST_LITERALS;
+		int findLimit = end - MATCH_FIND_LIMIT;
+		int anchor = offset;
+		int position = 0;
+
+		if (length > MATCH_FIND_LIMIT) {
+			// positions are stored plus one so that zero means empty
+			int[] table = new int[1 << HASH_BITS];
+			int ip = offset;
+			while (ip < findLimit) {
+				int sequence = readInt(src, ip);
+				int slot = hash(sequence);
+				int candidate = table[slot] - 1;
+				table[slot] = ip + 1;
+				if (candidate < 0 || ip - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+					ip++;
+					continue;
+				}
+
+				// extend the match backwards over pending literals, then forwards
+				while (ip > anchor && candidate > offset && src[ip - 1] == src[candidate - 1]) {
+					ip--;
+					candidate--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ip + matchLength] == src[candidate + matchLength]) {
+					matchLength++;
+				}
+
+				position = writeSequence(src, anchor, ip - anchor, ip - candidate, matchLength, out, position);
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+
+		// the final sequence holds the remaining literals and no match
+		position = writeSequence(src, anchor, end - anchor, 0, 0, out, position);
+		return Arrays.copyOf(out, position);
+	}
+
+	private static int writeSequence(byte[] src, int literalStart, int literalLength, int matchOffset,
+			int matchLength, byte[] out, int position) {
+		int token = position++;
+		int matchRun = matchLength > 0 ? matchLength - MIN_MATCH : 0;
+		out[token] = (byte) (Math.min(literalLength, RUN_MASK) << 4 | Math.min(matchRun, RUN_MASK));
+		position = writeLength(literalLength, out, position);
+		System.arraycopy(src, literalStart, out, position, literalLength);
+		position += literalLength;
+
+		if (matchLength > 0) {
+			out[position++] = (byte) matchOffset;
+			out[position++] = (byte) (matchOffset >>> 8);
+			position = writeLength(matchRun, out, position);
+		}
+		return position;
+	}
+
+	/**
+	 * Write the bytes that extend a length beyond the 4 bits of the token.
+	 */
+	private static int writeLength(int length, byte[] out, int position) {
+		if (length >= RUN_MASK) {
+			int remaining = length - RUN_MASK;
+			while (remaining >= 255) {
+				out[position++] = (byte) 255;
+				remaining -= 255;
+			}
+			out[position++] = (byte) remaining;
+		}
+		return position;
+	}
+
+	@Override
+	public byte[] decompress(byte[] src, int offset, int length, int uncompressedLength) {
+		byte[] out = new byte[uncompressedLength];
+		int ip = offset, end = offset + length, op = 0;
+		while (true) {
+			if (ip >= end) {
+				throw new IllegalArgumentException("Truncated LZ4 data");
+			}
+			int token = src[ip++] & 0xFF;
+
+			int literalLength = token >>> 4;
+			if (literalLength == RUN_MASK) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IllegalArgumentException("Truncated LZ4 data");
+					}
+					b = src[ip++] & 0xFF;
+					literalLength += b;
+					// reject runaway lengths before they can overflow
+					if (literalLength > end - ip || literalLength > uncompressedLength - op) {
+						throw new IllegalArgumentException("LZ4 literals overrun the input or output");
+					}
+				} while (b == 255);
+			}
+			if (literalLength > end - ip || literalLength > uncompressedLength - op) {
+				throw new IllegalArgumentException("LZ4 literals overrun the input or output");
+			}
+			System.arraycopy(src, ip, out, op, literalLength);
+			ip += literalLength;
+			op += literalLength;
+
+			if (ip == end) {
+				break;
+			}
+
+			if (end - ip < 2) {
+				throw new IllegalArgumentException("Truncated LZ4 data");
+			}
+			int matchOffset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			int matchLength = token & RUN_MASK;
+			if (matchLength == RUN_MASK) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IllegalArgumentException("Truncated LZ4 data");
+					}
+					b = src[ip++] & 0xFF;
+					matchLength += b;
+					if (matchLength > uncompressedLength - op) {
+						throw new IllegalArgumentException("LZ4 match overruns the output");
+					}
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (matchOffset == 0 || matchOffset > op || matchLength > uncompressedLength - op) {
+				throw new IllegalArgumentException("LZ4 match overruns the output");
+			}
+
+			// matches may overlap the bytes they produce, so copy forwards
+			int from = op - matchOffset;
+			if (matchOffset >= matchLength) {
+				System.arraycopy(out, from, out, op, matchLength);
+				op += matchLength;
+			} else {
+				for (int i = 0; i < matchLength; i++) {
+					out[op++] = out[from + i];
+				}
+			}
+		}
+
+		if (op != uncompressedLength) {
+			throw new IllegalArgumentException(
+					"LZ4 data decompresses to " + op + " bytes, expected " + uncompressedLength);
+		}
+		return out;
+	}
+
+	private static int readInt(byte[] src, int offset) {
+		return (src[offset] & 0xFF) | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16
+				| (src[offset + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_BITS);
+	}
+}
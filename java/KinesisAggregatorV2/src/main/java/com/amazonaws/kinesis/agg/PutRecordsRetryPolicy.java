@@ -0,0 +1,128 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * How a {@link PutRecordsSender} retries the entries that Kinesis rejects from
+ * a PutRecords request (typically with ProvisionedThroughputExceededException)
+ * or that were part of a request that failed entirely.
+ *
+ * Only the failed entries are resubmitted, after an exponential backoff with
+ * full jitter. Retries are also limited by a retry budget shared by every
+ * entry of the sender: each retry takes a token from the budget and each entry
+ * that is written successfully returns one, so that during a sustained
+ * throttling storm the sender fails records instead of multiplying the load
+ * on the stream.
+ */
+@Immutable
+public class PutRecordsRetryPolicy {
+	/** A policy that never retries. */
+	public static final PutRecordsRetryPolicy NONE = new PutRecordsRetryPolicy(1, 0, 0, 0);
+	/**
+	 * A policy that makes up to 5 attempts per record with backoffs between 100
+	 * ms and 10 s and a budget of 100 retries.
+	 */
+	public static final PutRecordsRetryPolicy DEFAULT = new PutRecordsRetryPolicy(5, 100, 10_000, 100);
+
+	/** The maximum number of times a record is sent, including the first. */
+	private final int maxAttempts;
+	/** The backoff ceiling before the first retry, in milliseconds. */
+	private final long baseBackoffMillis;
+	/** The largest backoff ceiling, in milliseconds. */
+	private final long maxBackoffMillis;
+	/** The maximum number of retry tokens the sender can accumulate. */
+	private final int retryBudget;
+
+	/**
+	 * Create a new retry policy.
+	 * 
+	 * @param maxAttempts       The maximum number of times a record is sent,
+	 *                          including the first attempt. 1 disables retries.
+	 * @param baseBackoffMillis The backoff ceiling before the first retry. Each
+	 *                          further retry doubles it, and the actual backoff
+	 *                          is chosen uniformly at random below the ceiling.
+	 * @param maxBackoffMillis  The largest backoff ceiling.
+	 * @param retryBudget       The maximum number of retry tokens, which is also
+	 *                          the number the sender starts with.
+	 */
+	public PutRecordsRetryPolicy(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis, int retryBudget) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("Maximum attempts must be at least 1, got " + maxAttempts);
+		}
+		if (baseBackoffMillis < 0 || maxBackoffMillis < baseBackoffMillis) {
+			throw new IllegalArgumentException("Backoffs must satisfy 0 <= base <= max, got base " + baseBackoffMillis
+					+ " and max " + maxBackoffMillis);
+		}
+		if (retryBudget < 0) {
+			throw new IllegalArgumentException("Retry budget cannot be negative, got " + retryBudget);
+		}
+
+		this.maxAttempts = maxAttempts;
+		this.baseBackoffMillis = baseBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.retryBudget = retryBudget;
+	}
+
+	/**
+	 * @return The maximum number of times a record is sent, including the first.
+	 */
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	/**
+	 * @return The backoff ceiling before the first retry, in milliseconds.
+	 */
+	public long getBaseBackoffMillis() {
+		return this.baseBackoffMillis;
+	}
+
+	/**
+	 * @return The largest backoff ceiling, in milliseconds.
+	 */
+	public long getMaxBackoffMillis() {
+		return this.maxBackoffMillis;
+	}
+
+	/**
+	 * @return The maximum number of retry tokens the sender can accumulate.
+	 */
+	public int getRetryBudget() {
+		return this.retryBudget;
+	}
+
+	/**
+	 * Choose the backoff before a retry.
+	 * 
+	 * @param attempts The number of times the record has been sent so far.
+	 * @return A random backoff between zero and the ceiling for the attempt, in
+	 *         milliseconds.
+	 */
+	long backoffMillis(int attempts) {
+		int doublings = Math.min(Math.max(attempts - 1, 0), 62);
+		long ceiling = this.baseBackoffMillis << doublings;
+		if (ceiling > this.maxBackoffMillis || (ceiling >>> doublings) != this.baseBackoffMillis) {
+			ceiling = this.maxBackoffMillis;
+		}
+		return ThreadLocalRandom.current().nextLong(ceiling < Long.MAX_VALUE ? ceiling + 1 : ceiling);
+	}
+}
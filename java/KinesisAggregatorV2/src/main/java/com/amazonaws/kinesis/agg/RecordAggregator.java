@@ -46,6 +46,9 @@ public class RecordAggregator {
 		 * Called when an aggregated record is full and ready to be transmitted to
 		 * Kinesis.
 		 * 
+		 * When the aggregator recycles its records, the listener must call
+		 * {@link AggRecord#release()} once it has finished transmitting the record.
+		 * 
 		 * @param aggRecord A complete aggregated record ready to transmit to Kinesis.
 		 */
 		public abstract void recordComplete(AggRecord aggRecord);
@@ -55,15 +58,140 @@ public class RecordAggregator {
 	private AggRecord currentRecord;
 	/** The list of listeners to notify when a record is complete. */
 	private List<ListenerExecutorPair> listeners;
+	/**
+	 * The explicit hash key cache shared by every aggregated record this
+	 * aggregator creates, or null if caching is disabled.
+	 */
+	private final ExplicitHashKeyCache explicitHashKeyCache;
+	/**
+	 * The pool that released records are recycled through, or null if every
+	 * aggregated record is newly created.
+	 */
+	private final AggRecordPool recordPool;
+	/**
+	 * The budget that completed records count against until they are released,
+	 * or null if there is no limit.
+	 */
+	private final InFlightByteBudget inFlightByteBudget;
+	/**
+	 * How the payload of every aggregated record this aggregator creates is
+	 * compressed, or null if it isn't.
+	 */
+	private final RecordCompression compression;
 
 	/**
 	 * Construct a new empty record aggregator instance.
 	 */
 	public RecordAggregator() {
-		this.currentRecord = new AggRecord();
+		this(null);
+	}
+
+	/**
+	 * Construct a new empty record aggregator instance whose aggregated records
+	 * share a cache of explicit hash keys derived from partition keys. This
+	 * avoids recalculating the MD5 based explicit hash key of every user record
+	 * added without one when partition keys are frequently reused.
+	 * 
+	 * @param explicitHashKeyCache The cache to share, or null to disable caching.
+	 */
+	public RecordAggregator(ExplicitHashKeyCache explicitHashKeyCache) {
+		this(explicitHashKeyCache, 0);
+	}
+
+	/**
+	 * Construct a new empty record aggregator instance that recycles its
+	 * aggregated records. Once every registered listener (or the caller of
+	 * clearAndGet) has called {@link AggRecord#release()} on a completed record,
+	 * its buffers and digests are reused for a later aggregated record instead
+	 * of being garbage collected.
+	 * 
+	 * @param explicitHashKeyCache The cache to share, or null to disable caching.
+	 * @param maxPooledRecords     The maximum number of released records to keep
+	 *                             for reuse, or 0 to disable recycling.
+	 */
+	public RecordAggregator(ExplicitHashKeyCache explicitHashKeyCache, int maxPooledRecords) {
+		this(explicitHashKeyCache, maxPooledRecords, null);
+	}
+
+	/**
+	 * Construct a new empty record aggregator instance whose completed records
+	 * count against an in-flight byte budget until every holder has called
+	 * {@link AggRecord#release()} on them. When completing a full record would
+	 * exceed the budget, addUserRecord waits, times out or is rejected according
+	 * to the budget's policy.
+	 * 
+	 * @param explicitHashKeyCache The cache to share, or null to disable caching.
+	 * @param maxPooledRecords     The maximum number of released records to keep
+	 *                             for reuse, or 0 to disable recycling.
+	 * @param inFlightByteBudget   The budget to count completed records against,
+	 *                             which may be shared with other aggregators, or
+	 *                             null for no limit.
+	 */
+	public RecordAggregator(ExplicitHashKeyCache explicitHashKeyCache, int maxPooledRecords,
+			InFlightByteBudget inFlightByteBudget) {
+		this(explicitHashKeyCache, maxPooledRecords, inFlightByteBudget, null);
+	}
+
+	/**
+	 * Construct a new empty record aggregator instance whose aggregated records
+	 * are compressed (see {@link RecordCompression}). Records fill up when their
+	 * compressed size reaches the Kinesis limit, so each carries more user
+	 * records the better they compress.
+	 * 
+	 * @param explicitHashKeyCache The cache to share, or null to disable caching.
+	 * @param maxPooledRecords     The maximum number of released records to keep
+	 *                             for reuse, or 0 to disable recycling.
+	 * @param inFlightByteBudget   The budget to count completed records against,
+	 *                             or null for no limit.
+	 * @param compression          How to compress the aggregated records, or null
+	 *                             to leave them uncompressed.
+	 */
+	public RecordAggregator(ExplicitHashKeyCache explicitHashKeyCache, int maxPooledRecords,
+			InFlightByteBudget inFlightByteBudget, RecordCompression compression) {
+		if (maxPooledRecords < 0) {
+			throw new IllegalArgumentException("Pool size cannot be negative, got " + maxPooledRecords);
+		}
+
+		this.explicitHashKeyCache = explicitHashKeyCache;
+		this.recordPool = maxPooledRecords > 0 ? new AggRecordPool(explicitHashKeyCache, compression, maxPooledRecords)
+				: null;
+		this.inFlightByteBudget = inFlightByteBudget;
+		this.compression = compression;
+		this.currentRecord = newRecord();
 		this.listeners = new LinkedList<>();
 	}
 
+	/**
+	 * @return The explicit hash key cache shared by this aggregator's records, or
+	 *         null if caching is disabled.
+	 */
+	public ExplicitHashKeyCache getExplicitHashKeyCache() {
+		return this.explicitHashKeyCache;
+	}
+
+	/**
+	 * @return The budget that completed records count against, or null if there
+	 *         is no limit.
+	 */
+	public InFlightByteBudget getInFlightByteBudget() {
+		return this.inFlightByteBudget;
+	}
+
+	/**
+	 * @return How this aggregator's records are compressed, or null if they
+	 *         aren't.
+	 */
+	public RecordCompression getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * @return True if this aggregator recycles released records, false otherwise.
+	 */
+	public boolean isRecyclingRecords() {
+		return this.recordPool != null;
+	}
+
 	/**
 	 * @return The number of user records currently contained in this aggregated
 	 *         record.
@@ -88,7 +216,16 @@ public class RecordAggregator {
 	 * NOTE: Will not affect any registered listeners.
 	 */
 	public void clearRecord() {
-		this.currentRecord = new AggRecord();
+		if (this.recordPool != null && !this.currentRecord.isSealed()) {
+			// nobody else has seen the current record, so empty it in place
+			this.currentRecord.clear();
+		} else {
+			this.currentRecord = newRecord();
+		}
+	}
+
+	private AggRecord newRecord() {
+		return this.recordPool != null ? this.recordPool.acquire() : new AggRecord(this.explicitHashKeyCache, this.compression);
 	}
 
 	/**
@@ -99,6 +236,13 @@ public class RecordAggregator {
 		this.listeners.clear();
 	}
 
+	/**
+	 * @return True if any listeners are registered with onRecordComplete.
+	 */
+	boolean hasListeners() {
+		return !this.listeners.isEmpty();
+	}
+
 	/**
 	 * Register a callback method to be notified when there is a full aggregated
 	 * record available. Callbacks registered via this method are executed on a
@@ -130,6 +274,10 @@ public class RecordAggregator {
 	 * need to transmit it before it is full (e.g. you're shutting down or haven't
 	 * transmitted in a while).
 	 * 
+	 * The returned record is sealed and can no longer be modified. If this
+	 * aggregator recycles its records, the caller must release it once it has
+	 * been transmitted.
+	 * 
 	 * @return This current object as an aggregated record or null if this object is
 	 *         currently empty.
 	 */
@@ -139,10 +287,34 @@ public class RecordAggregator {
 		}
 
 		AggRecord out = this.currentRecord;
+		chargeWithoutWaiting(out);
+		out.seal();
+		out.retain(1);
 		clearRecord();
 		return out;
 	}
 
+	/**
+	 * Complete the current aggregated record (whether full or not) and notify all
+	 * the listeners registered with onRecordComplete, exactly as if it had filled
+	 * up. This method is useful for bounding how long user records wait in this
+	 * aggregator when records are added slowly.
+	 * 
+	 * If no listeners are registered, the caller owns the returned record as with
+	 * clearAndGet.
+	 * 
+	 * @return The completed aggregated record or null if this object is currently
+	 *         empty.
+	 */
+	public AggRecord flush() {
+		if (getNumUserRecords() == 0) {
+			return null;
+		}
+
+		chargeWithoutWaiting(this.currentRecord);
+		return completeCurrentRecord();
+	}
+
 	/**
 	 * Add a new user record to this aggregated record (will trigger a callback via
 	 * onRecordComplete if aggregated record is full).
@@ -195,17 +367,9 @@ public class RecordAggregator {
 			// we were able to add the current data to the in-flight record
 			return null;
 		} else {
-			// this record is full, let all the listeners know
-			final AggRecord completeRecord = this.currentRecord;
-			for (ListenerExecutorPair pair : this.listeners) {
-				pair.getExecutor().execute(() -> {
-					pair.getListener().recordComplete(completeRecord);
-				});
-			}
-
-			// current record is full; clear it out, make a new empty one and
+			// current record is full; hand it off, make a new empty one and
 			// add the new user record
-			clearRecord();
+			final AggRecord completeRecord = completeFullRecord();
 			success = this.currentRecord.addUserRecord(partitionKey, explicitHashKey, data);
 
 			if (!success) {
@@ -217,6 +381,101 @@ public class RecordAggregator {
 		}
 	}
 
+	/**
+	 * Add a new user record with a pre-encoded partition key to this aggregated
+	 * record (will trigger a callback via onRecordComplete if aggregated record is
+	 * full).
+	 * 
+	 * @param partitionKey The UTF-8 encoded partition key of the record to add
+	 * @param data         The record data of the record to add
+	 * @return A AggRecord if this aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to the current agg record
+	 */
+	public AggRecord addUserRecord(byte[] partitionKey, byte[] data) throws Exception {
+		return addUserRecord(partitionKey, null, data);
+	}
+
+	/**
+	 * Add a new user record with a pre-encoded partition key and a binary explicit
+	 * hash key to this aggregated record (will trigger a callback via
+	 * onRecordComplete if aggregated record is full). Unlike the string based
+	 * methods, this allocates nothing per user record once the current aggregated
+	 * record has seen the partition key.
+	 * 
+	 * @param partitionKey    The UTF-8 encoded partition key of the record to add
+	 * @param explicitHashKey The explicit hash key of the record to add as a 16
+	 *                        byte big-endian unsigned integer, or null to derive it
+	 *                        from the partition key
+	 * @param data            The record data of the record to add
+	 * @return A AggRecord if this aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to the current agg record
+	 */
+	public AggRecord addUserRecord(byte[] partitionKey, byte[] explicitHashKey, byte[] data) throws Exception {
+		if (this.currentRecord.addUserRecord(partitionKey, explicitHashKey, data)) {
+			return null;
+		}
+
+		final AggRecord completeRecord = completeFullRecord();
+		if (!this.currentRecord.addUserRecord(partitionKey, explicitHashKey, data)) {
+			throw new Exception(String.format("Unable to add User Record with partition key length %s and data length %s",
+					partitionKey.length, data.length));
+		}
+
+		return completeRecord;
+	}
+
+	/**
+	 * Wait for room in the in-flight byte budget, if there is one, then complete
+	 * the current aggregated record. If the budget times out or rejects the
+	 * record, it stays open and unchanged.
+	 * 
+	 * @return The completed aggregated record.
+	 */
+	private AggRecord completeFullRecord() throws Exception {
+		if (this.inFlightByteBudget != null) {
+			long bytes = this.currentRecord.getSizeBytes();
+			this.inFlightByteBudget.acquire(bytes);
+			this.currentRecord.charge(this.inFlightByteBudget, bytes);
+		}
+		return completeCurrentRecord();
+	}
+
+	/**
+	 * Count a record that is being completed explicitly against the in-flight
+	 * byte budget, if there is one, without waiting for room.
+	 */
+	private void chargeWithoutWaiting(AggRecord record) {
+		if (this.inFlightByteBudget != null) {
+			long bytes = record.getSizeBytes();
+			this.inFlightByteBudget.forceAcquire(bytes);
+			record.charge(this.inFlightByteBudget, bytes);
+		}
+	}
+
+	/**
+	 * Seal the current aggregated record, notify all the listeners that it is
+	 * complete and replace it with a new empty record.
+	 * 
+	 * @return The completed aggregated record.
+	 */
+	private AggRecord completeCurrentRecord() {
+		final AggRecord completeRecord = this.currentRecord;
+		completeRecord.seal();
+		// a recycled record is owned by the listeners, or by the caller if there
+		// are none
+		completeRecord.retain(Math.max(1, this.listeners.size()));
+		for (ListenerExecutorPair pair : this.listeners) {
+			pair.getExecutor().execute(() -> {
+				pair.getListener().recordComplete(completeRecord);
+			});
+		}
+
+		clearRecord();
+		return completeRecord;
+	}
+
 	/**
 	 * A helper class for tracking callbacks that contains a listener for callbacks
 	 * and the executor to execute the callback with.
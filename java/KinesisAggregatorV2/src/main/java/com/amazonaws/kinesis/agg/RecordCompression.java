@@ -0,0 +1,122 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * How an aggregator compresses the payload of its aggregated records, which
+ * lets each 1 MB Kinesis record carry several times more user data when it
+ * compresses well (such as JSON). Compressed records are marked so that
+ * RecordDeaggregator detects and decompresses them; other consumers, such as
+ * the KCL on its own, see them as ordinary non-aggregated records (for
+ * {@link Scope#AGGREGATED_RECORD}) or see compressed user record data (for
+ * {@link Scope#USER_RECORD}), so every consumer of the stream must deaggregate
+ * with a RecordDeaggregator that supports the codec.
+ */
+@Immutable
+public class RecordCompression {
+	/**
+	 * What is compressed.
+	 */
+	public enum Scope {
+		/**
+		 * The data of each user record, which keeps the aggregated record format
+		 * but only compresses redundancy within a user record.
+		 */
+		USER_RECORD,
+		/**
+		 * The whole aggregated record, which also compresses the keys and the
+		 * redundancy between user records.
+		 */
+		AGGREGATED_RECORD
+	}
+
+	/**
+	 * The default limit on the uncompressed size of a compressed aggregated
+	 * record, which bounds the memory a consumer needs to deaggregate it.
+	 */
+	public static final int DEFAULT_MAX_UNCOMPRESSED_BYTES = 8 * 1024 * 1024; // 8 MB
+
+	/** The codec that compresses the payload. */
+	private final RecordCodec codec;
+	/** What is compressed. */
+	private final Scope scope;
+	/** The largest uncompressed size of a compressed aggregated record. */
+	private final int maxUncompressedBytes;
+
+	/**
+	 * Create a new compression setting with the default uncompressed size limit.
+	 * 
+	 * @param codec The codec to compress with, e.g. {@link RecordCodec#LZ4}.
+	 * @param scope What to compress.
+	 */
+	public RecordCompression(RecordCodec codec, Scope scope) {
+		this(codec, scope, DEFAULT_MAX_UNCOMPRESSED_BYTES);
+	}
+
+	/**
+	 * Create a new compression setting.
+	 * 
+	 * @param codec                The codec to compress with, e.g.
+	 *                             {@link RecordCodec#LZ4}.
+	 * @param scope                What to compress.
+	 * @param maxUncompressedBytes The largest uncompressed size of an aggregated
+	 *                             record compressed as a whole, at least 1 MB.
+	 *                             Records of highly compressible data stop
+	 *                             accepting user records at this size.
+	 */
+	public RecordCompression(RecordCodec codec, Scope scope, int maxUncompressedBytes) {
+		if (codec == null || scope == null) {
+			throw new IllegalArgumentException("Codec and scope cannot be null");
+		}
+		if (codec.getId() < 1 || codec.getId() > 255) {
+			throw new IllegalArgumentException("Codec IDs must be between 1 and 255, got " + codec.getId());
+		}
+		if (maxUncompressedBytes < AggRecord.MAX_BYTES_PER_RECORD) {
+			throw new IllegalArgumentException("Maximum uncompressed size must be at least "
+					+ AggRecord.MAX_BYTES_PER_RECORD + " bytes, got " + maxUncompressedBytes);
+		}
+
+		this.codec = codec;
+		this.scope = scope;
+		this.maxUncompressedBytes = maxUncompressedBytes;
+	}
+
+	/**
+	 * @return The codec that compresses the payload.
+	 */
+	public RecordCodec getCodec() {
+		return this.codec;
+	}
+
+	/**
+	 * @return What is compressed.
+	 */
+	public Scope getScope() {
+		return this.scope;
+	}
+
+	/**
+	 * @return The largest uncompressed size of an aggregated record compressed
+	 *         as a whole.
+	 */
+	public int getMaxUncompressedBytes() {
+		return this.maxUncompressedBytes;
+	}
+}
@@ -0,0 +1,373 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+/**
+ * A record aggregator that keeps a separate aggregated record open for every
+ * shard of a stream, so that each aggregated record only contains user records
+ * whose explicit hash keys (or the MD5 hashes of their partition keys) fall in
+ * the hash key range of the shard the aggregated record is sent to. This keeps
+ * aggregated records compatible with KCL 2.x consumers, which drop user records
+ * that don't belong to the shard they are reading.
+ *
+ * User records are routed with a binary search over the shards' hash key
+ * ranges, which should come from a recent ListShards or DescribeStream call.
+ * Closed shards are ignored. If the stream is resharded, create a new
+ * aggregator from the new shard list and flush this one with
+ * {@link #clearAndGet()}.
+ *
+ * This class is NOT thread-safe.
+ *
+ * @see <a href=
+ *      "https://github.com/awslabs/kinesis-aggregation/blob/master/potential_data_loss.md">https://github.com/awslabs/kinesis-aggregation/blob/master/potential_data_loss.md</a>
+ */
+@NotThreadSafe
+public class ShardAwareAggregator {
+	private static final int BINARY_HASH_KEY_LENGTH = 16;
+
+	/** The hash key ranges of the open shards. */
+	private final ShardMap shards;
+	/** The aggregator holding the open aggregated record of each shard. */
+	private final RecordAggregator[] aggregators;
+	/** The cache of explicit hash keys derived from partition keys, or null. */
+	private final ExplicitHashKeyCache explicitHashKeyCache;
+	/** The message digest to use for deriving explicit hash keys. */
+	private final MessageDigest keyDigest;
+	/** Scratch space for the binary explicit hash key of a user record. */
+	private final byte[] explicitHashKeyBytes;
+
+	/**
+	 * Construct a new shard aware aggregator.
+	 * 
+	 * @param shards The shards of the destination stream.
+	 */
+	public ShardAwareAggregator(List<Shard> shards) {
+		this(shards, null, 0);
+	}
+
+	/**
+	 * Construct a new shard aware aggregator whose aggregated records share a
+	 * cache of explicit hash keys derived from partition keys.
+	 * 
+	 * @param shards               The shards of the destination stream.
+	 * @param explicitHashKeyCache The cache to share, or null to disable caching.
+	 */
+	public ShardAwareAggregator(List<Shard> shards, ExplicitHashKeyCache explicitHashKeyCache) {
+		this(shards, explicitHashKeyCache, 0);
+	}
+
+	/**
+	 * Construct a new shard aware aggregator.
+	 * 
+	 * @param shards                   The shards of the destination stream.
+	 * @param explicitHashKeyCache     The cache to share, or null to disable
+	 *                                 caching.
+	 * @param maxPooledRecordsPerShard The maximum number of released records to
+	 *                                 keep for reuse by each shard, or 0 to
+	 *                                 disable recycling (see
+	 *                                 {@link RecordAggregator#RecordAggregator(ExplicitHashKeyCache, int)}).
+	 */
+	public ShardAwareAggregator(List<Shard> shards, ExplicitHashKeyCache explicitHashKeyCache,
+			int maxPooledRecordsPerShard) {
+		this(shards, explicitHashKeyCache, maxPooledRecordsPerShard, null);
+	}
+
+	/**
+	 * Construct a new shard aware aggregator whose completed records count
+	 * against an in-flight byte budget (see
+	 * {@link RecordAggregator#RecordAggregator(ExplicitHashKeyCache, int, InFlightByteBudget)}).
+	 * 
+	 * @param shards                   The shards of the destination stream.
+	 * @param explicitHashKeyCache     The cache to share, or null to disable
+	 *                                 caching.
+	 * @param maxPooledRecordsPerShard The maximum number of released records to
+	 *                                 keep for reuse by each shard, or 0 to
+	 *                                 disable recycling.
+	 * @param inFlightByteBudget       The budget shared by every shard, or null
+	 *                                 for no limit.
+	 */
+	public ShardAwareAggregator(List<Shard> shards, ExplicitHashKeyCache explicitHashKeyCache,
+			int maxPooledRecordsPerShard, InFlightByteBudget inFlightByteBudget) {
+		this.shards = ShardMap.of(shards);
+		this.aggregators = new RecordAggregator[this.shards.size()];
+		for (int i = 0; i < this.aggregators.length; i++) {
+			this.aggregators[i] = new RecordAggregator(explicitHashKeyCache, maxPooledRecordsPerShard,
+					inFlightByteBudget);
+		}
+
+		this.explicitHashKeyCache = explicitHashKeyCache;
+		try {
+			this.keyDigest = MessageDigest.getInstance(AggRecord.MESSAGE_DIGEST_NAME);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not create an MD5 message digest.", e);
+		}
+		this.explicitHashKeyBytes = new byte[BINARY_HASH_KEY_LENGTH];
+	}
+
+	/**
+	 * @return The IDs of the open shards that user records are routed to, in
+	 *         hash key order.
+	 */
+	public List<String> getShardIds() {
+		return this.shards.getShardIds();
+	}
+
+	/**
+	 * Find the shard that an explicit hash key belongs to, e.g. to find the
+	 * destination of an aggregated record from its explicit hash key.
+	 * 
+	 * @param explicitHashKey The explicit hash key.
+	 * @return The ID of the shard whose hash key range contains the key.
+	 * @throws IllegalArgumentException If no open shard contains the key.
+	 */
+	public String getShardId(String explicitHashKey) {
+		HashKey hashKey = HashKey.parse(explicitHashKey);
+		return this.shards.getShardId(findShard(hashKey.getHighBits(), hashKey.getLowBits()));
+	}
+
+	/**
+	 * @return The total number of user records in the open aggregated records of
+	 *         all shards.
+	 */
+	public int getNumUserRecords() {
+		int total = 0;
+		for (RecordAggregator aggregator : this.aggregators) {
+			total += aggregator.getNumUserRecords();
+		}
+		return total;
+	}
+
+	/**
+	 * @return The total size in bytes of the open aggregated records of all shards.
+	 */
+	public long getSizeBytes() {
+		long total = 0;
+		for (RecordAggregator aggregator : this.aggregators) {
+			total += aggregator.getSizeBytes();
+		}
+		return total;
+	}
+
+	/**
+	 * Register a callback method to be notified when the aggregated record of any
+	 * shard is full. Callbacks registered via this method are executed on a
+	 * separate thread from the common ForkJoin pool.
+	 * 
+	 * @param listener The listener to receive a callback when there is a complete
+	 *                 aggregated record available (can be a lambda function).
+	 */
+	public void onRecordComplete(RecordCompleteListener listener) {
+		for (RecordAggregator aggregator : this.aggregators) {
+			aggregator.onRecordComplete(listener);
+		}
+	}
+
+	/**
+	 * Register a callback method to be notified when the aggregated record of any
+	 * shard is full and invoke the callback using the specified executor.
+	 * 
+	 * @param listener The listener to receive a callback when there is a complete
+	 *                 aggregated record available (can be a lambda function).
+	 * @param executor The executor to use to execute the callback.
+	 */
+	public void onRecordComplete(RecordCompleteListener listener, Executor executor) {
+		for (RecordAggregator aggregator : this.aggregators) {
+			aggregator.onRecordComplete(listener, executor);
+		}
+	}
+
+	/**
+	 * Clear all the listeners registered with the onRecordComplete method.
+	 */
+	public void clearListeners() {
+		for (RecordAggregator aggregator : this.aggregators) {
+			aggregator.clearListeners();
+		}
+	}
+
+	/**
+	 * Discard the user records in the open aggregated records of all shards.
+	 */
+	public void clearRecords() {
+		for (RecordAggregator aggregator : this.aggregators) {
+			aggregator.clearRecord();
+		}
+	}
+
+	/**
+	 * Get the open aggregated record of every shard that has any user records,
+	 * whether full or not, and start new empty ones (e.g. to flush all shards at
+	 * shutdown or on a timer). Listeners are not notified.
+	 * 
+	 * @return The sealed aggregated records, in shard hash key order. The list is
+	 *         empty if no shard has any user records.
+	 */
+	public List<AggRecord> clearAndGet() {
+		List<AggRecord> records = new ArrayList<>();
+		for (RecordAggregator aggregator : this.aggregators) {
+			AggRecord record = aggregator.clearAndGet();
+			if (record != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Add a new user record to the aggregated record of the shard it belongs to
+	 * (will trigger a callback via onRecordComplete if that aggregated record is
+	 * full).
+	 * 
+	 * @param partitionKey The partition key of the record to add
+	 * @param data         The record data of the record to add
+	 * @return A AggRecord if the shard's aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to an agg record
+	 */
+	public AggRecord addUserRecord(String partitionKey, byte[] data) throws Exception {
+		return addUserRecord(partitionKey, null, data);
+	}
+
+	/**
+	 * Add a new user record to the aggregated record of the shard it belongs to
+	 * (will trigger a callback via onRecordComplete if that aggregated record is
+	 * full).
+	 * 
+	 * @param partitionKey    The partition key of the record to add
+	 * @param explicitHashKey The explicit hash key of the record to add, or null
+	 *                        to route by the MD5 hash of the partition key
+	 * @param data            The record data of the record to add
+	 * @return A AggRecord if the shard's aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to an agg record
+	 */
+	public AggRecord addUserRecord(String partitionKey, String explicitHashKey, byte[] data) throws Exception {
+		if (partitionKey == null) {
+			throw new IllegalArgumentException("Partition key cannot be null");
+		}
+
+		byte[] pkBytes = partitionKey.getBytes(StandardCharsets.UTF_8);
+		if (explicitHashKey != null) {
+			HashKey hashKey;
+			try {
+				hashKey = HashKey.parse(explicitHashKey);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(
+						"Invalid explicitHashKey, must be an integer, got " + explicitHashKey);
+			}
+			writeBinary(hashKey, this.explicitHashKeyBytes);
+		} else if (this.explicitHashKeyCache != null) {
+			HashKey hashKey = this.explicitHashKeyCache.get(partitionKey);
+			if (hashKey == null) {
+				digestPartitionKey(pkBytes);
+				this.explicitHashKeyCache.put(partitionKey, HashKey.fromDigest(this.explicitHashKeyBytes));
+			} else {
+				writeBinary(hashKey, this.explicitHashKeyBytes);
+			}
+		} else {
+			digestPartitionKey(pkBytes);
+		}
+
+		return route(pkBytes, this.explicitHashKeyBytes, data);
+	}
+
+	/**
+	 * Add a new user record with a pre-encoded partition key and a binary
+	 * explicit hash key to the aggregated record of the shard it belongs to (will
+	 * trigger a callback via onRecordComplete if that aggregated record is full).
+	 * 
+	 * @param partitionKey    The UTF-8 encoded partition key of the record to add
+	 * @param explicitHashKey The explicit hash key of the record to add as a 16
+	 *                        byte big-endian unsigned integer, or null to route by
+	 *                        the MD5 hash of the partition key
+	 * @param data            The record data of the record to add
+	 * @return A AggRecord if the shard's aggregated record is full and ready to be
+	 *         transmitted or null otherwise.
+	 * @throws Exception If the user record can't be added to an agg record
+	 */
+	public AggRecord addUserRecord(byte[] partitionKey, byte[] explicitHashKey, byte[] data) throws Exception {
+		if (partitionKey == null) {
+			throw new IllegalArgumentException("Partition key cannot be null");
+		}
+
+		if (explicitHashKey == null) {
+			digestPartitionKey(partitionKey);
+			explicitHashKey = this.explicitHashKeyBytes;
+		} else if (explicitHashKey.length != BINARY_HASH_KEY_LENGTH) {
+			throw new IllegalArgumentException("Invalid explicitHashKey, binary form must be " + BINARY_HASH_KEY_LENGTH
+					+ " bytes, got " + explicitHashKey.length + " bytes");
+		}
+
+		return route(partitionKey, explicitHashKey, data);
+	}
+
+	private AggRecord route(byte[] partitionKey, byte[] explicitHashKey, byte[] data) throws Exception {
+		int shard = findShard(HashKey.readLong(explicitHashKey, 0), HashKey.readLong(explicitHashKey, 8));
+		return this.aggregators[shard].addUserRecord(partitionKey, explicitHashKey, data);
+	}
+
+	/**
+	 * Find the shard whose hash key range contains a hash key.
+	 */
+	private int findShard(long high, long low) {
+		int shard = this.shards.find(high, low);
+		if (shard < 0) {
+			throw new IllegalArgumentException(
+					"No open shard contains the hash key " + HashKey.of(high, low) + "; the shard list may be stale");
+		}
+		return shard;
+	}
+
+	/**
+	 * Calculate the MD5 digest of a partition key into the explicit hash key
+	 * scratch array, which is its binary explicit hash key.
+	 */
+	private void digestPartitionKey(byte[] partitionKey) {
+		this.keyDigest.reset();
+		this.keyDigest.update(partitionKey);
+		try {
+			this.keyDigest.digest(this.explicitHashKeyBytes, 0, BINARY_HASH_KEY_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException("Could not calculate the MD5 digest of the partition key.", e);
+		}
+	}
+
+	private static void writeBinary(HashKey hashKey, byte[] dest) {
+		long high = hashKey.getHighBits(), low = hashKey.getLowBits();
+		for (int i = 7; i >= 0; i--) {
+			dest[i] = (byte) high;
+			dest[i + 8] = (byte) low;
+			high >>>= 8;
+			low >>>= 8;
+		}
+	}
+}
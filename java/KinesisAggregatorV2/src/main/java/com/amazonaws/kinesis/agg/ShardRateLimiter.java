@@ -0,0 +1,427 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.amazonaws.kinesis.agg.RecordAggregator.RecordCompleteListener;
+
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+/**
+ * A stage between a record aggregator and a sender (such as
+ * {@link PutRecordsSender}) that paces completed aggregated records to the
+ * write limits of the shards they are sent to, so that they are not throttled
+ * with ProvisionedThroughputExceededException and retried. Kinesis counts an
+ * aggregated record as a single record but charges its full size, so each
+ * shard gets a token bucket of {@value #SHARD_BYTES_PER_SECOND} bytes and
+ * {@value #SHARD_RECORDS_PER_SECOND} records per second by default, holding up
+ * to one second's worth of tokens for bursts.
+ *
+ * The shard of an aggregated record is the one whose hash key range contains
+ * its explicit hash key. The shards come either from a shard list, as for a
+ * {@link ShardAwareAggregator}, or from a shard count, in which case the hash
+ * key space is split into equal ranges as Kinesis does for a stream created or
+ * uniformly rescaled to that count. Records whose explicit hash key no open
+ * shard contains (because the shard list is stale) are passed on unpaced.
+ *
+ * A record that its shard's bucket can pay for is passed to the downstream
+ * listener straight away on the calling thread. Otherwise it waits in a queue
+ * for its shard, behind any records already waiting for that shard, and is
+ * passed on from the limiter's executor once the bucket has refilled. By
+ * default that is a pool of daemon threads dedicated to rate limiters, never
+ * the common ForkJoin pool, so a downstream listener that blocks only holds up
+ * the shard it is passing records on for. Records are therefore delayed rather
+ * than dropped, and the queues are unbounded: use an
+ * {@link InFlightByteBudget} on the aggregator to stop producers from outrunning
+ * the stream.
+ *
+ * This class is thread-safe.
+ */
+@ThreadSafe
+public class ShardRateLimiter implements RecordCompleteListener {
+	/** The number of bytes a shard accepts per second. */
+	public static final long SHARD_BYTES_PER_SECOND = 1024 * 1024; // 1 MB
+	/** The number of records a shard accepts per second. */
+	public static final int SHARD_RECORDS_PER_SECOND = 1000;
+
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The executor that waiting records are passed on from when none is given.
+	 * Its threads are only created while records are waiting.
+	 */
+	private static final Executor DEFAULT_EXECUTOR = createDefaultExecutor();
+
+	/** The hash key ranges of the shards being paced. */
+	private final ShardMap shards;
+	/** The token bucket of each shard, in hash key order. */
+	private final Bucket[] buckets;
+	/** The listener that receives records once they are within the limits. */
+	private final RecordCompleteListener downstream;
+	/** The executor that waiting records are passed on from. */
+	private final Executor executor;
+	/** The number of bytes each shard may be sent per second. */
+	private final long bytesPerSecond;
+	/** The number of records each shard may be sent per second. */
+	private final int recordsPerSecond;
+	/** The number of records that had to wait for their shard's bucket. */
+	private final AtomicLong delayedRecordCount = new AtomicLong();
+	/** The number of records passed on unpaced because no shard matched. */
+	private final AtomicLong unmatchedRecordCount = new AtomicLong();
+
+	/**
+	 * Construct a new rate limiter for the shards of a stream, using the Kinesis
+	 * limits for each shard.
+	 * 
+	 * @param shards     The shards of the destination stream. Closed shards are
+	 *                   ignored.
+	 * @param downstream The listener to pass paced records to.
+	 */
+	public ShardRateLimiter(List<Shard> shards, RecordCompleteListener downstream) {
+		this(shards, downstream, SHARD_BYTES_PER_SECOND, SHARD_RECORDS_PER_SECOND);
+	}
+
+	/**
+	 * Construct a new rate limiter for the shards of a stream with custom
+	 * limits, e.g. to leave room for other producers writing to the stream.
+	 * 
+	 * @param shards           The shards of the destination stream. Closed shards
+	 *                         are ignored.
+	 * @param downstream       The listener to pass paced records to.
+	 * @param bytesPerSecond   The number of bytes each shard may be sent per
+	 *                         second.
+	 * @param recordsPerSecond The number of records each shard may be sent per
+	 *                         second.
+	 */
+	public ShardRateLimiter(List<Shard> shards, RecordCompleteListener downstream, long bytesPerSecond,
+			int recordsPerSecond) {
+		this(shards, downstream, bytesPerSecond, recordsPerSecond, DEFAULT_EXECUTOR);
+	}
+
+	/**
+	 * Construct a new rate limiter for the shards of a stream with custom
+	 * limits, passing waiting records on from the given executor.
+	 * 
+	 * @param shards           The shards of the destination stream. Closed shards
+	 *                         are ignored.
+	 * @param downstream       The listener to pass paced records to.
+	 * @param bytesPerSecond   The number of bytes each shard may be sent per
+	 *                         second.
+	 * @param recordsPerSecond The number of records each shard may be sent per
+	 *                         second.
+	 * @param executor         The executor to pass waiting records on from. If
+	 *                         the downstream listener may block, this must not
+	 *                         be the common ForkJoin pool.
+	 */
+	public ShardRateLimiter(List<Shard> shards, RecordCompleteListener downstream, long bytesPerSecond,
+			int recordsPerSecond, Executor executor) {
+		this(ShardMap.of(shards), downstream, bytesPerSecond, recordsPerSecond, executor);
+	}
+
+	/**
+	 * Construct a new rate limiter for a stream whose shards split the hash key
+	 * space evenly, using the Kinesis limits for each shard.
+	 * 
+	 * @param shardCount The number of open shards in the stream.
+	 * @param downstream The listener to pass paced records to.
+	 */
+	public ShardRateLimiter(int shardCount, RecordCompleteListener downstream) {
+		this(shardCount, downstream, SHARD_BYTES_PER_SECOND, SHARD_RECORDS_PER_SECOND);
+	}
+
+	/**
+	 * Construct a new rate limiter for a stream whose shards split the hash key
+	 * space evenly, with custom limits.
+	 * 
+	 * @param shardCount       The number of open shards in the stream.
+	 * @param downstream       The listener to pass paced records to.
+	 * @param bytesPerSecond   The number of bytes each shard may be sent per
+	 *                         second.
+	 * @param recordsPerSecond The number of records each shard may be sent per
+	 *                         second.
+	 */
+	public ShardRateLimiter(int shardCount, RecordCompleteListener downstream, long bytesPerSecond,
+			int recordsPerSecond) {
+		this(shardCount, downstream, bytesPerSecond, recordsPerSecond, DEFAULT_EXECUTOR);
+	}
+
+	/**
+	 * Construct a new rate limiter for a stream whose shards split the hash key
+	 * space evenly, with custom limits, passing waiting records on from the
+	 * given executor.
+	 * 
+	 * @param shardCount       The number of open shards in the stream.
+	 * @param downstream       The listener to pass paced records to.
+	 * @param bytesPerSecond   The number of bytes each shard may be sent per
+	 *                         second.
+	 * @param recordsPerSecond The number of records each shard may be sent per
+	 *                         second.
+	 * @param executor         The executor to pass waiting records on from. If
+	 *                         the downstream listener may block, this must not
+	 *                         be the common ForkJoin pool.
+	 */
+	public ShardRateLimiter(int shardCount, RecordCompleteListener downstream, long bytesPerSecond,
+			int recordsPerSecond, Executor executor) {
+		this(ShardMap.uniform(shardCount), downstream, bytesPerSecond, recordsPerSecond, executor);
+	}
+
+	private ShardRateLimiter(ShardMap shards, RecordCompleteListener downstream, long bytesPerSecond,
+			int recordsPerSecond, Executor executor) {
+		if (downstream == null || executor == null) {
+			throw new IllegalArgumentException("Downstream listener and executor cannot be null");
+		}
+		if (bytesPerSecond < 1 || recordsPerSecond < 1) {
+			throw new IllegalArgumentException("Limits must be positive, got " + bytesPerSecond
+					+ " bytes and " + recordsPerSecond + " records per second");
+		}
+
+		this.shards = shards;
+		this.downstream = downstream;
+		this.executor = executor;
+		this.bytesPerSecond = bytesPerSecond;
+		this.recordsPerSecond = recordsPerSecond;
+		this.buckets = new Bucket[shards.size()];
+		long now = System.nanoTime();
+		for (int i = 0; i < this.buckets.length; i++) {
+			this.buckets[i] = new Bucket(bytesPerSecond, recordsPerSecond, now);
+		}
+	}
+
+	/**
+	 * @return The number of shards (or hash key ranges) being paced.
+	 */
+	public int getShardCount() {
+		return this.buckets.length;
+	}
+
+	/**
+	 * @return The IDs of the shards being paced, in hash key order, or nulls if
+	 *         this limiter was created from a shard count.
+	 */
+	public List<String> getShardIds() {
+		return this.shards.getShardIds();
+	}
+
+	/**
+	 * @return The number of bytes each shard may be sent per second.
+	 */
+	public long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	/**
+	 * @return The number of records each shard may be sent per second.
+	 */
+	public int getRecordsPerSecond() {
+		return this.recordsPerSecond;
+	}
+
+	/**
+	 * @return The number of records currently waiting for their shard's bucket.
+	 */
+	public int getQueuedRecordCount() {
+		int total = 0;
+		for (Bucket bucket : this.buckets) {
+			synchronized (bucket) {
+				total += bucket.queue.size();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return The number of records that have had to wait for their shard's
+	 *         bucket.
+	 */
+	public long getDelayedRecordCount() {
+		return this.delayedRecordCount.get();
+	}
+
+	/**
+	 * @return The number of records passed on unpaced because no shard contained
+	 *         their explicit hash key.
+	 */
+	public long getUnmatchedRecordCount() {
+		return this.unmatchedRecordCount.get();
+	}
+
+	/**
+	 * Pass a completed aggregated record to the downstream listener as soon as
+	 * its shard's limits allow. Empty records are released without being passed
+	 * on.
+	 */
+	@Override
+	public void recordComplete(AggRecord aggRecord) {
+		if (aggRecord == null) {
+			return;
+		}
+		if (aggRecord.getNumUserRecords() == 0) {
+			// nothing to send, but this listener still holds the record
+			aggRecord.release();
+			return;
+		}
+
+		HashKey hashKey = HashKey.parse(aggRecord.getExplicitHashKey());
+		int shard = this.shards.find(hashKey.getHighBits(), hashKey.getLowBits());
+		if (shard < 0) {
+			this.unmatchedRecordCount.incrementAndGet();
+			this.downstream.recordComplete(aggRecord);
+			return;
+		}
+
+		Bucket bucket = this.buckets[shard];
+		long entryBytes = PutRecordsSender.getEntrySize(aggRecord);
+		synchronized (bucket) {
+			// records for a shard that already has some waiting (or being passed
+			// on) queue behind them, so records stay in order
+			if (bucket.draining || !bucket.tryTake(entryBytes, System.nanoTime())) {
+				bucket.queue.add(aggRecord);
+				this.delayedRecordCount.incrementAndGet();
+				if (!bucket.draining) {
+					bucket.draining = true;
+					scheduleDrain(bucket, bucket.waitNanos(entryBytes));
+				}
+				return;
+			}
+		}
+		this.downstream.recordComplete(aggRecord);
+	}
+
+	private void scheduleDrain(Bucket bucket, long delayNanos) {
+		// the timer thread must not block, so hand off to the executor
+		SharedScheduler.get().schedule(() -> {
+			try {
+				this.executor.execute(() -> drain(bucket));
+			} catch (RejectedExecutionException e) {
+				drain(bucket);
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private static Executor createDefaultExecutor() {
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "kinesis-aggregator-rate-limiter");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Pass on the records waiting for a bucket that it can now pay for, then
+	 * schedule another drain if any are left.
+	 */
+	private void drain(Bucket bucket) {
+		while (true) {
+			List<AggRecord> ready = new ArrayList<>();
+			synchronized (bucket) {
+				long now = System.nanoTime();
+				AggRecord next;
+				while ((next = bucket.queue.peek()) != null
+						&& bucket.tryTake(PutRecordsSender.getEntrySize(next), now)) {
+					ready.add(bucket.queue.poll());
+				}
+
+				if (ready.isEmpty()) {
+					if (next == null) {
+						bucket.draining = false;
+					} else {
+						scheduleDrain(bucket, bucket.waitNanos(PutRecordsSender.getEntrySize(next)));
+					}
+					return;
+				}
+			}
+
+			for (AggRecord aggRecord : ready) {
+				this.downstream.recordComplete(aggRecord);
+			}
+		}
+	}
+
+	/**
+	 * The token bucket and queue of waiting records of a single shard. All access
+	 * must hold the bucket's lock.
+	 */
+	private static final class Bucket {
+		/** The bytes and records added to the bucket per nanosecond. */
+		private final double bytesPerNano, recordsPerNano;
+		/** The most bytes and records the bucket can hold. */
+		private final double byteCapacity, recordCapacity;
+		/** The bytes and records currently in the bucket. */
+		private double bytes, records;
+		/** The time the bucket was last refilled. */
+		private long refilledNanos;
+		/** The records waiting for the bucket, in the order they arrived. */
+		private final ArrayDeque<AggRecord> queue = new ArrayDeque<>();
+		/** Whether a drain has been scheduled or is passing records on. */
+		private boolean draining;
+
+		private Bucket(long bytesPerSecond, int recordsPerSecond, long now) {
+			this.bytesPerNano = bytesPerSecond / NANOS_PER_SECOND;
+			this.recordsPerNano = recordsPerSecond / NANOS_PER_SECOND;
+			this.byteCapacity = bytesPerSecond;
+			this.recordCapacity = recordsPerSecond;
+			this.bytes = this.byteCapacity;
+			this.records = this.recordCapacity;
+			this.refilledNanos = now;
+		}
+
+		/**
+		 * Take the tokens for a record if the bucket holds enough. A record larger
+		 * than the byte capacity only needs a full bucket, and leaves it in debt.
+		 */
+		private boolean tryTake(long entryBytes, long now) {
+			refill(now);
+			if (this.records < 1 || this.bytes < Math.min(entryBytes, this.byteCapacity)) {
+				return false;
+			}
+			this.records -= 1;
+			this.bytes -= entryBytes;
+			return true;
+		}
+
+		/**
+		 * @return The time until the bucket can pay for a record, in nanoseconds.
+		 */
+		private long waitNanos(long entryBytes) {
+			double byteWait = (Math.min(entryBytes, this.byteCapacity) - this.bytes) / this.bytesPerNano;
+			double recordWait = (1 - this.records) / this.recordsPerNano;
+			return Math.max(1, (long) Math.ceil(Math.max(byteWait, recordWait)));
+		}
+
+		private void refill(long now) {
+			long elapsed = now - this.refilledNanos;
+			if (elapsed > 0) {
+				this.bytes = Math.min(this.byteCapacity, this.bytes + elapsed * this.bytesPerNano);
+				this.records = Math.min(this.recordCapacity, this.records + elapsed * this.recordsPerNano);
+				this.refilledNanos = now;
+			}
+		}
+	}
+}
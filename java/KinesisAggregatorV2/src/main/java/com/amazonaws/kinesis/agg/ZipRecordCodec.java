@@ -0,0 +1,202 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The gzip and zlib codecs, built on the JDK's Deflater and Inflater. Each
+ * call uses its own Deflater or Inflater, which is ended before returning so
+ * that no native memory is left to the finalizer.
+ */
+@ThreadSafe
+final class ZipRecordCodec implements RecordCodec {
+	private static final int GZIP_HEADER_LENGTH = 10;
+	private static final int GZIP_TRAILER_LENGTH = 8;
+	// magic number, deflate method, no flags, no modification time, no extra
+	// flags and an unknown OS, as written by GZIPOutputStream
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+	private static final int ZLIB_WRAPPER_LENGTH = 6;
+
+	private final int id;
+	/** Whether this codec writes the gzip format rather than the zlib format. */
+	private final boolean gzip;
+
+	ZipRecordCodec(int id, boolean gzip) {
+		this.id = id;
+		this.gzip = gzip;
+	}
+
+	@Override
+	public int getId() {
+		return this.id;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		// the bound zlib's deflateBound gives for the default settings
+		int raw = length + (length >> 12) + (length >> 14) + (length >> 25) + 7;
+		return raw + (this.gzip ? GZIP_HEADER_LENGTH + GZIP_TRAILER_LENGTH : ZLIB_WRAPPER_LENGTH);
+	}
+
+	@Override
+	public byte[] compress(byte[] src, int offset, int length) {
+		byte[] out = new byte[maxCompressedLength(length)];
+		int position = 0;
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, this.gzip);
+		try {
+			if (this.gzip) {
+				System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER_LENGTH);
+				position = GZIP_HEADER_LENGTH;
+			}
+			deflater.setInput(src, offset, length);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (position == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				position += deflater.deflate(out, position, out.length - position);
+			}
+		} finally {
+			deflater.end();
+		}
+
+		if (this.gzip) {
+			if (position + GZIP_TRAILER_LENGTH > out.length) {
+				out = Arrays.copyOf(out, position + GZIP_TRAILER_LENGTH);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(src, offset, length);
+			writeIntLE(out, position, (int) crc.getValue());
+			writeIntLE(out, position + 4, length);
+			position += GZIP_TRAILER_LENGTH;
+		}
+		return position == out.length ? out : Arrays.copyOf(out, position);
+	}
+
+	@Override
+	public byte[] decompress(byte[] src, int offset, int length, int uncompressedLength) {
+		int start = offset, end = offset + length;
+		if (this.gzip) {
+			start += gzipHeaderLength(src, offset, length);
+			end -= GZIP_TRAILER_LENGTH;
+			if (end < start) {
+				throw new IllegalArgumentException("Truncated gzip data");
+			}
+		}
+
+		byte[] out = new byte[uncompressedLength];
+		Inflater inflater = new Inflater(this.gzip);
+		try {
+			// in nowrap mode zlib may need a byte beyond the end of the deflate
+			// stream, which the gzip trailer provides
+			inflater.setInput(src, start, this.gzip ? end - start + GZIP_TRAILER_LENGTH : end - start);
+			int inflated = 0;
+			while (inflated < uncompressedLength && !inflater.finished()) {
+				int count = inflater.inflate(out, inflated, uncompressedLength - inflated);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += count;
+			}
+			// the end of the stream may only be seen once the output is full
+			if (inflated == uncompressedLength && !inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+				inflated++;
+			}
+			if (inflated != uncompressedLength || !inflater.finished()) {
+				throw new IllegalArgumentException(
+						"Compressed data does not decompress to the expected " + uncompressedLength + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Invalid compressed data", e);
+		} finally {
+			inflater.end();
+		}
+
+		if (this.gzip) {
+			CRC32 crc = new CRC32();
+			crc.update(out, 0, uncompressedLength);
+			if (readIntLE(src, end) != (int) crc.getValue() || readIntLE(src, end + 4) != uncompressedLength) {
+				throw new IllegalArgumentException("The gzip trailer does not match the decompressed data");
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Find the length of a gzip header, skipping any optional fields, which must
+	 * leave room for the trailer.
+	 */
+	private static int gzipHeaderLength(byte[] src, int offset, int length) {
+		if (length < GZIP_HEADER_LENGTH + GZIP_TRAILER_LENGTH || src[offset] != GZIP_HEADER[0]
+				|| src[offset + 1] != GZIP_HEADER[1] || src[offset + 2] != Deflater.DEFLATED) {
+			throw new IllegalArgumentException("Invalid gzip header");
+		}
+
+		int flags = src[offset + 3] & 0xFF;
+		int position = offset + GZIP_HEADER_LENGTH;
+		int end = offset + length - GZIP_TRAILER_LENGTH;
+		if ((flags & 0x04) != 0) { // FEXTRA
+			if (end - position < 2) {
+				throw new IllegalArgumentException("Truncated gzip header");
+			}
+			int extraLength = (src[position] & 0xFF) | (src[position + 1] & 0xFF) << 8;
+			position += 2;
+			if (end - position < extraLength) {
+				throw new IllegalArgumentException("Truncated gzip header");
+			}
+			position += extraLength;
+		}
+		for (int flag : new int[] { 0x08, 0x10 }) { // FNAME, FCOMMENT
+			if ((flags & flag) != 0) {
+				while (position < end && src[position] != 0) {
+					position++;
+				}
+				if (position == end) {
+					throw new IllegalArgumentException("Truncated gzip header");
+				}
+				position++;
+			}
+		}
+		if ((flags & 0x02) != 0) { // FHCRC
+			if (end - position < 2) {
+				throw new IllegalArgumentException("Truncated gzip header");
+			}
+			position += 2;
+		}
+		return position - offset;
+	}
+
+	private static void writeIntLE(byte[] dest, int offset, int value) {
+		dest[offset] = (byte) value;
+		dest[offset + 1] = (byte) (value >>> 8);
+		dest[offset + 2] = (byte) (value >>> 16);
+		dest[offset + 3] = (byte) (value >>> 24);
+	}
+
+	private static int readIntLE(byte[] src, int offset) {
+		return (src[offset] & 0xFF) | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16
+				| (src[offset + 3] & 0xFF) << 24;
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AggRecordAllocationTest {
+	private static final int RECORDS_PER_ROUND = 1000;
+
+	private com.sun.management.ThreadMXBean threadBean;
+	private final byte[][] partitionKeys = new byte[8][];
+	private final byte[] explicitHashKey = new byte[16];
+	private final byte[] data = "abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.UTF_8);
+
+	@Before
+	public void setUp() {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(this.threadBean.isThreadAllocatedMemorySupported());
+		this.threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		for (int i = 0; i < this.partitionKeys.length; i++) {
+			this.partitionKeys[i] = ("partition-key-" + i).getBytes(StandardCharsets.UTF_8);
+		}
+		this.explicitHashKey[0] = 0x7f;
+		this.explicitHashKey[15] = 0x01;
+	}
+
+	@Test
+	public void testDerivedExplicitHashKeyDoesNotAllocate() {
+		AggRecord record = new AggRecord();
+		Assert.assertEquals(0, measureRound(record, false));
+	}
+
+	@Test
+	public void testBinaryExplicitHashKeyDoesNotAllocate() {
+		AggRecord record = new AggRecord();
+		Assert.assertEquals(0, measureRound(record, true));
+	}
+
+	@Test
+	public void testEncodedPartitionKeyMatchesString() {
+		AggRecord encoded = new AggRecord();
+		AggRecord string = new AggRecord();
+		for (int i = 0; i < 20; i++) {
+			encoded.addUserRecord(this.partitionKeys[i % 3], null, this.data);
+			string.addUserRecord("partition-key-" + (i % 3), null, this.data);
+		}
+
+		Assert.assertEquals(string.getPartitionKey(), encoded.getPartitionKey());
+		Assert.assertEquals(string.getExplicitHashKey(), encoded.getExplicitHashKey());
+		Assert.assertArrayEquals(string.toRecordBytes(), encoded.toRecordBytes());
+	}
+
+	@Test
+	public void testBinaryExplicitHashKeyMatchesDecimal() {
+		AggRecord binary = new AggRecord();
+		binary.addUserRecord(this.partitionKeys[0], this.explicitHashKey, this.data);
+		AggRecord decimal = new AggRecord();
+		decimal.addUserRecord("partition-key-0", HashKey.fromDigest(this.explicitHashKey).toString(), this.data);
+
+		Assert.assertEquals(decimal.getExplicitHashKey(), binary.getExplicitHashKey());
+		Assert.assertArrayEquals(decimal.toRecordBytes(), binary.toRecordBytes());
+	}
+
+	/**
+	 * Measure the bytes allocated by adding a round of user records that reuse a
+	 * working set of partition keys, once the record's buffers have grown to fit
+	 * them and the code has been compiled.
+	 */
+	private long measureRound(AggRecord record, boolean binaryExplicitHashKey) {
+		long threadId = Thread.currentThread().getId();
+		long overhead = Long.MAX_VALUE;
+		long allocated = Long.MAX_VALUE;
+
+		// repeat so that neither JIT compilation nor the first occurrence of
+		// each partition key in a record is counted
+		for (int i = 0; i < 200; i++) {
+			record.clear();
+			addRound(record, binaryExplicitHashKey);
+
+			long start = this.threadBean.getThreadAllocatedBytes(threadId);
+			long end = this.threadBean.getThreadAllocatedBytes(threadId);
+			overhead = Math.min(overhead, end - start);
+
+			start = this.threadBean.getThreadAllocatedBytes(threadId);
+			addRound(record, binaryExplicitHashKey);
+			end = this.threadBean.getThreadAllocatedBytes(threadId);
+			allocated = Math.min(allocated, end - start - overhead);
+		}
+
+		return Math.max(allocated, 0);
+	}
+
+	private void addRound(AggRecord record, boolean binaryExplicitHashKey) {
+		for (int i = 0; i < RECORDS_PER_ROUND; i++) {
+			byte[] partitionKey = this.partitionKeys[i % this.partitionKeys.length];
+			Assert.assertTrue(
+					record.addUserRecord(partitionKey, binaryExplicitHashKey ? this.explicitHashKey : null, this.data));
+		}
+	}
+}
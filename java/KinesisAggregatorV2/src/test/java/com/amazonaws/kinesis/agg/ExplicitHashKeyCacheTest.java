@@ -0,0 +1,101 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExplicitHashKeyCacheTest {
+	@Test
+	public void testSharedAcrossAggregatedRecords() throws Exception {
+		ExplicitHashKeyCache cache = new ExplicitHashKeyCache(100);
+		RecordAggregator aggregator = new RecordAggregator(cache);
+		byte[] data = "data".getBytes(StandardCharsets.UTF_8);
+
+		aggregator.addUserRecord("tenant-1", data);
+		aggregator.addUserRecord("tenant-2", data);
+		AggRecord first = aggregator.clearAndGet();
+
+		aggregator.addUserRecord("tenant-1", data);
+		aggregator.addUserRecord("tenant-2", data);
+		AggRecord second = aggregator.clearAndGet();
+
+		Assert.assertEquals(2, cache.getMissCount());
+		Assert.assertEquals(2, cache.getHitCount());
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(new BigInteger(DigestUtils.md5Hex("tenant-1"), 16).toString(),
+				second.getExplicitHashKey());
+		Assert.assertEquals(first.getExplicitHashKey(), second.getExplicitHashKey());
+	}
+
+	@Test
+	public void testEvictsEntriesNotRecentlyUsed() {
+		ExplicitHashKeyCache cache = new ExplicitHashKeyCache(2);
+		cache.put("a", HashKey.of(0, 1));
+		cache.put("b", HashKey.of(0, 2));
+		Assert.assertEquals(HashKey.of(0, 1), cache.get("a"));
+
+		// "a" has been used since it was added and gets a second chance, "b" has not
+		cache.put("c", HashKey.of(0, 3));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals(HashKey.of(0, 1), cache.get("a"));
+		Assert.assertEquals(HashKey.of(0, 3), cache.get("c"));
+	}
+
+	@Test
+	public void testSharedAcrossThreads() throws Exception {
+		ExplicitHashKeyCache cache = new ExplicitHashKeyCache(50);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> lookups = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				lookups.add(executor.submit(() -> {
+					for (int i = 0; i < 10000; i++) {
+						String partitionKey = "key-" + (i % 100);
+						HashKey explicitHashKey = cache.get(partitionKey);
+						if (explicitHashKey == null) {
+							cache.put(partitionKey, HashKey.of(0, i % 100));
+						} else {
+							Assert.assertEquals(HashKey.of(0, i % 100), explicitHashKey);
+						}
+						// entries added by the other threads may not have been evicted yet
+						Assert.assertTrue(cache.size() <= 50 + 4);
+					}
+				}));
+			}
+			for (Future<?> lookup : lookups) {
+				lookup.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(4 * 10000, cache.getHitCount() + cache.getMissCount());
+		Assert.assertTrue(cache.size() <= 50);
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashKeyTest {
+	private static final BigInteger UINT_128_MAX = new BigInteger(StringUtils.repeat("FF", 16), 16);
+
+	@Test
+	public void testRoundTripMatchesBigInteger() {
+		Random r = new Random(42);
+		for (int i = 0; i < 10_000; i++) {
+			// vary the magnitude so short and long decimal forms are both covered
+			BigInteger expected = new BigInteger(1 + r.nextInt(128), r);
+			HashKey key = HashKey.parse(expected.toString());
+
+			Assert.assertEquals(expected.toString(), key.toString());
+			Assert.assertEquals(expected.shiftRight(64).longValue(), key.getHighBits());
+			Assert.assertEquals(expected.longValue(), key.getLowBits());
+		}
+	}
+
+	@Test
+	public void testCompareIsUnsigned() {
+		Random r = new Random(7);
+		for (int i = 0; i < 1_000; i++) {
+			BigInteger a = new BigInteger(128, r);
+			BigInteger b = new BigInteger(128, r);
+			Assert.assertEquals(Integer.signum(a.compareTo(b)),
+					Integer.signum(HashKey.parse(a.toString()).compareTo(HashKey.parse(b.toString()))));
+		}
+	}
+
+	@Test
+	public void testBounds() {
+		Assert.assertEquals("0", HashKey.MIN_VALUE.toString());
+		Assert.assertEquals(UINT_128_MAX.toString(), HashKey.MAX_VALUE.toString());
+		Assert.assertEquals(HashKey.MAX_VALUE, HashKey.parse(UINT_128_MAX.toString()));
+		Assert.assertEquals(HashKey.MIN_VALUE, HashKey.parse("-0"));
+		Assert.assertEquals(HashKey.parse("7"), HashKey.parse("+0000000000000000000000000000000000000000007"));
+	}
+
+	@Test
+	public void testFromDigest() {
+		byte[] digest = new byte[16];
+		new Random(3).nextBytes(digest);
+		Assert.assertEquals(new BigInteger(1, digest).toString(), HashKey.fromDigest(digest).toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsOverflow() {
+		HashKey.parse(UINT_128_MAX.add(BigInteger.ONE).toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNegative() {
+		HashKey.parse("-1");
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testRejectsNonInteger() {
+		HashKey.parse("12a4");
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testRejectsSignOnly() {
+		HashKey.parse("-");
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.kinesis.agg.InFlightByteBudget.Policy;
+
+public class InFlightByteBudgetTest {
+	private static final int USER_RECORD_SIZE = 600 * 1024;
+
+	private final List<AggRecord> completed = Collections.synchronizedList(new ArrayList<>());
+
+	private RecordAggregator aggregator(InFlightByteBudget budget) {
+		RecordAggregator aggregator = new RecordAggregator(null, 0, budget);
+		aggregator.onRecordComplete(this.completed::add, Runnable::run);
+		return aggregator;
+	}
+
+	@Test
+	public void testBlocksUntilRecordsAreReleased() throws Exception {
+		InFlightByteBudget budget = new InFlightByteBudget(5 * USER_RECORD_SIZE / 2);
+		RecordAggregator aggregator = aggregator(budget);
+
+		// each user record fills an aggregated record of its own, so the third
+		// add completes a second record and the fourth has to wait
+		aggregator.addUserRecord("a", new byte[USER_RECORD_SIZE]);
+		aggregator.addUserRecord("b", new byte[USER_RECORD_SIZE]);
+		Assert.assertEquals(1, this.completed.size());
+		long firstBytes = this.completed.get(0).getSizeBytes();
+		Assert.assertEquals(firstBytes, budget.getInFlightBytes());
+		aggregator.addUserRecord("c", new byte[USER_RECORD_SIZE]);
+		long secondBytes = this.completed.get(1).getSizeBytes();
+		Assert.assertEquals(firstBytes + secondBytes, budget.getInFlightBytes());
+
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		Thread producer = new Thread(() -> {
+			try {
+				aggregator.addUserRecord("d", new byte[USER_RECORD_SIZE]);
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+		producer.start();
+		while (budget.getWaitCount() == 0) {
+			Thread.sleep(1);
+		}
+		Assert.assertEquals(2, this.completed.size());
+
+		this.completed.get(0).release();
+		producer.join(10_000);
+		Assert.assertFalse(producer.isAlive());
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(3, this.completed.size());
+		Assert.assertEquals(secondBytes + this.completed.get(2).getSizeBytes(), budget.getInFlightBytes());
+	}
+
+	@Test
+	public void testTimesOut() throws Exception {
+		InFlightByteBudget budget = new InFlightByteBudget(USER_RECORD_SIZE, Policy.TIMEOUT, 50,
+				TimeUnit.MILLISECONDS);
+		RecordAggregator aggregator = aggregator(budget);
+
+		aggregator.addUserRecord("a", new byte[USER_RECORD_SIZE]);
+		aggregator.addUserRecord("b", new byte[USER_RECORD_SIZE]);
+		try {
+			aggregator.addUserRecord("c", new byte[USER_RECORD_SIZE]);
+			Assert.fail("Expected the budget to time out");
+		} catch (TimeoutException e) {
+			// expected
+		}
+
+		// the full record stays open, so the user record can be added later
+		Assert.assertEquals(1, aggregator.getNumUserRecords());
+		Assert.assertEquals(1, budget.getRejectedCount());
+		this.completed.get(0).release();
+		aggregator.addUserRecord("c", new byte[USER_RECORD_SIZE]);
+		Assert.assertEquals(2, this.completed.size());
+	}
+
+	@Test
+	public void testRejects() throws Exception {
+		InFlightByteBudget budget = new InFlightByteBudget(USER_RECORD_SIZE, Policy.REJECT, 0, TimeUnit.MILLISECONDS);
+		RecordAggregator aggregator = aggregator(budget);
+
+		aggregator.addUserRecord("a", new byte[USER_RECORD_SIZE]);
+		aggregator.addUserRecord("b", new byte[USER_RECORD_SIZE]);
+		try {
+			aggregator.addUserRecord("c", new byte[USER_RECORD_SIZE]);
+			Assert.fail("Expected the budget to reject the record");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		Assert.assertEquals(0, budget.getWaitCount());
+		Assert.assertEquals(1, budget.getRejectedCount());
+	}
+
+	@Test
+	public void testExplicitFlushesCountWithoutWaiting() throws Exception {
+		InFlightByteBudget budget = new InFlightByteBudget(10, Policy.REJECT, 0, TimeUnit.MILLISECONDS);
+		RecordAggregator aggregator = aggregator(budget);
+
+		aggregator.addUserRecord("a", new byte[100]);
+		AggRecord first = aggregator.clearAndGet();
+		aggregator.addUserRecord("b", new byte[100]);
+		AggRecord second = aggregator.flush();
+		Assert.assertEquals(first.getSizeBytes() + second.getSizeBytes(), budget.getInFlightBytes());
+		Assert.assertEquals(0, budget.getAvailableBytes());
+
+		first.release();
+		second.release();
+		Assert.assertEquals(0, budget.getInFlightBytes());
+	}
+}
@@ -0,0 +1,541 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.HashKeyRange;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+import software.amazon.awssdk.services.kinesis.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+public class PutRecordsSenderTest {
+	/**
+	 * A fake client that records the size of every request and fails the
+	 * entries whose partition key starts with "fail" or "kms", or the first
+	 * retryFailures attempts of those whose partition key starts with "retry".
+	 * Responses are completed on
+	 * the executor if there is one, or immediately otherwise.
+	 */
+	private static class FakeKinesis implements KinesisAsyncClient {
+		private final List<Integer> requestSizes = Collections.synchronizedList(new ArrayList<>());
+		private final AtomicInteger requestCount = new AtomicInteger();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger maxInFlight = new AtomicInteger();
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+		private volatile RuntimeException failure;
+		private volatile ExecutorService executor;
+		private volatile int retryFailures;
+		private final Map<String, Integer> attempts = new HashMap<>();
+		private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public String serviceName() {
+			return "kinesis";
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public CompletableFuture<PutRecordsResponse> putRecords(PutRecordsRequest request) {
+			if (this.executor == null) {
+				CompletableFuture<PutRecordsResponse> response = new CompletableFuture<>();
+				try {
+					response.complete(respond(request));
+				} catch (RuntimeException e) {
+					response.completeExceptionally(e);
+				}
+				return response;
+			}
+			return CompletableFuture.supplyAsync(() -> respond(request), this.executor);
+		}
+
+		private PutRecordsResponse respond(PutRecordsRequest request) {
+			this.requestCount.incrementAndGet();
+			int current = this.inFlight.incrementAndGet();
+			this.maxInFlight.accumulateAndGet(current, Math::max);
+			try {
+				this.gate.await();
+				if (this.failure != null) {
+					throw this.failure;
+				}
+
+				this.requestSizes.add(request.records().size());
+				List<PutRecordsResultEntry> entries = new ArrayList<>();
+				for (int i = 0; i < request.records().size(); i++) {
+					String partitionKey = request.records().get(i).partitionKey();
+					if (partitionKey.startsWith("kms")) {
+						entries.add(PutRecordsResultEntry.builder().errorCode("KMSAccessDeniedException")
+								.errorMessage("Access denied").build());
+					} else if (partitionKey.startsWith("fail") || (partitionKey.startsWith("retry")
+							&& this.attempts.merge(partitionKey, 1, Integer::sum) <= this.retryFailures)) {
+						entries.add(PutRecordsResultEntry.builder().errorCode("ProvisionedThroughputExceededException")
+								.errorMessage("Rate exceeded").build());
+					} else {
+						this.written.add(partitionKey);
+						entries.add(PutRecordsResultEntry.builder().shardId("shardId-000000000000")
+								.sequenceNumber(String.valueOf(i)).build());
+					}
+				}
+				return PutRecordsResponse.builder().records(entries).build();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				this.inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	/** A listener that counts the outcomes it is told about. */
+	private static class CountingListener implements PutRecordsSender.SendListener {
+		private final AtomicInteger sent = new AtomicInteger();
+		private final List<String> errorCodes = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void recordSent(AggRecord aggRecord, PutRecordsResultEntry result) {
+			Assert.assertNotNull(result.sequenceNumber());
+			this.sent.incrementAndGet();
+		}
+
+		@Override
+		public void recordFailed(AggRecord aggRecord, String errorCode, String errorMessage, Throwable cause) {
+			this.errorCodes.add(errorCode);
+		}
+	}
+
+	private static AggRecord record(String partitionKey, String explicitHashKey) throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		aggregator.addUserRecord(partitionKey, explicitHashKey, new byte[10]);
+		return aggregator.clearAndGet();
+	}
+
+	private static AggRecord record(String partitionKey, int dataSize) throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		aggregator.addUserRecord(partitionKey, new byte[dataSize]);
+		return aggregator.clearAndGet();
+	}
+
+	private static Shard shard(String shardId, BigInteger start, BigInteger end) {
+		return Shard.builder().shardId(shardId)
+				.hashKeyRange(
+						HashKeyRange.builder().startingHashKey(start.toString()).endingHashKey(end.toString()).build())
+				.build();
+	}
+
+	@Test
+	public void testBatchesUpToRecordLimit() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 2);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		for (int i = 0; i < 1200; i++) {
+			sender.send(record("key-" + i, 10));
+		}
+		Assert.assertEquals(200, sender.getPendingRecordCount());
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		Assert.assertEquals(Arrays.asList(500, 500, 200), kinesis.requestSizes);
+		Assert.assertEquals(1200, listener.sent.get());
+		Assert.assertEquals(0, sender.getPendingRecordCount());
+	}
+
+	@Test
+	public void testBatchesUpToByteLimit() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1);
+
+		// each entry is just under 1 MB, so only five fit in 5 MB
+		RecordAggregator aggregator = new RecordAggregator();
+		sender.onSendComplete(new CountingListener());
+		aggregator.onRecordComplete(sender, Runnable::run);
+		for (int i = 0; i < 12; i++) {
+			aggregator.addUserRecord("key", new byte[1000 * 1000]);
+		}
+		sender.send(aggregator.clearAndGet());
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		Assert.assertEquals(Arrays.asList(5, 5, 2), kinesis.requestSizes);
+	}
+
+	@Test
+	public void testReportsEveryEntry() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("ok-1", 10));
+		sender.send(record("fail-1", 10));
+		sender.send(record("ok-2", 10));
+		sender.flush();
+
+		Assert.assertEquals(2, listener.sent.get());
+		Assert.assertEquals(Arrays.asList("ProvisionedThroughputExceededException"), listener.errorCodes);
+	}
+
+	@Test
+	public void testReportsFailedRequests() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.failure = new IllegalStateException("Connection reset");
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("a", 10));
+		sender.send(record("b", 10));
+		sender.flush();
+
+		Assert.assertEquals(0, listener.sent.get());
+		Assert.assertEquals(Arrays.asList("IllegalStateException", "IllegalStateException"),
+				listener.errorCodes);
+		Assert.assertEquals(0, sender.getInFlightRequestCount());
+	}
+
+	@Test
+	public void testBoundsConcurrentRequests() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.gate = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		kinesis.executor = executor;
+		try {
+			PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 2);
+			CountingListener listener = new CountingListener();
+			sender.onSendComplete(listener);
+
+			Thread producer = new Thread(() -> {
+				try {
+					for (int i = 0; i < 6; i++) {
+						sender.send(record("key-" + i, 10));
+						sender.flush();
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			producer.start();
+
+			// the third request can't start until one of the first two finishes
+			while (sender.getInFlightRequestCount() < 3) {
+				Thread.sleep(1);
+			}
+			Thread.sleep(50);
+			Assert.assertEquals(2, kinesis.inFlight.get());
+
+			kinesis.gate.countDown();
+			producer.join();
+			Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+			Assert.assertEquals(2, kinesis.maxInFlight.get());
+			Assert.assertEquals(6, listener.sent.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSendsFromListenersOnASingleWorker() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.gate = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		kinesis.executor = executor;
+		try {
+			PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1);
+			CountingListener listener = new CountingListener();
+			sender.onSendComplete(listener);
+			// a listener that sends more records runs on the only response thread,
+			// which must not wait for the permit held by its own request
+			sender.onSendComplete(new PutRecordsSender.SendListener() {
+				@Override
+				public void recordSent(AggRecord aggRecord, PutRecordsResultEntry result) {
+					if (aggRecord.getPartitionKey().equals("a")) {
+						try {
+							sender.send(record("c", 10));
+						} catch (Exception e) {
+							throw new IllegalStateException(e);
+						}
+						sender.flush();
+					}
+				}
+
+				@Override
+				public void recordFailed(AggRecord aggRecord, String errorCode, String errorMessage,
+						Throwable cause) {
+				}
+			});
+
+			sender.send(record("a", 10));
+			sender.flush();
+			sender.send(record("b", 10));
+			sender.flush();
+			Assert.assertEquals(2, sender.getInFlightRequestCount());
+
+			kinesis.gate.countDown();
+			Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+			Assert.assertEquals(Arrays.asList("a", "b", "c"), kinesis.written);
+			Assert.assertEquals(3, listener.sent.get());
+			Assert.assertEquals(1, kinesis.maxInFlight.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testReleasesRecycledRecords() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1);
+		RecordAggregator aggregator = new RecordAggregator(null, 2);
+		aggregator.onRecordComplete(sender, Runnable::run);
+
+		aggregator.addUserRecord("a", new byte[600 * 1024]);
+		AggRecord complete = aggregator.addUserRecord("b", new byte[600 * 1024]);
+		Assert.assertTrue(complete.isSealed());
+		sender.flush();
+
+		// the sender was the record's only holder, so it has been recycled
+		Assert.assertFalse(complete.isSealed());
+		Assert.assertEquals(0, complete.getNumUserRecords());
+	}
+	@Test
+	public void testRetriesFailedEntries() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.retryFailures = 2;
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1,
+				new PutRecordsRetryPolicy(3, 1, 10, 10), AggRecord::getExplicitHashKey);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("ok-1", 10));
+		sender.send(record("retry-1", 10));
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		// only the failed entry is resubmitted, once per retry
+		Assert.assertEquals(Arrays.asList(2, 1, 1), kinesis.requestSizes);
+		Assert.assertEquals(2, listener.sent.get());
+		Assert.assertTrue(listener.errorCodes.isEmpty());
+		Assert.assertEquals(2, sender.getRetryCount());
+		Assert.assertEquals(0, sender.getAttemptsExhaustedCount());
+		Assert.assertEquals(0, sender.getHeldRecordCount());
+	}
+
+	@Test
+	public void testStopsAfterMaxAttempts() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1,
+				new PutRecordsRetryPolicy(3, 1, 10, 10), AggRecord::getExplicitHashKey);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("fail-1", 10));
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		Assert.assertEquals(Arrays.asList(1, 1, 1), kinesis.requestSizes);
+		Assert.assertEquals(Arrays.asList("ProvisionedThroughputExceededException"), listener.errorCodes);
+		Assert.assertEquals(2, sender.getRetryCount());
+		Assert.assertEquals(1, sender.getAttemptsExhaustedCount());
+	}
+
+	@Test
+	public void testStopsRetryingWhenBudgetIsExhausted() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.failure = SdkClientException.builder().message("Connection reset").build();
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1,
+				new PutRecordsRetryPolicy(10, 1, 10, 3), AggRecord::getExplicitHashKey);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("a", 10));
+		sender.send(record("b", 10));
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		// three tokens are spent retrying, then both records are given up on
+		Assert.assertEquals(3, sender.getRetryCount());
+		Assert.assertEquals(2, sender.getBudgetExhaustedCount());
+		Assert.assertEquals(0, sender.getRetryTokens());
+		Assert.assertEquals(Arrays.asList("SdkClientException", "SdkClientException"), listener.errorCodes);
+
+		// successes refill the budget
+		kinesis.failure = null;
+		sender.send(record("c", 10));
+		sender.flush();
+		Assert.assertEquals(1, sender.getRetryTokens());
+	}
+
+	@Test
+	public void testFailsNonRetryableRequestsImmediately() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.failure = ResourceNotFoundException.builder().message("Stream stream not found").statusCode(400)
+				.awsErrorDetails(AwsErrorDetails.builder().errorCode("ResourceNotFoundException").build()).build();
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1,
+				new PutRecordsRetryPolicy(3, 1, 10, 10), AggRecord::getExplicitHashKey);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("a", 10));
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		Assert.assertEquals(Arrays.asList("ResourceNotFoundException"), listener.errorCodes);
+		Assert.assertEquals(0, sender.getRetryCount());
+		Assert.assertEquals(10, sender.getRetryTokens());
+	}
+
+	@Test
+	public void testFailsUnexpectedExceptionsImmediately() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.failure = new IllegalStateException("Bug in the client");
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1,
+				new PutRecordsRetryPolicy(3, 1, 10, 10), AggRecord::getExplicitHashKey);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("a", 10));
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		Assert.assertEquals(1, kinesis.requestCount.get());
+		Assert.assertEquals(Arrays.asList("IllegalStateException"), listener.errorCodes);
+		Assert.assertEquals(0, sender.getRetryCount());
+		Assert.assertEquals(10, sender.getRetryTokens());
+	}
+
+	@Test
+	public void testFailsNonRetryableEntriesImmediately() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1,
+				new PutRecordsRetryPolicy(3, 1, 10, 10), AggRecord::getExplicitHashKey);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("kms-1", 10));
+		sender.send(record("ok-1", 10));
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		Assert.assertEquals(Arrays.asList(2), kinesis.requestSizes);
+		Assert.assertEquals(Arrays.asList("KMSAccessDeniedException"), listener.errorCodes);
+		Assert.assertEquals(1, listener.sent.get());
+		Assert.assertEquals(0, sender.getRetryCount());
+	}
+
+	@Test
+	public void testKeepsOrderOfRetriedKeys() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.retryFailures = 1;
+		PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1,
+				new PutRecordsRetryPolicy(3, 500, 500, 10), AggRecord::getExplicitHashKey);
+		CountingListener listener = new CountingListener();
+		sender.onSendComplete(listener);
+
+		sender.send(record("retry-1", "1"));
+		sender.send(record("other-1", "2"));
+		sender.flush();
+
+		// sent while retry-1 is waiting for its retry, so held back behind it
+		sender.send(record("same-1", "1"));
+		sender.send(record("other-2", "2"));
+		Assert.assertEquals(2, sender.getHeldRecordCount());
+		sender.flush();
+		Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+
+		Assert.assertEquals(Arrays.asList("other-1", "other-2", "retry-1", "same-1"), kinesis.written);
+		Assert.assertEquals(4, listener.sent.get());
+		Assert.assertEquals(1, sender.getRetryCount());
+	}
+
+	@Test
+	public void testHoldsBackQueuedRecordsOfRetriedKeys() throws Exception {
+		FakeKinesis kinesis = new FakeKinesis();
+		kinesis.retryFailures = 1;
+		kinesis.gate = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		kinesis.executor = executor;
+		try {
+			PutRecordsSender sender = new PutRecordsSender(kinesis, "stream", 1,
+					new PutRecordsRetryPolicy(3, 1, 10, 10), AggRecord::getExplicitHashKey);
+			CountingListener listener = new CountingListener();
+			sender.onSendComplete(listener);
+
+			sender.send(record("retry-1", "1"));
+			sender.flush();
+
+			// both batches wait for the first request's permit
+			sender.send(record("same-1", "1"));
+			sender.send(record("other-1", "2"));
+			sender.flush();
+			sender.send(record("same-2", "1"));
+			sender.flush();
+			Assert.assertEquals(3, sender.getInFlightRequestCount());
+
+			// the batch left empty by the retry is dropped rather than sent
+			kinesis.gate.countDown();
+			Assert.assertTrue(sender.awaitCompletion(10, TimeUnit.SECONDS));
+			Assert.assertEquals(Arrays.asList(1, 1, 3), kinesis.requestSizes);
+			Assert.assertEquals(Arrays.asList("other-1", "retry-1", "same-1", "same-2"), kinesis.written);
+			Assert.assertEquals(4, listener.sent.get());
+			Assert.assertEquals(0, sender.getInFlightRequestCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRequiresOrderingKeyToRetry() {
+		new PutRecordsSender(new FakeKinesis(), "stream", 1, PutRecordsRetryPolicy.DEFAULT, null);
+	}
+
+	@Test
+	public void testShardOrderingKey() throws Exception {
+		BigInteger half = BigInteger.ONE.shiftLeft(127);
+		Function<AggRecord, String> orderingKey = PutRecordsSender.shardOrderingKey(
+				Arrays.asList(shard("shardId-000000000001", BigInteger.ZERO, half.subtract(BigInteger.ONE)),
+						shard("shardId-000000000002", half, BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE))));
+
+		// different explicit hash keys in the same shard share a key
+		Assert.assertEquals("shardId-000000000001", orderingKey.apply(record("a", "1")));
+		Assert.assertEquals("shardId-000000000001", orderingKey.apply(record("b", "2")));
+		Assert.assertEquals("shardId-000000000002", orderingKey.apply(record("c", half.toString())));
+	}
+}
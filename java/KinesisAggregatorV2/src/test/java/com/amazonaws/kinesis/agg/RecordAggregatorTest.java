@@ -18,12 +18,18 @@
 package com.amazonaws.kinesis.agg;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Random;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import software.amazon.kinesis.retrieval.kpl.Messages.AggregatedRecord;
+
 public class RecordAggregatorTest {
 	protected final String ALPHABET = "abcdefghijklmnopqrstuvwxyz";
 
@@ -69,4 +75,138 @@ public class RecordAggregatorTest {
 		String encodedString = Base64.getEncoder().encodeToString(r.toRecordBytes());
 		Assert.assertEquals(encodedTargetValue, encodedString);
 	}
+
+	@Test
+	public void testMultiKeyRecordParses() throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		String[] keys = { "alpha", "beta", "gamma" };
+		int c = 30;
+
+		for (int i = 0; i < c; i++) {
+			String ehk = i % 5 == 0 ? "12345" : null;
+			aggregator.addUserRecord(keys[i % keys.length], ehk, (ALPHABET + i).getBytes(StandardCharsets.UTF_8));
+		}
+
+		AggRecord r = aggregator.clearAndGet();
+		byte[] recordBytes = r.toRecordBytes();
+		Assert.assertEquals(r.getSizeBytes(), recordBytes.length);
+
+		// strip the magic number and checksum and parse the protobuf message
+		AggregatedRecord parsed = AggregatedRecord
+				.parseFrom(Arrays.copyOfRange(recordBytes, 4, recordBytes.length - 16));
+		Assert.assertEquals(c, parsed.getRecordsCount());
+		Assert.assertEquals(Arrays.asList(keys), parsed.getPartitionKeyTableList());
+		for (int i = 0; i < c; i++) {
+			Assert.assertEquals(keys[i % keys.length],
+					parsed.getPartitionKeyTable((int) parsed.getRecords(i).getPartitionKeyIndex()));
+			Assert.assertEquals(ALPHABET + i, parsed.getRecords(i).getData().toStringUtf8());
+		}
+		Assert.assertEquals("12345", parsed.getExplicitHashKeyTable(0));
+	}
+
+	@Test
+	public void testChecksumTracksAddedRecords() throws Exception {
+		AggRecord record = new AggRecord();
+		record.addUserRecord("first", null, ALPHABET.getBytes(StandardCharsets.UTF_8));
+		byte[] before = record.toRecordBytes();
+
+		// serializing must not disturb the running checksum of later records
+		record.addUserRecord("second", "42", ALPHABET.getBytes(StandardCharsets.UTF_8));
+		record.addUserRecord("first", null, ALPHABET.getBytes(StandardCharsets.UTF_8));
+		byte[] after = record.toRecordBytes();
+
+		for (byte[] recordBytes : new byte[][] { before, after }) {
+			byte[] body = Arrays.copyOfRange(recordBytes, 4, recordBytes.length - 16);
+			byte[] checksum = Arrays.copyOfRange(recordBytes, recordBytes.length - 16, recordBytes.length);
+			Assert.assertArrayEquals(DigestUtils.md5(body), checksum);
+		}
+		Assert.assertEquals(3, AggregatedRecord.parseFrom(Arrays.copyOfRange(after, 4, after.length - 16))
+				.getRecordsCount());
+	}
+
+	@Test
+	public void testCompletedRecordIsSealed() throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		aggregator.addUserRecord("partition_key", ALPHABET.getBytes(StandardCharsets.UTF_8));
+
+		AggRecord record = aggregator.clearAndGet();
+		Assert.assertTrue(record.isSealed());
+
+		byte[] first = record.toRecordBytes();
+		byte[] second = record.toRecordBytes();
+		Assert.assertArrayEquals(first, second);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(record.getSizeBytes(), first.length);
+
+		try {
+			record.addUserRecord("partition_key", null, ALPHABET.getBytes(StandardCharsets.UTF_8));
+			Assert.fail("Expected a sealed record to reject new user records");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// the aggregator carries on with a fresh, unsealed record
+		aggregator.addUserRecord("partition_key", ALPHABET.getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals(1, aggregator.getNumUserRecords());
+	}
+
+	@Test
+	public void testFlushNotifiesListeners() throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		List<AggRecord> completed = new ArrayList<>();
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+
+		Assert.assertNull(aggregator.flush());
+		aggregator.addUserRecord("partition_key", ALPHABET.getBytes(StandardCharsets.UTF_8));
+		AggRecord record = aggregator.flush();
+
+		Assert.assertEquals(Arrays.asList(record), completed);
+		Assert.assertTrue(record.isSealed());
+		Assert.assertEquals(1, record.getNumUserRecords());
+		Assert.assertEquals(0, aggregator.getNumUserRecords());
+	}
+
+	@Test
+	public void testReleasedRecordsAreRecycled() throws Exception {
+		RecordAggregator aggregator = new RecordAggregator(null, 1);
+		List<AggRecord> completed = new ArrayList<>();
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+		Assert.assertTrue(aggregator.isRecyclingRecords());
+
+		byte[] data = new byte[600 * 1024];
+		aggregator.addUserRecord("a", data);
+		AggRecord first = aggregator.addUserRecord("b", data);
+		Assert.assertNotNull(first);
+		Assert.assertSame(first, completed.get(0));
+		Assert.assertTrue(first.isSealed());
+
+		// once the only listener releases it, the record is emptied and reused
+		first.release();
+		Assert.assertFalse(first.isSealed());
+		Assert.assertEquals(0, first.getNumUserRecords());
+		try {
+			first.release();
+			Assert.fail("Expected a second release to fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		AggRecord second = aggregator.addUserRecord("c", data);
+		Assert.assertNotNull(second);
+		Assert.assertSame(first, aggregator.clearAndGet());
+		Assert.assertEquals("c", first.getPartitionKey());
+	}
+
+	@Test
+	public void testReleaseWithoutRecyclingIsIgnored() throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		Assert.assertFalse(aggregator.isRecyclingRecords());
+		aggregator.addUserRecord("a", new byte[10]);
+		AggRecord record = aggregator.clearAndGet();
+
+		record.release();
+		record.release();
+		Assert.assertTrue(record.isSealed());
+		Assert.assertEquals(1, record.getNumUserRecords());
+	}
 }
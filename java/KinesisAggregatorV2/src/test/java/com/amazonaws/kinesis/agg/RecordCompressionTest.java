@@ -0,0 +1,285 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.kinesis.agg.RecordCompression.Scope;
+
+import software.amazon.kinesis.retrieval.kpl.Messages.AggregatedRecord;
+
+public class RecordCompressionTest {
+	private static final RecordCodec[] CODECS = { RecordCodec.GZIP, RecordCodec.DEFLATE, RecordCodec.LZ4 };
+
+	private static byte[] json(int i) {
+		return String.format("{\"id\":%d,\"user\":\"user-%d\",\"status\":\"active\",\"region\":\"us-east-1\","
+				+ "\"tags\":[\"alpha\",\"beta\",\"gamma\"],\"score\":%d}", i, i % 97, i * 31 % 1000)
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readAll(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) > 0) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	private static int readVarint(byte[] src, int[] position) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = src[position[0]++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Decode a record compressed as a whole back into its protobuf message,
+	 * checking its magic number, codec and checksum.
+	 */
+	private static AggregatedRecord decompressRecord(byte[] recordBytes, RecordCodec codec) throws Exception {
+		Assert.assertArrayEquals(new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a, (byte) 0xc3 },
+				Arrays.copyOf(recordBytes, 4));
+		Assert.assertEquals(codec.getId(), recordBytes[4] & 0xFF);
+
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		int[] position = { 5 };
+		int end = recordBytes.length - 16;
+		while (position[0] < end) {
+			int uncompressedLength = readVarint(recordBytes, position);
+			int compressedLength = readVarint(recordBytes, position);
+			message.write(codec.decompress(recordBytes, position[0], compressedLength, uncompressedLength));
+			position[0] += compressedLength;
+		}
+		Assert.assertEquals(end, position[0]);
+
+		byte[] messageBytes = message.toByteArray();
+		Assert.assertArrayEquals(MessageDigest.getInstance("MD5").digest(messageBytes),
+				Arrays.copyOfRange(recordBytes, end, recordBytes.length));
+		return AggregatedRecord.parseFrom(messageBytes);
+	}
+
+	@Test
+	public void testCodecsRoundTrip() {
+		Random random = new Random(1);
+		byte[] noise = new byte[70_000];
+		random.nextBytes(noise);
+		byte[] repetitive = new byte[200_000];
+		for (int i = 0; i < repetitive.length; i++) {
+			repetitive[i] = (byte) "abcabcabd".charAt(i % 9);
+		}
+
+		for (RecordCodec codec : CODECS) {
+			for (byte[] input : Arrays.asList(new byte[0], json(1), noise, repetitive)) {
+				byte[] compressed = codec.compress(input, 0, input.length);
+				Assert.assertTrue(compressed.length <= codec.maxCompressedLength(input.length));
+				Assert.assertArrayEquals(input, codec.decompress(compressed, 0, compressed.length, input.length));
+			}
+			Assert.assertTrue(codec.compress(repetitive, 0, repetitive.length).length < repetitive.length / 20);
+		}
+	}
+
+	@Test
+	public void testZipCodecsMatchTheJdkFormats() throws Exception {
+		byte[] input = json(42);
+		Assert.assertArrayEquals(input, readAll(new GZIPInputStream(
+				new ByteArrayInputStream(RecordCodec.GZIP.compress(input, 0, input.length)))));
+		Assert.assertArrayEquals(input, readAll(new InflaterInputStream(
+				new ByteArrayInputStream(RecordCodec.DEFLATE.compress(input, 0, input.length)))));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCorruptDataIsRejected() {
+		byte[] input = json(7);
+		byte[] compressed = RecordCodec.LZ4.compress(input, 0, input.length);
+		RecordCodec.LZ4.decompress(compressed, 0, compressed.length - 3, input.length);
+	}
+
+	@Test
+	public void testTruncatedGzipHeadersAreRejected() {
+		// FEXTRA longer than the data, then FNAME, FCOMMENT and FHCRC running
+		// into the trailer
+		byte[][] headers = { { 0x04, (byte) 0xFF, (byte) 0xFF }, { 0x04 }, { 0x08, 'n', 'a', 'm', 'e' },
+				{ 0x10, 'c' }, { 0x02, 0 } };
+		for (byte[] header : headers) {
+			byte[] compressed = new byte[10 + header.length - 1 + 8];
+			compressed[0] = 0x1f;
+			compressed[1] = (byte) 0x8b;
+			compressed[2] = 8;
+			compressed[3] = header[0];
+			System.arraycopy(header, 1, compressed, 10, header.length - 1);
+			try {
+				RecordCodec.GZIP.decompress(compressed, 0, compressed.length, 10);
+				Assert.fail("Expected the header to be rejected");
+			} catch (IllegalArgumentException e) {
+				Assert.assertEquals("Truncated gzip header", e.getMessage());
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRunawayLz4LengthsAreRejected() {
+		// a literal run long enough to overflow an int if it were summed blindly
+		byte[] compressed = new byte[(Integer.MAX_VALUE / 255) + 3];
+		Arrays.fill(compressed, (byte) 0xFF);
+		compressed[0] = (byte) 0xF0;
+		compressed[compressed.length - 1] = 0;
+		RecordCodec.LZ4.decompress(compressed, 0, compressed.length, 1000);
+	}
+
+	@Test
+	public void testAggregatedRecordsFillToTheCompressedLimit() throws Exception {
+		for (RecordCodec codec : CODECS) {
+			RecordAggregator aggregator = new RecordAggregator(null, 0, null,
+					new RecordCompression(codec, Scope.AGGREGATED_RECORD));
+			List<AggRecord> completed = new ArrayList<>();
+			aggregator.onRecordComplete(completed::add, Runnable::run);
+
+			int added = 0;
+			while (completed.isEmpty()) {
+				aggregator.addUserRecord("pk-" + (added % 50), json(added));
+				added++;
+			}
+
+			AggRecord record = completed.get(0);
+			byte[] recordBytes = record.toRecordBytes();
+			Assert.assertEquals(recordBytes.length, record.getSizeBytes());
+			Assert.assertTrue(recordBytes.length <= 1024 * 1024);
+			// far more than would fit in an uncompressed record
+			Assert.assertTrue(record.getUncompressedSizeBytes() > 2 * 1024 * 1024);
+
+			AggregatedRecord decoded = decompressRecord(recordBytes, codec);
+			Assert.assertEquals(record.getNumUserRecords(), decoded.getRecordsCount());
+			Assert.assertEquals(added - 1, record.getNumUserRecords());
+			for (int i = 0; i < decoded.getRecordsCount(); i++) {
+				Assert.assertArrayEquals(json(i), decoded.getRecords(i).getData().toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void testAggregatedRecordsRespectTheUncompressedLimit() throws Exception {
+		AggRecord record = new AggRecord(null,
+				new RecordCompression(RecordCodec.LZ4, Scope.AGGREGATED_RECORD, 1024 * 1024));
+		byte[] zeros = new byte[10_000];
+		int added = 0;
+		while (record.addUserRecord("pk", null, zeros)) {
+			added++;
+		}
+
+		Assert.assertTrue(record.getUncompressedSizeBytes() <= 1024 * 1024);
+		byte[] recordBytes = record.toRecordBytes();
+		Assert.assertTrue(recordBytes.length < 64 * 1024);
+		Assert.assertEquals(recordBytes.length, record.getSizeBytes());
+		Assert.assertEquals(added, decompressRecord(recordBytes, RecordCodec.LZ4).getRecordsCount());
+	}
+
+	@Test
+	public void testLoneRecordsAreCompressedToFit() throws Exception {
+		// the worst case for LZ4 is above 1 MB, but zeros compress to almost nothing
+		AggRecord record = new AggRecord(null, new RecordCompression(RecordCodec.LZ4, Scope.AGGREGATED_RECORD));
+		byte[] zeros = new byte[1024 * 1024 - 200];
+		Assert.assertTrue(record.addUserRecord("pk", null, zeros));
+		Assert.assertTrue(record.getSizeBytes() < 64 * 1024);
+		Assert.assertArrayEquals(zeros,
+				decompressRecord(record.toRecordBytes(), RecordCodec.LZ4).getRecords(0).getData().toByteArray());
+
+		// random bytes don't compress, and name the compressed limit
+		AggRecord incompressible = new AggRecord(null,
+				new RecordCompression(RecordCodec.LZ4, Scope.AGGREGATED_RECORD));
+		byte[] random = new byte[1024 * 1024 - 200];
+		new Random(42).nextBytes(random);
+		try {
+			incompressible.addUserRecord("pk", null, random);
+			Assert.fail("Expected the record to be rejected");
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().endsWith("even when compressed"));
+		}
+		Assert.assertEquals(0, incompressible.getNumUserRecords());
+		Assert.assertTrue(incompressible.addUserRecord("pk", null, new byte[10]));
+	}
+
+	@Test
+	public void testRecordsThatCanNeverFitNameTheLimit() throws Exception {
+		RecordCompression[] compressions = { null,
+				new RecordCompression(RecordCodec.LZ4, Scope.AGGREGATED_RECORD, AggRecord.MAX_BYTES_PER_RECORD) };
+		// too large to encode at all, and too large to frame once compressed
+		int[] sizes = { AggRecord.MAX_BYTES_PER_RECORD - 20, AggRecord.MAX_BYTES_PER_RECORD - 66 };
+		String[] limits = { "maximum size before Aggregation encoding of",
+				"maximum uncompressed size of a compressed aggregated record of" };
+		for (int i = 0; i < compressions.length; i++) {
+			RecordAggregator aggregator = new RecordAggregator(null, 0, null, compressions[i]);
+			List<AggRecord> completed = new ArrayList<>();
+			aggregator.onRecordComplete(completed::add, Runnable::run);
+			try {
+				aggregator.addUserRecord("pk", new byte[sizes[i]]);
+				Assert.fail("Expected the record to be rejected");
+			} catch (IllegalArgumentException e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains(limits[i]));
+			}
+			// no empty aggregated record is handed to the listeners
+			Assert.assertTrue(completed.isEmpty());
+			Assert.assertEquals(0, aggregator.getNumUserRecords());
+		}
+	}
+
+	@Test
+	public void testUserRecordsAreCompressedIndividually() throws Exception {
+		AggRecord record = new AggRecord(null, new RecordCompression(RecordCodec.DEFLATE, Scope.USER_RECORD));
+		byte[] incompressible = new byte[64];
+		new Random(2).nextBytes(incompressible);
+		Assert.assertTrue(record.addUserRecord("a", null, json(1)));
+		Assert.assertTrue(record.addUserRecord("b", null, incompressible));
+
+		byte[] recordBytes = record.toRecordBytes();
+		Assert.assertEquals(recordBytes.length, record.getSizeBytes());
+		AggregatedRecord decoded = AggregatedRecord.parseFrom(Arrays.copyOfRange(recordBytes, 4,
+				recordBytes.length - 16));
+
+		byte[] first = decoded.getRecords(0).getData().toByteArray();
+		Assert.assertArrayEquals(new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a, (byte) 0xc4,
+				(byte) RecordCodec.DEFLATE.getId() }, Arrays.copyOf(first, 5));
+		int[] position = { 5 };
+		int length = readVarint(first, position);
+		Assert.assertArrayEquals(json(1),
+				RecordCodec.DEFLATE.decompress(first, position[0], first.length - position[0], length));
+
+		// data that doesn't compress is stored as it is under codec 0
+		byte[] second = decoded.getRecords(1).getData().toByteArray();
+		Assert.assertEquals(0, second[4]);
+		Assert.assertArrayEquals(incompressible, Arrays.copyOfRange(second, 6, second.length));
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.agg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import software.amazon.kinesis.retrieval.kpl.Messages.AggregatedRecord;
+
+public class StripedRecordAggregatorTest {
+	private static AggregatedRecord parse(AggRecord record) throws Exception {
+		byte[] recordBytes = record.toRecordBytes();
+		return AggregatedRecord.parseFrom(Arrays.copyOfRange(recordBytes, 4, recordBytes.length - 16));
+	}
+
+	@Test
+	public void testKeepsOrderPerPartitionKey() throws Exception {
+		StripedRecordAggregator aggregator = new StripedRecordAggregator(4);
+		List<AggRecord> completed = Collections.synchronizedList(new ArrayList<>());
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+
+		int threads = 8;
+		int recordsPerThread = 5000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> running = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				running.add(executor.submit(() -> {
+					char[] padding = new char[100];
+					Arrays.fill(padding, 'x');
+					for (int i = 0; i < recordsPerThread; i++) {
+						String partitionKey = "key-" + thread + "-" + (i % 10);
+						String data = i + ":" + new String(padding);
+						aggregator.addUserRecord(partitionKey, data.getBytes(StandardCharsets.UTF_8));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : running) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		completed.addAll(aggregator.clearAndGet());
+		Assert.assertEquals(0, aggregator.getNumUserRecords());
+		Assert.assertTrue(completed.size() > aggregator.getStripeCount());
+
+		// every stripe's records were completed in order, so each partition key's
+		// user records must appear in the order they were added
+		Map<String, Integer> lastSequence = new HashMap<>();
+		int total = 0;
+		for (AggRecord record : completed) {
+			AggregatedRecord parsed = parse(record);
+			for (int i = 0; i < parsed.getRecordsCount(); i++) {
+				String partitionKey = parsed.getPartitionKeyTable((int) parsed.getRecords(i).getPartitionKeyIndex());
+				String data = parsed.getRecords(i).getData().toStringUtf8();
+				int sequence = Integer.parseInt(data.substring(0, data.indexOf(':')));
+				Integer last = lastSequence.put(partitionKey, sequence);
+				Assert.assertTrue(partitionKey, last == null || last < sequence);
+				total++;
+			}
+		}
+		Assert.assertEquals(threads * recordsPerThread, total);
+	}
+
+	@Test
+	public void testEncodedKeysShareStripeWithStrings() throws Exception {
+		StripedRecordAggregator aggregator = new StripedRecordAggregator(16);
+		for (String partitionKey : new String[] { "key-1", "caf\u00e9", "emoji \ud83d\ude00" }) {
+			aggregator.addUserRecord(partitionKey, new byte[10]);
+			aggregator.addUserRecord(partitionKey.getBytes(StandardCharsets.UTF_8), null, new byte[10]);
+
+			List<AggRecord> records = aggregator.clearAndGet();
+			Assert.assertEquals(1, records.size());
+			Assert.assertEquals(2, records.get(0).getNumUserRecords());
+		}
+	}
+
+	@Test
+	public void testFlushNotifiesListeners() throws Exception {
+		StripedRecordAggregator aggregator = new StripedRecordAggregator(4);
+		List<AggRecord> completed = Collections.synchronizedList(new ArrayList<>());
+		aggregator.onRecordComplete(completed::add, Runnable::run);
+
+		for (int i = 0; i < 100; i++) {
+			aggregator.addUserRecord("key-" + i, new byte[10]);
+		}
+		List<AggRecord> flushed = aggregator.flush();
+
+		Assert.assertEquals(flushed, completed);
+		Assert.assertEquals(100, flushed.stream().mapToInt(AggRecord::getNumUserRecords).sum());
+		Assert.assertEquals(0, aggregator.getNumUserRecords());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNonPositiveStripeCount() {
+		new StripedRecordAggregator(0);
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+/**
+ * Decompresses payloads written by a KinesisAggregator compression codec with
+ * a custom codec ID. Register one with
+ * {@link RecordDeaggregator#registerDecompressor(int, Decompressor)} for every
+ * custom codec the producers of a stream use; the built-in gzip, deflate and
+ * LZ4 codecs are always available. The decompress method of the producer's
+ * codec has this signature, so it can be registered as a method reference.
+ * Before it is called, the uncompressed length is checked against the
+ * deaggregator's size limit and against 1032 times the compressed length, the
+ * most that deflate can expand its input, so custom codecs must not compress
+ * any better than that.
+ */
+public interface Decompressor {
+	/**
+	 * Decompress a range of bytes.
+	 * 
+	 * @param src                The array holding the compressed input.
+	 * @param offset             The position of the first compressed byte.
+	 * @param length             The number of compressed bytes.
+	 * @param uncompressedLength The length of the original input.
+	 * @return The decompressed bytes.
+	 * @throws IllegalArgumentException If the input is not valid compressed data
+	 *                                  of the expected length.
+	 */
+	public byte[] decompress(byte[] src, int offset, int length, int uncompressedLength);
+}
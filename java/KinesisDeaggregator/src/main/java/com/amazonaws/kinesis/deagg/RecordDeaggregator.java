@@ -17,12 +17,15 @@
  */
 package com.amazonaws.kinesis.deagg;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import com.amazonaws.services.kinesis.clientlibrary.types.UserRecord;
@@ -46,6 +49,12 @@ import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRec
  *
  */
 public class RecordDeaggregator<T> {
+	/**
+	 * The fewest Kinesis records deaggregated by a parallel task, below which the
+	 * overhead of a task outweighs the work.
+	 */
+	private static final int MIN_PARALLEL_CHUNK_SIZE = 4;
+
 	/**
 	 * Interface used by a calling method to call the process function
 	 *
@@ -54,6 +63,67 @@ public class RecordDeaggregator<T> {
 		public Void process(List<UserRecord> userRecords);
 	}
 
+	private final RecordDecompression decompression = new RecordDecompression();
+
+	/**
+	 * Set whether records written by an aggregator with compression enabled are
+	 * decompressed. Only enable this for streams whose producers compress, as
+	 * data that happens to start with the magic number of a compressed record
+	 * is otherwise misread or rejected. Defaults to false, which returns such
+	 * data unchanged.
+	 * 
+	 * @param decompression Whether to decompress compressed records.
+	 */
+	public void setDecompression(boolean decompression) {
+		this.decompression.setEnabled(decompression);
+	}
+
+	/**
+	 * Set the most bytes that a compressed aggregated record or user record may
+	 * decompress to. Records that declare a larger size, or more than the
+	 * codecs can expand their compressed bytes to, are rejected before anything
+	 * is allocated for them. Defaults to 8MB, the aggregator's default limit.
+	 * 
+	 * @param maxUncompressedBytes The decompressed size limit in bytes.
+	 */
+	public void setMaxUncompressedBytes(int maxUncompressedBytes) {
+		this.decompression.setMaxUncompressedBytes(maxUncompressedBytes);
+	}
+
+	/**
+	 * Register the decompressor for a custom codec ID used by the producers of
+	 * the stream. Once decompression is enabled, records compressed by the
+	 * aggregator with its built-in gzip, deflate and LZ4 codecs are decompressed
+	 * without registering anything.
+	 * 
+	 * @param codecId      The ID of the codec, between 1 and 255.
+	 * @param decompressor The decompressor for the codec.
+	 */
+	public void registerDecompressor(int codecId, Decompressor decompressor) {
+		this.decompression.register(codecId, decompressor);
+	}
+
+	/**
+	 * Deaggregate Kinesis records with the KCL, expanding compressed aggregated
+	 * records beforehand and decompressing compressed user records afterwards.
+	 */
+	private List<UserRecord> deaggregateRecords(List<Record> records) {
+		List<Record> expanded = new ArrayList<>(records.size());
+		for (Record record : records) {
+			ByteBuffer data = this.decompression.expandAggregatedRecord(record.getData());
+			expanded.add(data == null ? record : record.clone().withData(data));
+		}
+
+		List<UserRecord> userRecords = UserRecord.deaggregate(expanded);
+		for (UserRecord userRecord : userRecords) {
+			ByteBuffer data = this.decompression.expandUserRecord(userRecord.getData());
+			if (data != null) {
+				userRecord.setData(data);
+			}
+		}
+		return userRecords;
+	}
+
 	private com.amazonaws.services.kinesis.model.Record convertOne(KinesisEventRecord record) {
 		KinesisEvent.Record r = record.getKinesis();
 		com.amazonaws.services.kinesis.model.Record out = new com.amazonaws.services.kinesis.model.Record()
@@ -76,6 +146,16 @@ public class RecordDeaggregator<T> {
 
 	}
 
+	private Record convertOne(T inputRecord) {
+		if (inputRecord instanceof KinesisEventRecord) {
+			return convertOne((KinesisEventRecord) inputRecord);
+		} else if (inputRecord instanceof Record) {
+			return (Record) inputRecord;
+		} else {
+			throw new InvalidArgumentException("Input Types must be Kinesis Event or Model Records");
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	private List<Record> convertType(List<T> inputRecords) {
 		List<Record> records = null;
@@ -95,6 +175,24 @@ public class RecordDeaggregator<T> {
 		return records;
 	}
 
+	/**
+	 * Method to lazily deaggregate a Stream of Kinesis Records using the Java 8
+	 * Streams API. Kinesis Records are pulled from the input Stream one at a
+	 * time as the returned Stream needs them and deaggregated individually, so
+	 * short-circuiting operations such as limit or findFirst stop reading the
+	 * input early and no more than one aggregated record is held at a time.
+	 * Closing the returned Stream closes the input Stream.
+	 * 
+	 * @param inputStream The Kinesis Records provided by AWS Lambda or the
+	 *                    Kinesis SDK
+	 * @return A Stream of the Kinesis UserRecords obtained by deaggregating the
+	 *         input Stream of Kinesis Records
+	 */
+	public Stream<UserRecord> stream(Stream<T> inputStream) {
+		return inputStream.sequential().map(this::convertOne)
+				.flatMap(record -> deaggregateRecords(Collections.singletonList(record)).stream());
+	}
+
 	/**
 	 * Method to process a set of Kinesis user records from a Stream of Kinesis
 	 * Event Records using the Java 8 Streams API
@@ -106,11 +204,8 @@ public class RecordDeaggregator<T> {
 	 * @return Void
 	 */
 	public Void stream(Stream<T> inputStream, Consumer<UserRecord> streamConsumer) {
-		// deaggregate UserRecords from the Kinesis Records
-
-		List<T> streamList = inputStream.collect(Collectors.toList());
-		List<UserRecord> deaggregatedRecords = UserRecord.deaggregate(convertType(streamList));
-		deaggregatedRecords.stream().forEachOrdered(streamConsumer);
+		// deaggregate UserRecords from the Kinesis Records as they are consumed
+		stream(inputStream).forEachOrdered(streamConsumer);
 
 		return null;
 	}
@@ -125,7 +220,7 @@ public class RecordDeaggregator<T> {
 	 */
 	public Void processRecords(List<T> inputRecords, KinesisUserRecordProcessor processor) {
 		// invoke provided processor
-		return processor.process(UserRecord.deaggregate(convertType(inputRecords)));
+		return processor.process(deaggregateRecords(convertType(inputRecords)));
 	}
 
 	/**
@@ -138,7 +233,49 @@ public class RecordDeaggregator<T> {
 	 */
 	public List<UserRecord> deaggregate(List<T> inputRecords) {
 		List<UserRecord> outputRecords = new LinkedList<>();
-		outputRecords.addAll(UserRecord.deaggregate(convertType(inputRecords)));
+		outputRecords.addAll(deaggregateRecords(convertType(inputRecords)));
+
+		return outputRecords;
+	}
+
+	/**
+	 * Method to bulk deaggregate a set of Kinesis user records from a list of
+	 * Kinesis Records in parallel. The input is split into chunks that are
+	 * deaggregated as separate tasks in the given pool, each aggregated record
+	 * with its own checksum verification and parsing, and the user records are
+	 * returned in the same order as the sequential methods return them.
+	 * 
+	 * @param inputRecords The Kinesis Records provided by AWS Lambda or the
+	 *                     Kinesis SDK
+	 * @param pool         The pool to deaggregate in, such as
+	 *                     ForkJoinPool.commonPool()
+	 * @return A list of Kinesis user records obtained by deaggregating the input
+	 *         list of Kinesis Records
+	 */
+	public List<UserRecord> deaggregate(List<T> inputRecords, ForkJoinPool pool) {
+		List<Record> records = convertType(inputRecords);
+		int chunkSize = Math.max(MIN_PARALLEL_CHUNK_SIZE, records.size() / (pool.getParallelism() * 4) + 1);
+		if (records.size() <= chunkSize) {
+			return deaggregateRecords(records);
+		}
+
+		List<ForkJoinTask<List<UserRecord>>> tasks = new ArrayList<>(records.size() / chunkSize + 1);
+		for (int start = 0; start < records.size(); start += chunkSize) {
+			List<Record> chunk = records.subList(start, Math.min(start + chunkSize, records.size()));
+			tasks.add(pool.submit(() -> deaggregateRecords(chunk)));
+		}
+
+		List<List<UserRecord>> results = new ArrayList<>(tasks.size());
+		int userRecordCount = 0;
+		for (ForkJoinTask<List<UserRecord>> task : tasks) {
+			List<UserRecord> result = task.join();
+			results.add(result);
+			userRecordCount += result.size();
+		}
+		List<UserRecord> outputRecords = new ArrayList<>(userRecordCount);
+		for (List<UserRecord> result : results) {
+			outputRecords.addAll(result);
+		}
 
 		return outputRecords;
 	}
@@ -151,6 +288,6 @@ public class RecordDeaggregator<T> {
 	 *         input list of KinesisEventRecords
 	 */
 	public List<UserRecord> deaggregate(T inputRecord) {
-		return UserRecord.deaggregate(convertType(Arrays.asList(inputRecord)));
+		return deaggregateRecords(convertType(Arrays.asList(inputRecord)));
 	}
 }
@@ -10,7 +10,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.BeforeClass;
@@ -119,6 +123,57 @@ public class TestDirectDeaggregation {
 		assertEquals("Processed Record Count Correct", p.getCount(), recordList.size());
 	}
 
+	@Test
+	public void testLazyStream() {
+		Record r = new Record().withPartitionKey(aggregated.getPartitionKey()).withSequenceNumber("1")
+				.withData(ByteBuffer.wrap(aggregated.toRecordBytes()));
+		AtomicInteger pulled = new AtomicInteger();
+
+		// only the first aggregated record is read to find the first user records
+		List<UserRecord> userRecords = deaggregator
+				.stream(Stream.of(r, r, r).peek(record -> pulled.incrementAndGet())).limit(c / 2)
+				.collect(Collectors.toList());
+
+		assertEquals("Processed Record Count Correct", c / 2, userRecords.size());
+		assertEquals("Input Record Count Correct", 1, pulled.get());
+		verifyOneToOneMapping(userRecords);
+	}
+
+	/* Interleave aggregated records with the non-aggregated ones */
+	private static List<Record> mixedRecords() {
+		List<Record> input = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			input.add(new Record().withPartitionKey(aggregated.getPartitionKey()).withSequenceNumber(String.valueOf(i))
+					.withData(ByteBuffer.wrap(aggregated.toRecordBytes())));
+			for (Record r : recordList) {
+				input.add(r.clone().withData(r.getData().duplicate()));
+			}
+		}
+		return input;
+	}
+
+	@Test
+	public void testParallel() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			// the KCL consumes the data of aggregated records, so each call gets its own
+			List<UserRecord> userRecords = deaggregator.deaggregate(mixedRecords(), pool);
+			List<UserRecord> expected = deaggregator.deaggregate(mixedRecords());
+			assertEquals("Processed Record Count Correct", expected.size(), userRecords.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals("Sequence Number Correct", expected.get(i).getSequenceNumber(),
+						userRecords.get(i).getSequenceNumber());
+				assertEquals("Sub-Sequence Number Correct", expected.get(i).getSubSequenceNumber(),
+						userRecords.get(i).getSubSequenceNumber());
+				assertEquals("Partition Key Correct", expected.get(i).getPartitionKey(),
+						userRecords.get(i).getPartitionKey());
+			}
+			verifyOneToOneMapping(userRecords);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 	@Test
 	public void testList() {
 		// invoke deaggregation on the static records, returning a List of UserRecord
@@ -0,0 +1,517 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.math.BigInteger;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Decodes the user records of a Kinesis aggregated record straight from its
+ * wire bytes, one at a time, without the KCL's AggregatorUtil or a protobuf
+ * message object.
+ * 
+ * Opening a record checks its magic number and MD5 checksum and validates the
+ * protobuf message in a single pass, which only keeps the positions of the
+ * partition and explicit hash key table entries. {@link #next()} then moves a
+ * cursor over the user records in order, and the accessors describe the
+ * current one. Key strings are decoded the first time they are used and shared
+ * by every user record that refers to them.
+ * 
+ * Instances are not thread-safe.
+ */
+final class AggregatedRecordDecoder {
+	static final byte[] AGGREGATED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a, (byte) 0xc2 };
+	private static final int DIGEST_LENGTH = 16;
+
+	// field numbers of the AggregatedRecord and Record messages
+	private static final int PARTITION_KEY_TABLE_FIELD = 1;
+	private static final int EXPLICIT_HASH_KEY_TABLE_FIELD = 2;
+	private static final int RECORDS_FIELD = 3;
+	private static final int PARTITION_KEY_INDEX_FIELD = 1;
+	private static final int EXPLICIT_HASH_KEY_INDEX_FIELD = 2;
+	private static final int DATA_FIELD = 3;
+
+	private static final int WIRETYPE_VARINT = 0;
+	private static final int WIRETYPE_FIXED64 = 1;
+	private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	private static final int WIRETYPE_FIXED32 = 5;
+
+	// whether a key table entry is in a hash key range or accepted by a filter
+	private static final byte UNKNOWN = 0;
+	private static final byte IN = 1;
+	private static final byte OUT = 2;
+
+	/** Thrown internally when the protobuf message is malformed. */
+	private static final class MalformedMessageException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		MalformedMessageException() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final MalformedMessageException MALFORMED = new MalformedMessageException();
+
+	private final ByteBuffer buffer;
+	private final ByteBuffer reader;
+	private final int messageStart;
+	private final int messageEnd;
+
+	// the offset and length of each key table entry, in pairs
+	private int[] partitionKeyTable = new int[16];
+	private int partitionKeyCount;
+	private int[] explicitHashKeyTable = new int[16];
+	private int explicitHashKeyCount;
+	private String[] partitionKeys;
+	private String[] explicitHashKeys;
+	private int recordCount;
+
+	// whether each key table entry is in the last range checked
+	private HashKeyRange cachedRange;
+	private byte[] partitionKeysInRange;
+	private byte[] explicitHashKeysInRange;
+	private MessageDigest md5;
+
+	// whether each partition key is accepted by the last filter checked
+	private Predicate<String> cachedFilter;
+	private byte[] partitionKeysAccepted;
+
+	// the read position while parsing, and the cursor
+	private int position;
+	private int nextField;
+	private int recordIndex = -1;
+	private long partitionKeyIndex;
+	private long explicitHashKeyIndex;
+	private int dataOffset;
+	private int dataLength;
+
+	private AggregatedRecordDecoder(ByteBuffer buffer, int messageStart, int messageEnd) {
+		this.buffer = buffer;
+		this.reader = buffer.duplicate();
+		this.messageStart = messageStart;
+		this.messageEnd = messageEnd;
+		this.nextField = messageStart;
+	}
+
+	/**
+	 * Open the data of a Kinesis record for decoding.
+	 * 
+	 * @param data The data of a Kinesis record. Its position and limit are not
+	 *             changed, and its contents must not change while the decoder is
+	 *             used.
+	 * @return A decoder positioned before the first user record, or null if the
+	 *         data is not an aggregated record: it doesn't start with the magic
+	 *         number, its checksum doesn't match or its message can't be parsed.
+	 *         Such records are passed on unchanged, as the KCL does.
+	 * @throws IllegalArgumentException If a user record refers to a key that is
+	 *                                  missing from the key tables.
+	 */
+	static AggregatedRecordDecoder open(ByteBuffer data) {
+		if (data == null || data.remaining() < AGGREGATED_RECORD_MAGIC.length + DIGEST_LENGTH) {
+			return null;
+		}
+		for (int i = 0; i < AGGREGATED_RECORD_MAGIC.length; i++) {
+			if (data.get(data.position() + i) != AGGREGATED_RECORD_MAGIC[i]) {
+				return null;
+			}
+		}
+
+		ByteBuffer buffer = data.duplicate();
+		AggregatedRecordDecoder decoder = new AggregatedRecordDecoder(buffer,
+				buffer.position() + AGGREGATED_RECORD_MAGIC.length, buffer.limit() - DIGEST_LENGTH);
+		if (!decoder.checksumMatches()) {
+			return null;
+		}
+		try {
+			decoder.scan();
+		} catch (MalformedMessageException e) {
+			return null;
+		}
+		return decoder;
+	}
+
+	private boolean checksumMatches() {
+		byte[] digest;
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(region(this.messageStart, this.messageEnd - this.messageStart));
+			digest = md5.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not create an MD5 message digest.", e);
+		}
+		byte[] expected = new byte[DIGEST_LENGTH];
+		region(this.messageEnd, DIGEST_LENGTH).get(expected);
+		return Arrays.equals(digest, expected);
+	}
+
+	/**
+	 * Validate the message, recording the key table entries and counting the
+	 * user records.
+	 */
+	private void scan() throws MalformedMessageException {
+		long maxPartitionKeyIndex = -1;
+		long maxExplicitHashKeyIndex = -1;
+		this.position = this.messageStart;
+		while (this.position < this.messageEnd) {
+			long tag = readVarint(this.messageEnd);
+			int field = (int) (tag >>> 3);
+			int wireType = (int) tag & 7;
+			if (wireType != WIRETYPE_LENGTH_DELIMITED || field < PARTITION_KEY_TABLE_FIELD || field > RECORDS_FIELD) {
+				skipField(wireType, this.messageEnd);
+				continue;
+			}
+
+			int length = readLength(this.messageEnd);
+			if (field == PARTITION_KEY_TABLE_FIELD) {
+				this.partitionKeyTable = addEntry(this.partitionKeyTable, this.partitionKeyCount++, this.position,
+						length);
+				this.position += length;
+			} else if (field == EXPLICIT_HASH_KEY_TABLE_FIELD) {
+				this.explicitHashKeyTable = addEntry(this.explicitHashKeyTable, this.explicitHashKeyCount++,
+						this.position, length);
+				this.position += length;
+			} else {
+				readRecord(this.position + length);
+				maxPartitionKeyIndex = Math.max(maxPartitionKeyIndex, this.partitionKeyIndex);
+				maxExplicitHashKeyIndex = Math.max(maxExplicitHashKeyIndex, this.explicitHashKeyIndex);
+				this.recordCount++;
+			}
+		}
+
+		if (maxPartitionKeyIndex >= this.partitionKeyCount) {
+			throw new IllegalArgumentException("Aggregated record refers to partition key " + maxPartitionKeyIndex
+					+ " but its table has " + this.partitionKeyCount + " entries");
+		}
+		if (maxExplicitHashKeyIndex >= this.explicitHashKeyCount) {
+			throw new IllegalArgumentException("Aggregated record refers to explicit hash key "
+					+ maxExplicitHashKeyIndex + " but its table has " + this.explicitHashKeyCount + " entries");
+		}
+		this.partitionKeys = new String[this.partitionKeyCount];
+		this.explicitHashKeys = new String[this.explicitHashKeyCount];
+	}
+
+	private static int[] addEntry(int[] table, int index, int offset, int length) {
+		if (table.length < 2 * index + 2) {
+			table = Arrays.copyOf(table, table.length * 2);
+		}
+		table[2 * index] = offset;
+		table[2 * index + 1] = length;
+		return table;
+	}
+
+	/**
+	 * Read the fields of a Record message ending at the given position into the
+	 * cursor, leaving the read position at its end.
+	 */
+	private void readRecord(int end) throws MalformedMessageException {
+		this.partitionKeyIndex = -1;
+		this.explicitHashKeyIndex = -1;
+		this.dataOffset = -1;
+		boolean hasPartitionKeyIndex = false;
+		while (this.position < end) {
+			long tag = readVarint(end);
+			int field = (int) (tag >>> 3);
+			int wireType = (int) tag & 7;
+			if (field == PARTITION_KEY_INDEX_FIELD && wireType == WIRETYPE_VARINT) {
+				this.partitionKeyIndex = readIndex(end);
+				hasPartitionKeyIndex = true;
+			} else if (field == EXPLICIT_HASH_KEY_INDEX_FIELD && wireType == WIRETYPE_VARINT) {
+				this.explicitHashKeyIndex = readIndex(end);
+			} else if (field == DATA_FIELD && wireType == WIRETYPE_LENGTH_DELIMITED) {
+				this.dataLength = readLength(end);
+				this.dataOffset = this.position;
+				this.position += this.dataLength;
+			} else {
+				skipField(wireType, end);
+			}
+		}
+		// both fields are required
+		if (!hasPartitionKeyIndex || this.dataOffset < 0) {
+			throw MALFORMED;
+		}
+	}
+
+	private long readVarint(int end) throws MalformedMessageException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (this.position >= end) {
+				throw MALFORMED;
+			}
+			byte b = this.buffer.get(this.position++);
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw MALFORMED;
+	}
+
+	private long readIndex(int end) throws MalformedMessageException {
+		long index = readVarint(end);
+		// indexes are unsigned, so anything that reads as negative is out of range
+		return index < 0 ? Long.MAX_VALUE : index;
+	}
+
+	private int readLength(int end) throws MalformedMessageException {
+		long length = readVarint(end);
+		if (length < 0 || length > end - this.position) {
+			throw MALFORMED;
+		}
+		return (int) length;
+	}
+
+	private void skipField(int wireType, int end) throws MalformedMessageException {
+		switch (wireType) {
+		case WIRETYPE_VARINT:
+			readVarint(end);
+			return;
+		case WIRETYPE_FIXED64:
+			skipBytes(8, end);
+			return;
+		case WIRETYPE_LENGTH_DELIMITED:
+			skipBytes(readLength(end), end);
+			return;
+		case WIRETYPE_FIXED32:
+			skipBytes(4, end);
+			return;
+		default:
+			// groups are not used by the aggregated record format
+			throw MALFORMED;
+		}
+	}
+
+	private void skipBytes(int count, int end) throws MalformedMessageException {
+		if (count > end - this.position) {
+			throw MALFORMED;
+		}
+		this.position += count;
+	}
+
+	/**
+	 * Move the cursor to the next user record.
+	 * 
+	 * @return False if there are no more user records.
+	 */
+	boolean next() {
+		try {
+			this.position = this.nextField;
+			while (this.position < this.messageEnd) {
+				long tag = readVarint(this.messageEnd);
+				if (tag == (RECORDS_FIELD << 3 | WIRETYPE_LENGTH_DELIMITED)) {
+					int end = readLength(this.messageEnd) + this.position;
+					readRecord(end);
+					this.nextField = end;
+					this.recordIndex++;
+					return true;
+				}
+				skipField((int) tag & 7, this.messageEnd);
+			}
+			this.nextField = this.messageEnd;
+			return false;
+		} catch (MalformedMessageException e) {
+			// the message was validated when it was opened
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** @return The number of user records in the aggregated record. */
+	int getRecordCount() {
+		return this.recordCount;
+	}
+
+	/** @return The number of entries in the partition key table. */
+	int getPartitionKeyCount() {
+		return this.partitionKeyCount;
+	}
+
+	/** @return The number of entries in the explicit hash key table. */
+	int getExplicitHashKeyCount() {
+		return this.explicitHashKeyCount;
+	}
+
+	/** @return An entry of the partition key table. */
+	String getPartitionKey(int index) {
+		String key = this.partitionKeys[index];
+		if (key == null) {
+			key = this.partitionKeys[index] = decodeString(this.partitionKeyTable, index);
+		}
+		return key;
+	}
+
+	/** @return An entry of the explicit hash key table. */
+	String getExplicitHashKey(int index) {
+		String key = this.explicitHashKeys[index];
+		if (key == null) {
+			key = this.explicitHashKeys[index] = decodeString(this.explicitHashKeyTable, index);
+		}
+		return key;
+	}
+
+	private String decodeString(int[] table, int index) {
+		byte[] bytes = new byte[table[2 * index + 1]];
+		region(table[2 * index], bytes.length).get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** @return The position of the current user record in the aggregated record. */
+	long getSubSequenceNumber() {
+		return this.recordIndex;
+	}
+
+	/** @return The partition key table index of the current user record. */
+	int getPartitionKeyIndex() {
+		return (int) this.partitionKeyIndex;
+	}
+
+	/**
+	 * @return The explicit hash key table index of the current user record, or
+	 *         -1 if it doesn't have one.
+	 */
+	int getExplicitHashKeyIndex() {
+		return (int) this.explicitHashKeyIndex;
+	}
+
+	/** @return The partition key of the current user record. */
+	String getPartitionKey() {
+		return getPartitionKey(getPartitionKeyIndex());
+	}
+
+	/**
+	 * @return The explicit hash key of the current user record, or null if it
+	 *         doesn't have one.
+	 */
+	String getExplicitHashKey() {
+		return this.explicitHashKeyIndex < 0 ? null : getExplicitHashKey(getExplicitHashKeyIndex());
+	}
+
+	/**
+	 * Check whether the hash key of the current user record is in a range,
+	 * without touching its data. The hash key is its explicit hash key if it has
+	 * one, or else the MD5 hash of its partition key, as in the KCL. The answer
+	 * is worked out once for each key table entry.
+	 * 
+	 * @param range A hash key range, which should be the same for every call.
+	 * @return Whether the current user record is in the range.
+	 * @throws IllegalArgumentException If the explicit hash key is not a number.
+	 */
+	boolean isInRange(HashKeyRange range) {
+		if (range != this.cachedRange) {
+			this.cachedRange = range;
+			this.partitionKeysInRange = new byte[this.partitionKeyCount];
+			this.explicitHashKeysInRange = new byte[this.explicitHashKeyCount];
+		}
+
+		if (this.explicitHashKeyIndex >= 0) {
+			int index = getExplicitHashKeyIndex();
+			if (this.explicitHashKeysInRange[index] == UNKNOWN) {
+				this.explicitHashKeysInRange[index] = range.contains(new BigInteger(getExplicitHashKey(index))) ? IN
+						: OUT;
+			}
+			return this.explicitHashKeysInRange[index] == IN;
+		} else {
+			int index = getPartitionKeyIndex();
+			if (this.partitionKeysInRange[index] == UNKNOWN) {
+				this.partitionKeysInRange[index] = range.contains(hashPartitionKey(index)) ? IN : OUT;
+			}
+			return this.partitionKeysInRange[index] == IN;
+		}
+	}
+
+	/**
+	 * Check whether a filter accepts the partition key of the current user
+	 * record. The filter is called once for each partition key table entry.
+	 * 
+	 * @param filter A partition key filter, which should be the same for every
+	 *               call.
+	 * @return Whether the filter accepts the current user record.
+	 */
+	boolean isPartitionKeyAccepted(Predicate<String> filter) {
+		if (filter != this.cachedFilter) {
+			this.cachedFilter = filter;
+			this.partitionKeysAccepted = new byte[this.partitionKeyCount];
+		}
+
+		int index = getPartitionKeyIndex();
+		if (this.partitionKeysAccepted[index] == UNKNOWN) {
+			this.partitionKeysAccepted[index] = filter.test(getPartitionKey(index)) ? IN : OUT;
+		}
+		return this.partitionKeysAccepted[index] == IN;
+	}
+
+	/**
+	 * Hash the UTF-8 bytes of a partition key as they are on the wire.
+	 */
+	private BigInteger hashPartitionKey(int index) {
+		if (this.md5 == null) {
+			try {
+				this.md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Could not create an MD5 message digest.", e);
+			}
+		}
+		this.md5.update(region(this.partitionKeyTable[2 * index], this.partitionKeyTable[2 * index + 1]));
+		return new BigInteger(1, this.md5.digest());
+	}
+
+	/** @return The buffer holding the aggregated record, for absolute reads. */
+	ByteBuffer getBuffer() {
+		return this.buffer;
+	}
+
+	/** @return The position of the current user record's data in the buffer. */
+	int getDataOffset() {
+		return this.dataOffset;
+	}
+
+	/** @return The length of the current user record's data. */
+	int getDataLength() {
+		return this.dataLength;
+	}
+
+	/** @return A copy of the current user record's data. */
+	ByteBuffer copyData() {
+		byte[] data = new byte[this.dataLength];
+		region(this.dataOffset, this.dataLength).get(data);
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * @return A read-only view of the current user record's data, sharing the
+	 *         aggregated record's bytes.
+	 */
+	ByteBuffer sliceData() {
+		ByteBuffer slice = region(this.dataOffset, this.dataLength).slice();
+		return slice.isReadOnly() ? slice : slice.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Point the shared reader at a range of the buffer. The Buffer casts keep
+	 * the code binary compatible with Java 8 when built on later JDKs.
+	 */
+	private ByteBuffer region(int offset, int length) {
+		((Buffer) this.reader).limit(offset + length);
+		((Buffer) this.reader).position(offset);
+		return this.reader;
+	}
+}
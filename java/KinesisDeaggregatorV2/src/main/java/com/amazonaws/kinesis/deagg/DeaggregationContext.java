@@ -0,0 +1,99 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * The Kinesis record whose user records are being passed to a
+ * {@link UserRecordSink}, with its key tables. One context is reused for
+ * every Kinesis record of a deaggregation call, so it must not be kept after
+ * the sink returns. Keys are decoded the first time they are asked for and
+ * then shared by every user record of the Kinesis record.
+ */
+public final class DeaggregationContext {
+	private KinesisClientRecord record;
+	private AggregatedRecordDecoder decoder;
+
+	DeaggregationContext() {
+	}
+
+	void reset(KinesisClientRecord record, AggregatedRecordDecoder decoder) {
+		this.record = record;
+		this.decoder = decoder;
+	}
+
+	/**
+	 * @return The Kinesis record, for its sequence number, arrival timestamp and
+	 *         other metadata. Its data should not be read.
+	 */
+	public KinesisClientRecord getRecord() {
+		return this.record;
+	}
+
+	/**
+	 * @return Whether the Kinesis record is an aggregated record. A
+	 *         non-aggregated record is passed to the sink as a single user
+	 *         record with its own partition key at index 0.
+	 */
+	public boolean isAggregated() {
+		return this.decoder != null;
+	}
+
+	/** @return The number of entries in the partition key table. */
+	public int getPartitionKeyCount() {
+		return this.decoder == null ? 1 : this.decoder.getPartitionKeyCount();
+	}
+
+	/**
+	 * @param index An index passed to the sink.
+	 * @return An entry of the partition key table.
+	 */
+	public String getPartitionKey(int index) {
+		if (this.decoder == null) {
+			if (index != 0) {
+				throw new IndexOutOfBoundsException("Partition key index " + index);
+			}
+			return this.record.partitionKey();
+		}
+		if (index < 0 || index >= this.decoder.getPartitionKeyCount()) {
+			throw new IndexOutOfBoundsException("Partition key index " + index);
+		}
+		return this.decoder.getPartitionKey(index);
+	}
+
+	/** @return The number of entries in the explicit hash key table. */
+	public int getExplicitHashKeyCount() {
+		return this.decoder == null ? 0 : this.decoder.getExplicitHashKeyCount();
+	}
+
+	/**
+	 * @param index An index passed to the sink.
+	 * @return An entry of the explicit hash key table, or null if the index is
+	 *         -1.
+	 */
+	public String getExplicitHashKey(int index) {
+		if (index == -1) {
+			return null;
+		}
+		if (index < 0 || index >= getExplicitHashKeyCount()) {
+			throw new IndexOutOfBoundsException("Explicit hash key index " + index);
+		}
+		return this.decoder.getExplicitHashKey(index);
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.math.BigInteger;
+
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+/**
+ * An inclusive range of Kinesis hash keys, such as the range of a shard. A
+ * RecordDeaggregator given a range only returns the user records of
+ * aggregated records whose explicit hash key, or the MD5 hash of whose
+ * partition key, falls in it. Instances are immutable.
+ */
+public final class HashKeyRange {
+	private static final BigInteger MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+	private final BigInteger startingHashKey;
+	private final BigInteger endingHashKey;
+
+	/**
+	 * @param startingHashKey The lowest hash key in the range.
+	 * @param endingHashKey   The highest hash key in the range.
+	 */
+	public HashKeyRange(BigInteger startingHashKey, BigInteger endingHashKey) {
+		if (startingHashKey == null || endingHashKey == null) {
+			throw new IllegalArgumentException("The starting and ending hash keys must not be null");
+		}
+		if (startingHashKey.signum() < 0 || endingHashKey.compareTo(MAX_HASH_KEY) > 0
+				|| startingHashKey.compareTo(endingHashKey) > 0) {
+			throw new IllegalArgumentException(
+					"Invalid hash key range " + startingHashKey + " to " + endingHashKey);
+		}
+		this.startingHashKey = startingHashKey;
+		this.endingHashKey = endingHashKey;
+	}
+
+	/**
+	 * @param startingHashKey The lowest hash key in the range, as a decimal
+	 *                        string.
+	 * @param endingHashKey   The highest hash key in the range, as a decimal
+	 *                        string.
+	 */
+	public HashKeyRange(String startingHashKey, String endingHashKey) {
+		this(new BigInteger(startingHashKey), new BigInteger(endingHashKey));
+	}
+
+	/**
+	 * @param shard A shard of a Kinesis stream.
+	 * @return The hash key range of the shard.
+	 */
+	public static HashKeyRange of(Shard shard) {
+		return new HashKeyRange(shard.hashKeyRange().startingHashKey(), shard.hashKeyRange().endingHashKey());
+	}
+
+	/** @return The lowest hash key in the range. */
+	public BigInteger getStartingHashKey() {
+		return this.startingHashKey;
+	}
+
+	/** @return The highest hash key in the range. */
+	public BigInteger getEndingHashKey() {
+		return this.endingHashKey;
+	}
+
+	/**
+	 * @param hashKey A hash key.
+	 * @return Whether the hash key is in the range.
+	 */
+	public boolean contains(BigInteger hashKey) {
+		return hashKey.compareTo(this.startingHashKey) >= 0 && hashKey.compareTo(this.endingHashKey) <= 0;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + this.startingHashKey + ", " + this.endingHashKey + "]";
+	}
+}
@@ -17,20 +17,26 @@
  */
 package com.amazonaws.kinesis.deagg;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
+import com.amazonaws.kinesis.deagg.util.DeaggregationUtils;
 import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
 
-import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.kinesis.model.Record;
-import software.amazon.kinesis.retrieval.AggregatorUtil;
 import software.amazon.kinesis.retrieval.KinesisClientRecord;
 
 /**
@@ -48,6 +54,12 @@ import software.amazon.kinesis.retrieval.KinesisClientRecord;
  *
  */
 public class RecordDeaggregator<T> {
+	/**
+	 * The fewest Kinesis records deaggregated by a parallel task, below which the
+	 * overhead of a task outweighs the work.
+	 */
+	private static final int MIN_PARALLEL_CHUNK_SIZE = 4;
+
 	/**
 	 * Interface used by a calling method to call the process function
 	 *
@@ -56,27 +68,164 @@ public class RecordDeaggregator<T> {
 		public Void process(List<KinesisClientRecord> userRecords);
 	}
 
-	private Record convertOne(KinesisEventRecord record) {
-		KinesisEvent.Record r = record.getKinesis();
-		Record out = Record.builder().partitionKey(r.getPartitionKey()).encryptionType(r.getEncryptionType())
-				.approximateArrivalTimestamp(r.getApproximateArrivalTimestamp().toInstant())
-				.sequenceNumber(r.getSequenceNumber()).data(SdkBytes.fromByteBuffer(r.getData())).build();
+	/**
+	 * The parts of each user record returned by the deaggregator. User records
+	 * without data have an empty, read-only data buffer.
+	 */
+	public enum Projection {
+		/** Only the partition key and explicit hash key. */
+		KEYS,
+		/**
+		 * The keys and the metadata of the aggregated record, such as its sequence
+		 * number and arrival timestamp, with the user record's sub-sequence number.
+		 */
+		KEYS_AND_METADATA,
+		/** The whole user record, including its data. */
+		FULL;
+
+		static final ByteBuffer NO_DATA = ByteBuffer.allocate(0).asReadOnlyBuffer();
+	}
+
+	private final RecordDecompression decompression = new RecordDecompression();
+
+	private boolean zeroCopy = false;
+
+	private HashKeyRange hashKeyRange = null;
+
+	private Predicate<String> partitionKeyFilter = null;
+
+	private Projection projection = Projection.FULL;
+
+	/**
+	 * Set whether the data of each deaggregated user record is a read-only
+	 * ByteBuffer slice of its aggregated record's data rather than a copy. This
+	 * saves a copy and an allocation for every user record, which suits
+	 * consumers that only parse or forward the data, but every user record then
+	 * keeps its whole aggregated record in memory. Defaults to false.
+	 * 
+	 * @param zeroCopy Whether to share the aggregated record's data.
+	 */
+	public void setZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+	}
+
+	/**
+	 * Set whether records written by an aggregator with compression enabled are
+	 * decompressed. Only enable this for streams whose producers compress, as
+	 * data that happens to start with the magic number of a compressed record
+	 * is otherwise misread or rejected. Defaults to false, which returns such
+	 * data unchanged.
+	 * 
+	 * @param decompression Whether to decompress compressed records.
+	 */
+	public void setDecompression(boolean decompression) {
+		this.decompression.setEnabled(decompression);
+	}
+
+	/**
+	 * Set the most bytes that a compressed aggregated record or user record may
+	 * decompress to. Records that declare a larger size, or more than the
+	 * codecs can expand their compressed bytes to, are rejected before anything
+	 * is allocated for them. Defaults to 8MB, the aggregator's default limit.
+	 * 
+	 * @param maxUncompressedBytes The decompressed size limit in bytes.
+	 */
+	public void setMaxUncompressedBytes(int maxUncompressedBytes) {
+		this.decompression.setMaxUncompressedBytes(maxUncompressedBytes);
+	}
+
+	/**
+	 * Register the decompressor for a custom codec ID used by the producers of
+	 * the stream. Once decompression is enabled, records compressed by the
+	 * aggregator with its built-in gzip, deflate and LZ4 codecs are decompressed
+	 * without registering anything.
+	 * 
+	 * @param codecId      The ID of the codec, between 1 and 255.
+	 * @param decompressor The decompressor for the codec.
+	 */
+	public void registerDecompressor(int codecId, Decompressor decompressor) {
+		this.decompression.register(codecId, decompressor);
+	}
+
+	/**
+	 * Set the range of hash keys, such as that of the shard being consumed, of
+	 * the user records to return from aggregated records. The hash key of each
+	 * user record is worked out from the key tables of its aggregated record,
+	 * once per key, and the data of user records outside the range is skipped
+	 * without being copied. Non-aggregated records are always returned. Defaults
+	 * to null, which returns every user record.
+	 * 
+	 * @param hashKeyRange The range of hash keys, or null for all of them.
+	 */
+	public void setHashKeyRange(HashKeyRange hashKeyRange) {
+		this.hashKeyRange = hashKeyRange;
+	}
+
+	/**
+	 * Set a filter on the partition keys of the user records to return. The
+	 * filter is called once for each distinct partition key of an aggregated
+	 * record rather than for every user record, and the data of rejected user
+	 * records is skipped without being copied. Non-aggregated records are
+	 * filtered on their own partition keys. Defaults to null, which returns every
+	 * user record.
+	 * 
+	 * @param partitionKeyFilter Accepts the partition keys to return, or null for
+	 *                           all of them.
+	 */
+	public void setPartitionKeyFilter(Predicate<String> partitionKeyFilter) {
+		this.partitionKeyFilter = partitionKeyFilter;
+	}
+
+	/**
+	 * Set the parts of each user record to return. Consumers that only need to
+	 * route or count user records can leave out their data, which is then
+	 * neither copied nor decompressed. Defaults to {@link Projection#FULL}.
+	 * 
+	 * @param projection The parts of each user record to return.
+	 */
+	public void setProjection(Projection projection) {
+		if (projection == null) {
+			throw new IllegalArgumentException("Projection must not be null");
+		}
+		this.projection = projection;
+	}
 
-		return out;
+	private UserRecordIterator userRecords(Iterator<KinesisClientRecord> records) {
+		return new UserRecordIterator(records, this.decompression, this.zeroCopy, this.hashKeyRange,
+				this.partitionKeyFilter, this.projection);
+	}
 
+	/**
+	 * Deaggregate Kinesis records, expanding compressed aggregated records
+	 * beforehand and decompressing compressed user records afterwards.
+	 */
+	private List<KinesisClientRecord> deaggregateRecords(List<KinesisClientRecord> records) {
+		List<KinesisClientRecord> userRecords = new ArrayList<>(records.size());
+		userRecords(records.iterator()).forEachRemaining(userRecords::add);
+		return userRecords;
 	}
 
 	private List<KinesisClientRecord> convertToKinesis(List<KinesisEventRecord> inputRecords) {
-		List<KinesisClientRecord> response = new ArrayList<>();
+		List<KinesisClientRecord> response = new ArrayList<>(inputRecords.size());
 
 		inputRecords.stream().forEachOrdered(record -> {
-			response.add(KinesisClientRecord.fromRecord(convertOne(record)));
+			response.add(DeaggregationUtils.convertToClientRecord(record));
 		});
 
 		return response;
 
 	}
 
+	private KinesisClientRecord convertOne(T inputRecord) {
+		if (inputRecord instanceof KinesisEventRecord) {
+			return DeaggregationUtils.convertToClientRecord((KinesisEventRecord) inputRecord);
+		} else if (inputRecord instanceof Record) {
+			return KinesisClientRecord.fromRecord((Record) inputRecord);
+		} else {
+			throw new IllegalArgumentException("Input Types must be Kinesis Event or Model Records");
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	private List<KinesisClientRecord> convertType(List<T> inputRecords) throws Exception {
 		List<KinesisClientRecord> records = null;
@@ -99,6 +248,28 @@ public class RecordDeaggregator<T> {
 		return records;
 	}
 
+	/**
+	 * Method to lazily deaggregate a Stream of Kinesis Records using the Java 8
+	 * Streams API. Kinesis Records are pulled from the input Stream one at a
+	 * time as the returned Stream needs them, and their user records are
+	 * decoded on demand, so short-circuiting operations such as limit or
+	 * findFirst stop reading the input early and no more than one aggregated
+	 * record is held at a time. Closing the returned Stream closes the input
+	 * Stream.
+	 * 
+	 * @param inputStream The Kinesis Records provided by AWS Lambda or the
+	 *                    Kinesis SDK
+	 * @return A sequential Stream of the Kinesis user records obtained by
+	 *         deaggregating the input Stream of Kinesis Records
+	 */
+	public Stream<KinesisClientRecord> stream(Stream<T> inputStream) {
+		Iterator<KinesisClientRecord> userRecords = userRecords(inputStream.sequential().map(this::convertOne).iterator());
+		return StreamSupport
+				.stream(Spliterators.spliteratorUnknownSize(userRecords, Spliterator.ORDERED | Spliterator.NONNULL),
+						false)
+				.onClose(inputStream::close);
+	}
+
 	/**
 	 * Method to process a set of Kinesis user records from a Stream of Kinesis
 	 * Event Records using the Java 8 Streams API
@@ -110,11 +281,8 @@ public class RecordDeaggregator<T> {
 	 * @return Void
 	 */
 	public Void stream(Stream<T> inputStream, Consumer<KinesisClientRecord> streamConsumer) throws Exception {
-		// deaggregate UserRecords from the Kinesis Records
-
-		List<T> streamList = inputStream.collect(Collectors.toList());
-		List<KinesisClientRecord> deaggregatedRecords = new AggregatorUtil().deaggregate(convertType(streamList));
-		deaggregatedRecords.stream().forEachOrdered(streamConsumer);
+		// deaggregate UserRecords from the Kinesis Records as they are consumed
+		stream(inputStream).forEachOrdered(streamConsumer);
 
 		return null;
 	}
@@ -129,7 +297,22 @@ public class RecordDeaggregator<T> {
 	 */
 	public Void processRecords(List<T> inputRecords, KinesisUserRecordProcessor processor) throws Exception {
 		// invoke provided processor
-		return processor.process(new AggregatorUtil().deaggregate(convertType(inputRecords)));
+		return processor.process(deaggregateRecords(convertType(inputRecords)));
+	}
+
+	/**
+	 * Method to lazily deaggregate a set of Kinesis user records from a list of
+	 * Kinesis Records. Each user record is decoded from the bytes of its
+	 * aggregated record only when the Iterator reaches it, so processing can
+	 * start straight away and only one user record is held at a time.
+	 * 
+	 * @param inputRecords The Kinesis Records provided by AWS Lambda or the
+	 *                     Kinesis SDK
+	 * @return An Iterator over the Kinesis user records obtained by deaggregating
+	 *         the input list of Kinesis Records
+	 */
+	public Iterator<KinesisClientRecord> iterator(List<T> inputRecords) throws Exception {
+		return userRecords(convertType(inputRecords).iterator());
 	}
 
 	/**
@@ -142,11 +325,111 @@ public class RecordDeaggregator<T> {
 	 */
 	public List<KinesisClientRecord> deaggregate(List<T> inputRecords) throws Exception {
 		List<KinesisClientRecord> outputRecords = new LinkedList<>();
-		outputRecords.addAll(new AggregatorUtil().deaggregate(convertType(inputRecords)));
+		outputRecords.addAll(deaggregateRecords(convertType(inputRecords)));
+
+		return outputRecords;
+	}
+
+	/**
+	 * Method to bulk deaggregate a set of Kinesis user records from a list of
+	 * Kinesis Records in parallel. The input is split into chunks that are
+	 * deaggregated as separate tasks in the given pool, each aggregated record
+	 * with its own checksum verification and parsing, and the user records are
+	 * returned in the same order as the sequential methods return them.
+	 * 
+	 * @param inputRecords The Kinesis Records provided by AWS Lambda or the
+	 *                     Kinesis SDK
+	 * @param pool         The pool to deaggregate in, such as
+	 *                     ForkJoinPool.commonPool()
+	 * @return A list of Kinesis user records obtained by deaggregating the input
+	 *         list of Kinesis Records
+	 */
+	public List<KinesisClientRecord> deaggregate(List<T> inputRecords, ForkJoinPool pool) throws Exception {
+		List<KinesisClientRecord> records = convertType(inputRecords);
+		int chunkSize = Math.max(MIN_PARALLEL_CHUNK_SIZE, records.size() / (pool.getParallelism() * 4) + 1);
+		if (records.size() <= chunkSize) {
+			return deaggregateRecords(records);
+		}
+
+		List<ForkJoinTask<List<KinesisClientRecord>>> tasks = new ArrayList<>(records.size() / chunkSize + 1);
+		for (int start = 0; start < records.size(); start += chunkSize) {
+			List<KinesisClientRecord> chunk = records.subList(start, Math.min(start + chunkSize, records.size()));
+			tasks.add(pool.submit(() -> deaggregateRecords(chunk)));
+		}
+
+		List<List<KinesisClientRecord>> results = new ArrayList<>(tasks.size());
+		int userRecordCount = 0;
+		for (ForkJoinTask<List<KinesisClientRecord>> task : tasks) {
+			List<KinesisClientRecord> result = task.join();
+			results.add(result);
+			userRecordCount += result.size();
+		}
+		List<KinesisClientRecord> outputRecords = new ArrayList<>(userRecordCount);
+		for (List<KinesisClientRecord> result : results) {
+			outputRecords.addAll(result);
+		}
 
 		return outputRecords;
 	}
 
+	/**
+	 * Deaggregate a List of Kinesis Records into a sink without creating an
+	 * object for each user record. Each user record is passed to the sink as the
+	 * indexes of its keys, the buffer holding its aggregated record, the
+	 * position and length of its data in that buffer, and its sub-sequence
+	 * number, with its keys and Kinesis record available from the context. The
+	 * hash key range and partition key filter apply as usual, while the zero
+	 * copy and projection settings don't, as the data is never copied. The only
+	 * user records that are copied are those that were compressed on their own,
+	 * which are decompressed into a buffer of their own.
+	 * 
+	 * @param inputRecords The Kinesis Records provided by AWS Lambda or the
+	 *                     Kinesis SDK
+	 * @param sink         The sink to pass each user record to, in order
+	 * @throws Exception If the sink throws an Exception
+	 */
+	public void deaggregate(List<T> inputRecords, UserRecordSink sink) throws Exception {
+		DeaggregationContext context = new DeaggregationContext();
+		for (T inputRecord : inputRecords) {
+			KinesisClientRecord source = convertOne(inputRecord);
+			ByteBuffer data = source.data();
+			ByteBuffer expanded = this.decompression.expandAggregatedRecord(data);
+			AggregatedRecordDecoder decoder = AggregatedRecordDecoder.open(expanded == null ? data : expanded);
+			context.reset(source, decoder);
+
+			if (decoder == null) {
+				if (this.partitionKeyFilter == null || this.partitionKeyFilter.test(source.partitionKey())) {
+					accept(sink, context, 0, -1, data, data.position(), data.remaining(), 0);
+				}
+				continue;
+			}
+			while (decoder.next()) {
+				if ((this.hashKeyRange == null || decoder.isInRange(this.hashKeyRange))
+						&& (this.partitionKeyFilter == null
+								|| decoder.isPartitionKeyAccepted(this.partitionKeyFilter))) {
+					accept(sink, context, decoder.getPartitionKeyIndex(), decoder.getExplicitHashKeyIndex(),
+							decoder.getBuffer(), decoder.getDataOffset(), decoder.getDataLength(),
+							decoder.getSubSequenceNumber());
+				}
+			}
+		}
+		context.reset(null, null);
+	}
+
+	private void accept(UserRecordSink sink, DeaggregationContext context, int partitionKeyIndex,
+			int explicitHashKeyIndex, ByteBuffer buffer, int offset, int length, long subSequenceNumber)
+			throws Exception {
+		if (this.decompression.isCompressedUserRecord(buffer, offset, length)) {
+			ByteBuffer region = buffer.duplicate();
+			((Buffer) region).limit(offset + length);
+			((Buffer) region).position(offset);
+			buffer = this.decompression.expandUserRecord(region);
+			offset = buffer.position();
+			length = buffer.remaining();
+		}
+		sink.accept(context, partitionKeyIndex, explicitHashKeyIndex, buffer, offset, length, subSequenceNumber);
+	}
+
 	/**
 	 * Method to deaggregate a single Kinesis record into a List of UserRecords
 	 * 
@@ -155,6 +438,6 @@ public class RecordDeaggregator<T> {
 	 *         input list of KinesisEventRecords
 	 */
 	public List<KinesisClientRecord> deaggregate(T inputRecord) throws Exception {
-		return new AggregatorUtil().deaggregate(convertType(Arrays.asList(inputRecord)));
+		return deaggregateRecords(convertType(Arrays.asList(inputRecord)));
 	}
 }
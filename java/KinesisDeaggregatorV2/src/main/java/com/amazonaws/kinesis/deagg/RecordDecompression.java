@@ -0,0 +1,405 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Detects and decompresses the payloads that the Kinesis aggregator writes
+ * when compression is enabled, before and after the KCL deaggregates records:
+ * 
+ * <ul>
+ * <li>An aggregated record compressed as a whole starts with its own magic
+ * number and a codec ID, followed by segments of the protobuf message (each
+ * its uncompressed length and compressed length as varints, then the
+ * compressed bytes) and the MD5 checksum of the whole message. It is expanded
+ * back into the standard aggregated record format.</li>
+ * <li>The data of a user record compressed on its own starts with another
+ * magic number, the codec ID and the uncompressed length as a varint, followed
+ * by the compressed bytes (or the original bytes, for codec ID 0).</li>
+ * </ul>
+ * 
+ * Any other data is left alone. Nothing is decompressed until decompression is
+ * enabled, as neither frame carries a checksum of its own framing and data that
+ * merely starts with one of the magic numbers would otherwise be misread. The
+ * lengths declared by a frame are checked against a limit on the decompressed
+ * size, and against the most the built-in codecs can expand their input,
+ * before any output is allocated.
+ */
+final class RecordDecompression {
+	private static final byte[] AGGREGATED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc2 };
+	private static final byte[] COMPRESSED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc3 };
+	private static final byte[] COMPRESSED_USER_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc4 };
+	private static final int DIGEST_LENGTH = 16;
+	private static final int STORED_CODEC_ID = 0;
+	private static final int MAX_CODEC_ID = 255;
+	static final int DEFAULT_MAX_UNCOMPRESSED_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * The most that any codec may expand its input. Deflate, and so gzip, peaks
+	 * at about 1032 to 1 and LZ4 at about 255 to 1, so a larger declared length is
+	 * corrupt.
+	 */
+	static final int MAX_COMPRESSION_RATIO = 1032;
+
+	/** The decompressor for each codec ID, or null for unknown codecs. */
+	private final Decompressor[] decompressors = new Decompressor[MAX_CODEC_ID + 1];
+
+	private boolean enabled = false;
+
+	private int maxUncompressedBytes = DEFAULT_MAX_UNCOMPRESSED_BYTES;
+
+	RecordDecompression() {
+		this.decompressors[1] = (src, offset, length, uncompressedLength) -> inflate(src, offset, length,
+				uncompressedLength, true);
+		this.decompressors[2] = (src, offset, length, uncompressedLength) -> inflate(src, offset, length,
+				uncompressedLength, false);
+		this.decompressors[3] = RecordDecompression::decompressLz4;
+	}
+
+	/**
+	 * Register the decompressor for a codec ID, replacing any existing one.
+	 */
+	void register(int codecId, Decompressor decompressor) {
+		if (codecId <= STORED_CODEC_ID || codecId > MAX_CODEC_ID) {
+			throw new IllegalArgumentException("Codec IDs must be between 1 and " + MAX_CODEC_ID + ", got " + codecId);
+		}
+		this.decompressors[codecId] = decompressor;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	void setMaxUncompressedBytes(int maxUncompressedBytes) {
+		if (maxUncompressedBytes <= 0) {
+			throw new IllegalArgumentException("The uncompressed size limit must be positive");
+		}
+		this.maxUncompressedBytes = maxUncompressedBytes;
+	}
+
+	/**
+	 * Expand an aggregated record that was compressed as a whole.
+	 * 
+	 * @param data The data of a Kinesis record.
+	 * @return The record in the standard aggregated record format, or null if
+	 *         the data isn't a compressed aggregated record or decompression
+	 *         is disabled.
+	 * @throws IllegalArgumentException If the record is compressed with an
+	 *                                  unknown codec, is corrupt or would
+	 *                                  decompress past the size limit.
+	 */
+	ByteBuffer expandAggregatedRecord(ByteBuffer data) {
+		if (!this.enabled || !startsWith(data, COMPRESSED_RECORD_MAGIC)) {
+			return null;
+		}
+
+		byte[] bytes = toArray(data);
+		Decompressor decompressor = getDecompressor(bytes, COMPRESSED_RECORD_MAGIC.length);
+		int start = COMPRESSED_RECORD_MAGIC.length + 1;
+		int end = bytes.length - DIGEST_LENGTH;
+		if (end < start) {
+			throw new IllegalArgumentException("Truncated compressed aggregated record");
+		}
+
+		// find the size of the message before decompressing into it
+		long messageLength = 0;
+		int[] position = { start };
+		while (position[0] < end) {
+			int uncompressedLength = readVarint(bytes, position, end);
+			int compressedLength = readVarint(bytes, position, end);
+			if (compressedLength > end - position[0]) {
+				throw new IllegalArgumentException("Corrupt compressed aggregated record");
+			}
+			checkExpansion(uncompressedLength, compressedLength);
+			messageLength += uncompressedLength;
+			if (messageLength > this.maxUncompressedBytes) {
+				throw new IllegalArgumentException("A compressed aggregated record decompresses to more than "
+						+ this.maxUncompressedBytes + " bytes");
+			}
+			position[0] += compressedLength;
+		}
+		if (position[0] != end) {
+			throw new IllegalArgumentException("Corrupt compressed aggregated record");
+		}
+
+		byte[] out = new byte[AGGREGATED_RECORD_MAGIC.length + (int) messageLength + DIGEST_LENGTH];
+		System.arraycopy(AGGREGATED_RECORD_MAGIC, 0, out, 0, AGGREGATED_RECORD_MAGIC.length);
+		int written = AGGREGATED_RECORD_MAGIC.length;
+		position[0] = start;
+		while (position[0] < end) {
+			int uncompressedLength = readVarint(bytes, position, end);
+			int compressedLength = readVarint(bytes, position, end);
+			byte[] segment = decompressor.decompress(bytes, position[0], compressedLength, uncompressedLength);
+			if (segment.length != uncompressedLength) {
+				throw new IllegalArgumentException("Corrupt compressed aggregated record");
+			}
+			System.arraycopy(segment, 0, out, written, uncompressedLength);
+			written += uncompressedLength;
+			position[0] += compressedLength;
+		}
+		System.arraycopy(bytes, end, out, written, DIGEST_LENGTH);
+
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(out, AGGREGATED_RECORD_MAGIC.length, written - AGGREGATED_RECORD_MAGIC.length);
+			if (!Arrays.equals(md5.digest(), Arrays.copyOfRange(bytes, end, bytes.length))) {
+				throw new IllegalArgumentException("The checksum of a compressed aggregated record does not match");
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Could not create an MD5 message digest.", e);
+		}
+		return ByteBuffer.wrap(out);
+	}
+
+	/**
+	 * Decompress the data of a user record that was compressed on its own.
+	 * 
+	 * @param data The data of a user record.
+	 * @return The decompressed data, or null if the data isn't compressed or
+	 *         decompression is disabled.
+	 * @throws IllegalArgumentException If the data is compressed with an unknown
+	 *                                  codec, is corrupt or would decompress
+	 *                                  past the size limit.
+	 */
+	ByteBuffer expandUserRecord(ByteBuffer data) {
+		if (!this.enabled || !startsWith(data, COMPRESSED_USER_RECORD_MAGIC)) {
+			return null;
+		}
+
+		byte[] bytes = toArray(data);
+		int[] position = { COMPRESSED_USER_RECORD_MAGIC.length + 1 };
+		if (position[0] > bytes.length) {
+			throw new IllegalArgumentException("Truncated compressed user record");
+		}
+		int uncompressedLength = readVarint(bytes, position, bytes.length);
+		int compressedLength = bytes.length - position[0];
+		if ((bytes[COMPRESSED_USER_RECORD_MAGIC.length] & 0xFF) == STORED_CODEC_ID) {
+			if (compressedLength != uncompressedLength) {
+				throw new IllegalArgumentException("Corrupt compressed user record");
+			}
+			return ByteBuffer.wrap(bytes, position[0], uncompressedLength).slice();
+		}
+		if (uncompressedLength > this.maxUncompressedBytes) {
+			throw new IllegalArgumentException(
+					"A compressed user record decompresses to more than " + this.maxUncompressedBytes + " bytes");
+		}
+		checkExpansion(uncompressedLength, compressedLength);
+
+		Decompressor decompressor = getDecompressor(bytes, COMPRESSED_USER_RECORD_MAGIC.length);
+		byte[] expanded = decompressor.decompress(bytes, position[0], compressedLength, uncompressedLength);
+		if (expanded.length != uncompressedLength) {
+			throw new IllegalArgumentException("Corrupt compressed user record");
+		}
+		return ByteBuffer.wrap(expanded);
+	}
+
+	private static void checkExpansion(int uncompressedLength, int compressedLength) {
+		if (uncompressedLength > (long) compressedLength * MAX_COMPRESSION_RATIO) {
+			throw new IllegalArgumentException("A compressed record declares " + uncompressedLength
+					+ " bytes from only " + compressedLength + " compressed bytes");
+		}
+	}
+
+	private Decompressor getDecompressor(byte[] bytes, int offset) {
+		if (offset >= bytes.length) {
+			throw new IllegalArgumentException("Truncated compressed record");
+		}
+		int codecId = bytes[offset] & 0xFF;
+		Decompressor decompressor = this.decompressors[codecId];
+		if (decompressor == null) {
+			throw new IllegalArgumentException("No decompressor is registered for codec " + codecId);
+		}
+		return decompressor;
+	}
+
+	/**
+	 * Check whether a region of a buffer holds a user record that was
+	 * compressed on its own, without changing the buffer.
+	 * 
+	 * @param buffer The buffer, read with absolute gets.
+	 * @param offset The position of the user record's data in the buffer.
+	 * @param length The length of the user record's data.
+	 * @return Whether {@link #expandUserRecord} would decompress the data.
+	 */
+	boolean isCompressedUserRecord(ByteBuffer buffer, int offset, int length) {
+		return this.enabled && startsWith(buffer, offset, length, COMPRESSED_USER_RECORD_MAGIC);
+	}
+
+	private static boolean startsWith(ByteBuffer data, byte[] magic) {
+		return data != null && startsWith(data, data.position(), data.remaining(), magic);
+	}
+
+	private static boolean startsWith(ByteBuffer data, int offset, int length, byte[] magic) {
+		if (length < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (data.get(offset + i) != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] toArray(ByteBuffer data) {
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Read a non-negative int encoded as a varint, advancing the position.
+	 */
+	private static int readVarint(byte[] src, int[] position, int end) {
+		long value = 0;
+		for (int shift = 0; shift < 35 && position[0] < end; shift += 7) {
+			byte b = src[position[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				if (value > Integer.MAX_VALUE) {
+					break;
+				}
+				return (int) value;
+			}
+		}
+		throw new IllegalArgumentException("Corrupt length in a compressed record");
+	}
+
+	/**
+	 * Decompress gzip or zlib data with the JDK's Inflater.
+	 */
+	private static byte[] inflate(byte[] src, int offset, int length, int uncompressedLength, boolean gzip) {
+		byte[] out = new byte[uncompressedLength];
+		ByteArrayInputStream in = new ByteArrayInputStream(src, offset, length);
+		try (InputStream stream = gzip ? new GZIPInputStream(in) : new InflaterInputStream(in)) {
+			int read = 0;
+			while (read < uncompressedLength) {
+				int count = stream.read(out, read, uncompressedLength - read);
+				if (count < 0) {
+					break;
+				}
+				read += count;
+			}
+			if (read != uncompressedLength || stream.read() >= 0) {
+				throw new IllegalArgumentException(
+						"Compressed data does not decompress to the expected " + uncompressedLength + " bytes");
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid compressed data", e);
+		}
+		return out;
+	}
+
+	/**
+	 * Decompress the LZ4 block format, validating every length and offset
+	 * against the buffers.
+	 * 
+	 * @see <a href=
+	 *      "https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md">https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md</a>
+	 */
+	private static byte[] decompressLz4(byte[] src, int offset, int length, int uncompressedLength) {
+		byte[] out = new byte[uncompressedLength];
+		int ip = offset, end = offset + length, op = 0;
+		while (true) {
+			if (ip >= end) {
+				throw new IllegalArgumentException("Truncated LZ4 data");
+			}
+			int token = src[ip++] & 0xFF;
+
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IllegalArgumentException("Truncated LZ4 data");
+					}
+					b = src[ip++] & 0xFF;
+					literalLength += b;
+					// reject runaway lengths before they can overflow
+					if (literalLength > end - ip || literalLength > uncompressedLength - op) {
+						throw new IllegalArgumentException("LZ4 literals overrun the input or output");
+					}
+				} while (b == 255);
+			}
+			if (literalLength > end - ip || literalLength > uncompressedLength - op) {
+				throw new IllegalArgumentException("LZ4 literals overrun the input or output");
+			}
+			System.arraycopy(src, ip, out, op, literalLength);
+			ip += literalLength;
+			op += literalLength;
+
+			// the last sequence has literals only
+			if (ip == end) {
+				break;
+			}
+
+			if (end - ip < 2) {
+				throw new IllegalArgumentException("Truncated LZ4 data");
+			}
+			int matchOffset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			int matchLength = token & 15;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IllegalArgumentException("Truncated LZ4 data");
+					}
+					b = src[ip++] & 0xFF;
+					matchLength += b;
+					if (matchLength > uncompressedLength - op) {
+						throw new IllegalArgumentException("LZ4 match overruns the output");
+					}
+				} while (b == 255);
+			}
+			matchLength += 4;
+			if (matchOffset == 0 || matchOffset > op || matchLength > uncompressedLength - op) {
+				throw new IllegalArgumentException("LZ4 match overruns the output");
+			}
+
+			// matches may overlap the bytes they produce, so copy forwards
+			int from = op - matchOffset;
+			if (matchOffset >= matchLength) {
+				System.arraycopy(out, from, out, op, matchLength);
+				op += matchLength;
+			} else {
+				for (int i = 0; i < matchLength; i++) {
+					out[op++] = out[from + i];
+				}
+			}
+		}
+
+		if (op != uncompressedLength) {
+			throw new IllegalArgumentException(
+					"LZ4 data decompresses to " + op + " bytes, expected " + uncompressedLength);
+		}
+		return out;
+	}
+}
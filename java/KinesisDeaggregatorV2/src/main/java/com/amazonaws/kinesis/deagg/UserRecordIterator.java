@@ -0,0 +1,142 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+import com.amazonaws.kinesis.deagg.RecordDeaggregator.Projection;
+
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * Lazily deaggregates a sequence of Kinesis records, decoding each user record
+ * from the wire bytes of its aggregated record only when it is reached.
+ * Non-aggregated records are returned unchanged, and compressed records are
+ * decompressed on the way. User records of aggregated records outside an
+ * optional hash key range are skipped, keeping their sub-sequence numbers, as
+ * the KCL does, and so are user records whose partition keys are rejected by an
+ * optional filter. Only the parts of each user record in the projection are
+ * read.
+ */
+final class UserRecordIterator implements Iterator<KinesisClientRecord> {
+	private final Iterator<KinesisClientRecord> sources;
+	private final RecordDecompression decompression;
+	private final boolean zeroCopy;
+	private final HashKeyRange hashKeyRange;
+	private final Predicate<String> partitionKeyFilter;
+	private final Projection projection;
+	private KinesisClientRecord source;
+	private AggregatedRecordDecoder decoder;
+	private KinesisClientRecord next;
+
+	/**
+	 * @param sources       The Kinesis records to deaggregate.
+	 * @param decompression Decompresses compressed records.
+	 * @param zeroCopy      Whether the data of each user record is a read-only
+	 *                      slice of its aggregated record rather than a copy.
+	 * @param hashKeyRange  The range of hash keys of the user records of
+	 *                      aggregated records to return, or null for all of
+	 *                      them.
+	 * @param partitionKeyFilter Accepts the partition keys of the user records
+	 *                           to return, or null for all of them.
+	 * @param projection    The parts of each user record to return.
+	 */
+	UserRecordIterator(Iterator<KinesisClientRecord> sources, RecordDecompression decompression,
+			boolean zeroCopy, HashKeyRange hashKeyRange, Predicate<String> partitionKeyFilter,
+			Projection projection) {
+		this.sources = sources;
+		this.decompression = decompression;
+		this.zeroCopy = zeroCopy;
+		this.hashKeyRange = hashKeyRange;
+		this.partitionKeyFilter = partitionKeyFilter;
+		this.projection = projection;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (this.next == null) {
+			if (this.decoder != null && this.decoder.next()) {
+				// skip unwanted user records before their data is read
+				if ((this.hashKeyRange == null || this.decoder.isInRange(this.hashKeyRange))
+						&& (this.partitionKeyFilter == null
+								|| this.decoder.isPartitionKeyAccepted(this.partitionKeyFilter))) {
+					this.next = userRecord();
+				}
+			} else if (this.sources.hasNext()) {
+				this.source = this.sources.next();
+				ByteBuffer expanded = this.decompression.expandAggregatedRecord(this.source.data());
+				this.decoder = AggregatedRecordDecoder.open(expanded == null ? this.source.data() : expanded);
+				if (this.decoder == null && (this.partitionKeyFilter == null
+						|| this.partitionKeyFilter.test(this.source.partitionKey()))) {
+					this.next = nonAggregatedRecord();
+				}
+			} else {
+				this.source = null;
+				this.decoder = null;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public KinesisClientRecord next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		KinesisClientRecord record = this.next;
+		this.next = null;
+		return record;
+	}
+
+	private KinesisClientRecord userRecord() {
+		String partitionKey = this.decoder.getPartitionKey();
+		String explicitHashKey = this.decoder.getExplicitHashKey();
+		switch (this.projection) {
+		case KEYS:
+			return KinesisClientRecord.builder().data(Projection.NO_DATA).partitionKey(partitionKey)
+					.explicitHashKey(explicitHashKey).build();
+		case KEYS_AND_METADATA:
+			return this.source.toBuilder().data(Projection.NO_DATA).partitionKey(partitionKey)
+					.explicitHashKey(explicitHashKey).subSequenceNumber(this.decoder.getSubSequenceNumber())
+					.aggregated(true).build();
+		default:
+			ByteBuffer data = this.zeroCopy ? this.decoder.sliceData() : this.decoder.copyData();
+			ByteBuffer expanded = this.decompression.expandUserRecord(data);
+			return this.source.toBuilder().data(expanded == null ? data : expanded).partitionKey(partitionKey)
+					.explicitHashKey(explicitHashKey).subSequenceNumber(this.decoder.getSubSequenceNumber())
+					.aggregated(true).build();
+		}
+	}
+
+	private KinesisClientRecord nonAggregatedRecord() {
+		switch (this.projection) {
+		case KEYS:
+			return KinesisClientRecord.builder().data(Projection.NO_DATA).partitionKey(this.source.partitionKey())
+					.build();
+		case KEYS_AND_METADATA:
+			return this.source.toBuilder().data(Projection.NO_DATA).build();
+		default:
+			ByteBuffer expanded = this.decompression.expandUserRecord(this.source.data());
+			return expanded == null ? this.source : this.source.toBuilder().data(expanded).build();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Kinesis Aggregation/Deaggregation Libraries for Java
+ *
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.amazonaws.kinesis.deagg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives deaggregated user records as primitive arguments rather than as
+ * objects, for consumers that parse data straight out of a buffer. Used with
+ * {@link RecordDeaggregator#deaggregate(java.util.List, UserRecordSink)}.
+ */
+@FunctionalInterface
+public interface UserRecordSink {
+	/**
+	 * Receive a user record. The buffer is shared by every user record of the
+	 * same Kinesis record, so it must only be read with absolute gets, and
+	 * neither the buffer nor the context may be used after the call returns.
+	 * 
+	 * @param context              The Kinesis record holding the user record
+	 *                             and its key tables.
+	 * @param partitionKeyIndex    The user record's entry in the partition key
+	 *                             table.
+	 * @param explicitHashKeyIndex The user record's entry in the explicit hash
+	 *                             key table, or -1 if it doesn't have one.
+	 * @param buffer               The buffer holding the user record's data.
+	 * @param offset               The position of the data in the buffer.
+	 * @param length               The length of the data.
+	 * @param subSequenceNumber    The position of the user record in its
+	 *                             aggregated record.
+	 * @throws Exception If the user record can't be processed, which stops
+	 *                   the deaggregation.
+	 */
+	void accept(DeaggregationContext context, int partitionKeyIndex, int explicitHashKeyIndex, ByteBuffer buffer,
+			int offset, int length, long subSequenceNumber) throws Exception;
+}
@@ -1,12 +1,15 @@
 package com.amazonaws.kinesis.deagg.util;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
 import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
 
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.model.EncryptionType;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
 
 public class DeaggregationUtils {
 	public static software.amazon.awssdk.services.kinesis.model.Record convertOne(KinesisEventRecord record) {
@@ -19,6 +22,29 @@ public class DeaggregationUtils {
 		return out;
 	}
 
+	/**
+	 * Convert a Kinesis event record from AWS Lambda straight into a
+	 * KinesisClientRecord, without building an intermediate SDK Record or
+	 * copying its data. The KinesisClientRecord shares a read-only view of the
+	 * event record's data.
+	 * 
+	 * @param record The Kinesis event record provided by AWS Lambda
+	 * @return The equivalent KinesisClientRecord
+	 */
+	public static KinesisClientRecord convertToClientRecord(KinesisEventRecord record) {
+		KinesisEvent.Record r = record.getKinesis();
+		Date arrival = r.getApproximateArrivalTimestamp();
+		KinesisClientRecord.KinesisClientRecordBuilder builder = KinesisClientRecord.builder()
+				.partitionKey(r.getPartitionKey())
+				.approximateArrivalTimestamp(arrival == null ? null : arrival.toInstant())
+				.sequenceNumber(r.getSequenceNumber()).data(r.getData().asReadOnlyBuffer());
+		// records from unencrypted streams may have no encryption type
+		if (r.getEncryptionType() != null) {
+			builder.encryptionType(EncryptionType.fromValue(r.getEncryptionType()));
+		}
+		return builder.build();
+	}
+
 	public static List<software.amazon.awssdk.services.kinesis.model.Record> convertToKinesis(
 			List<KinesisEventRecord> inputRecords) {
 		List<software.amazon.awssdk.services.kinesis.model.Record> response = new ArrayList<>();
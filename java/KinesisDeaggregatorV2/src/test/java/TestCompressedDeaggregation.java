@@ -0,0 +1,403 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.kinesis.agg.RecordAggregator;
+import com.amazonaws.kinesis.deagg.RecordDeaggregator;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * Builds the frames written by a compressing aggregator by hand, as the
+ * aggregator this module tests against predates compression. The golden
+ * vectors under compressed/ in the test resources were written by AggRecord
+ * itself with each built-in codec and scope, so that its encoders and the
+ * decoders here can't drift apart. The aggregated-record vectors hold user
+ * records 0 to 1492 and the user-record vectors user records 0 to 19, each
+ * with partition key "pk" + (i % 7), the explicit hash key
+ * 12345678901234567890 when i is a multiple of 5, and data(i) when i is even or
+ * smallData(i), which doesn't compress, when it is odd in the user-record
+ * vectors.
+ */
+public class TestCompressedDeaggregation {
+	private static final byte[] COMPRESSED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc3 };
+	private static final byte[] COMPRESSED_USER_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc4 };
+	private static final int DIGEST_LENGTH = 16;
+	private static final int AGGREGATED_VECTOR_RECORDS = 1493;
+	private static final int USER_RECORD_VECTOR_RECORDS = 20;
+	private static final String VECTOR_EXPLICIT_HASH_KEY = "12345678901234567890";
+
+	private final RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+
+	@Before
+	public void enableDecompression() {
+		this.deaggregator.setDecompression(true);
+	}
+
+	private static byte[] data(int i) {
+		StringBuilder sb = new StringBuilder();
+		for (int j = 0; j < 50; j++) {
+			sb.append("user record ").append(i).append(' ');
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] smallData(int i) {
+		return ("r" + i).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static Record vector(String name) throws Exception {
+		byte[] data = Files.readAllBytes(
+				Paths.get(TestCompressedDeaggregation.class.getResource("/compressed/" + name + ".bin").toURI()));
+		return Record.builder().partitionKey("pk").sequenceNumber("1").data(SdkBytes.fromByteArray(data)).build();
+	}
+
+	private static void verifyVector(List<KinesisClientRecord> userRecords, int count, boolean smallOddRecords) {
+		assertEquals("User Record Count Correct", count, userRecords.size());
+		for (int i = 0; i < count; i++) {
+			KinesisClientRecord userRecord = userRecords.get(i);
+			assertEquals("pk" + (i % 7), userRecord.partitionKey());
+			if (i % 5 == 0) {
+				assertEquals(VECTOR_EXPLICIT_HASH_KEY, userRecord.explicitHashKey());
+			}
+			byte[] expected = smallOddRecords && i % 2 == 1 ? smallData(i) : data(i);
+			assertArrayEquals("Data Correct", expected, bytes(userRecord.data()));
+		}
+	}
+
+	private static byte[] deflate(byte[] input, int offset, int length) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(input, offset, length);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	private static byte[] gzip(byte[] input, int offset, int length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(input, offset, length);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/* frame an aggregated record as one compressed segment */
+	private static Record compressedRecord(byte[] aggregated, int codecId, byte[] segment) {
+		int messageLength = aggregated.length - COMPRESSED_RECORD_MAGIC.length - DIGEST_LENGTH;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(COMPRESSED_RECORD_MAGIC, 0, COMPRESSED_RECORD_MAGIC.length);
+		out.write(codecId);
+		writeVarint(out, messageLength);
+		writeVarint(out, segment.length);
+		out.write(segment, 0, segment.length);
+		out.write(aggregated, aggregated.length - DIGEST_LENGTH, DIGEST_LENGTH);
+		return Record.builder().partitionKey("pk").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(out.toByteArray())).build();
+	}
+
+	private static byte[] compressedUserRecord(int codecId, byte[] data, byte[] payload) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(COMPRESSED_USER_RECORD_MAGIC, 0, COMPRESSED_USER_RECORD_MAGIC.length);
+		out.write(codecId);
+		writeVarint(out, data.length);
+		out.write(payload, 0, payload.length);
+		return out.toByteArray();
+	}
+
+	private static byte[] aggregate(int count) throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		for (int i = 0; i < count; i++) {
+			aggregator.addUserRecord("pk" + i, data(i));
+		}
+		return aggregator.clearAndGet().toRecordBytes();
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static void verify(List<KinesisClientRecord> userRecords, int count) {
+		assertEquals("User Record Count Correct", count, userRecords.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals("pk" + i, userRecords.get(i).partitionKey());
+			assertArrayEquals("Data Correct", data(i), bytes(userRecords.get(i).data()));
+		}
+	}
+
+	@Test
+	public void testDeflatedAggregatedRecord() throws Exception {
+		byte[] aggregated = aggregate(20);
+		int length = aggregated.length - COMPRESSED_RECORD_MAGIC.length - DIGEST_LENGTH;
+		Record record = compressedRecord(aggregated, 2,
+				deflate(aggregated, COMPRESSED_RECORD_MAGIC.length, length));
+
+		verify(this.deaggregator.deaggregate(record), 20);
+	}
+
+	@Test
+	public void testGzippedAggregatedRecord() throws Exception {
+		byte[] aggregated = aggregate(20);
+		int length = aggregated.length - COMPRESSED_RECORD_MAGIC.length - DIGEST_LENGTH;
+		Record record = compressedRecord(aggregated, 1, gzip(aggregated, COMPRESSED_RECORD_MAGIC.length, length));
+
+		verify(this.deaggregator.deaggregate(record), 20);
+	}
+
+	@Test
+	public void testCorruptAggregatedRecord() throws Exception {
+		byte[] aggregated = aggregate(5);
+		int length = aggregated.length - COMPRESSED_RECORD_MAGIC.length - DIGEST_LENGTH;
+		byte[] segment = deflate(aggregated, COMPRESSED_RECORD_MAGIC.length, length);
+		aggregated[aggregated.length - 1] ^= 1;
+
+		try {
+			this.deaggregator.deaggregate(compressedRecord(aggregated, 2, segment));
+			fail("Expected the checksum to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCompressedUserRecords() throws Exception {
+		byte[] deflated = data(0);
+		byte[] stored = data(1);
+		RecordAggregator aggregator = new RecordAggregator();
+		aggregator.addUserRecord("pk0", compressedUserRecord(2, deflated, deflate(deflated, 0, deflated.length)));
+		aggregator.addUserRecord("pk1", compressedUserRecord(0, stored, stored));
+		Record record = Record.builder().partitionKey("pk").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(aggregator.clearAndGet().toRecordBytes())).build();
+
+		verify(this.deaggregator.deaggregate(record), 2);
+	}
+
+	@Test
+	public void testCompressedUserRecordsInSink() throws Exception {
+		byte[] deflated = data(0);
+		RecordAggregator aggregator = new RecordAggregator();
+		aggregator.addUserRecord("pk0", compressedUserRecord(2, deflated, deflate(deflated, 0, deflated.length)));
+		aggregator.addUserRecord("pk1", data(1));
+		Record record = Record.builder().partitionKey("pk").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(aggregator.clearAndGet().toRecordBytes())).build();
+
+		List<byte[]> data = new ArrayList<>();
+		this.deaggregator.deaggregate(Arrays.asList(record), (context, partitionKeyIndex, explicitHashKeyIndex,
+				buffer, offset, length, subSequenceNumber) -> {
+			ByteBuffer region = buffer.duplicate();
+			region.position(offset);
+			region.limit(offset + length);
+			data.add(bytes(region));
+		});
+		assertEquals(2, data.size());
+		assertArrayEquals(data(0), data.get(0));
+		assertArrayEquals(data(1), data.get(1));
+	}
+
+	@Test
+	public void testCustomDecompressor() throws Exception {
+		// a codec that stores the data reversed
+		RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+		deaggregator.setDecompression(true);
+		deaggregator.registerDecompressor(100, (src, offset, length, uncompressedLength) -> {
+			byte[] out = new byte[length];
+			for (int i = 0; i < length; i++) {
+				out[i] = src[offset + length - 1 - i];
+			}
+			return out;
+		});
+		byte[] data = data(0);
+		byte[] reversed = new byte[data.length];
+		for (int i = 0; i < data.length; i++) {
+			reversed[i] = data[data.length - 1 - i];
+		}
+		Record record = Record.builder().partitionKey("pk0").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(compressedUserRecord(100, data, reversed))).build();
+
+		verify(deaggregator.deaggregate(record), 1);
+		try {
+			this.deaggregator.deaggregate(record);
+			fail("Expected an unknown codec to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCustomDecompressorLengthIsChecked() throws Exception {
+		// a codec that drops the last byte
+		RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+		deaggregator.setDecompression(true);
+		deaggregator.registerDecompressor(100,
+				(src, offset, length, uncompressedLength) -> Arrays.copyOfRange(src, offset, offset + length - 1));
+		byte[] data = data(0);
+		Record record = Record.builder().partitionKey("pk0").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(compressedUserRecord(100, data, data))).build();
+
+		try {
+			deaggregator.deaggregate(record);
+			fail("Expected the short data to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRunawayLz4Lengths() throws Exception {
+		// a literal run long enough to overflow an int if it were summed blindly
+		byte[] payload = new byte[(Integer.MAX_VALUE / 255) + 3];
+		Arrays.fill(payload, (byte) 0xFF);
+		payload[0] = (byte) 0xF0;
+		payload[payload.length - 1] = 0;
+		Record record = Record.builder().partitionKey("pk0").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(compressedUserRecord(3, new byte[1000], payload))).build();
+
+		try {
+			this.deaggregator.deaggregate(record);
+			fail("Expected the literal length to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUncompressedRecordsAreUnchanged() throws Exception {
+		byte[] data = Arrays.copyOf(COMPRESSED_RECORD_MAGIC, 3);
+		Record record = Record.builder().partitionKey("pk").sequenceNumber("1").data(SdkBytes.fromByteArray(data))
+				.build();
+
+		List<KinesisClientRecord> userRecords = this.deaggregator.deaggregate(record);
+		assertEquals(1, userRecords.size());
+		assertArrayEquals(data, bytes(userRecords.get(0).data()));
+	}
+
+	@Test
+	public void testDecompressionIsOptIn() throws Exception {
+		byte[] data = data(0);
+		Record record = Record.builder().partitionKey("pk0").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(compressedUserRecord(0, data, data))).build();
+
+		List<KinesisClientRecord> userRecords = new RecordDeaggregator<Record>().deaggregate(record);
+		assertEquals(1, userRecords.size());
+		assertArrayEquals(record.data().asByteArray(), bytes(userRecords.get(0).data()));
+	}
+
+	@Test
+	public void testOversizedUserRecord() throws Exception {
+		// declares 1GB of data from a handful of bytes
+		byte[] payload = deflate(data(0), 0, 10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(COMPRESSED_USER_RECORD_MAGIC, 0, COMPRESSED_USER_RECORD_MAGIC.length);
+		out.write(2);
+		writeVarint(out, 1 << 30);
+		out.write(payload, 0, payload.length);
+		Record record = Record.builder().partitionKey("pk0").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(out.toByteArray())).build();
+
+		try {
+			this.deaggregator.deaggregate(record);
+			fail("Expected the declared length to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testImplausibleCompressionRatio() throws Exception {
+		// 1MB is under the size limit, but not from 10 compressed bytes
+		byte[] payload = deflate(data(0), 0, 10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(COMPRESSED_USER_RECORD_MAGIC, 0, COMPRESSED_USER_RECORD_MAGIC.length);
+		out.write(2);
+		writeVarint(out, 1024 * 1024);
+		out.write(payload, 0, payload.length);
+		Record record = Record.builder().partitionKey("pk0").sequenceNumber("1")
+				.data(SdkBytes.fromByteArray(out.toByteArray())).build();
+
+		try {
+			this.deaggregator.deaggregate(record);
+			fail("Expected the compression ratio to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMaxUncompressedBytes() throws Exception {
+		Record record = vector("aggregated-record-lz4");
+		this.deaggregator.setMaxUncompressedBytes(1024 * 1024);
+
+		try {
+			this.deaggregator.deaggregate(record);
+			fail("Expected the size limit to be enforced");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testGzipAggregatedRecordVector() throws Exception {
+		verifyVector(this.deaggregator.deaggregate(vector("aggregated-record-gzip")), AGGREGATED_VECTOR_RECORDS,
+				false);
+	}
+
+	@Test
+	public void testDeflateAggregatedRecordVector() throws Exception {
+		verifyVector(this.deaggregator.deaggregate(vector("aggregated-record-deflate")), AGGREGATED_VECTOR_RECORDS,
+				false);
+	}
+
+	@Test
+	public void testLz4AggregatedRecordVector() throws Exception {
+		verifyVector(this.deaggregator.deaggregate(vector("aggregated-record-lz4")), AGGREGATED_VECTOR_RECORDS,
+				false);
+	}
+
+	@Test
+	public void testGzipUserRecordVector() throws Exception {
+		verifyVector(this.deaggregator.deaggregate(vector("user-record-gzip")), USER_RECORD_VECTOR_RECORDS, true);
+	}
+
+	@Test
+	public void testDeflateUserRecordVector() throws Exception {
+		verifyVector(this.deaggregator.deaggregate(vector("user-record-deflate")), USER_RECORD_VECTOR_RECORDS, true);
+	}
+
+	@Test
+	public void testLz4UserRecordVector() throws Exception {
+		verifyVector(this.deaggregator.deaggregate(vector("user-record-lz4")), USER_RECORD_VECTOR_RECORDS, true);
+	}
+}
@@ -1,5 +1,6 @@
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
@@ -21,9 +22,11 @@ import com.amazonaws.kinesis.agg.AggRecord;
 import com.amazonaws.kinesis.agg.RecordAggregator;
 import com.amazonaws.kinesis.deagg.RecordDeaggregator;
 import com.amazonaws.kinesis.deagg.RecordDeaggregator.KinesisUserRecordProcessor;
+import com.amazonaws.kinesis.deagg.util.DeaggregationUtils;
 import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
 import com.amazonaws.services.lambda.runtime.events.KinesisEvent.KinesisEventRecord;
 
+import software.amazon.awssdk.services.kinesis.model.Record;
 import software.amazon.kinesis.retrieval.KinesisClientRecord;
 
 public class TestLambdaDeaggregation {
@@ -152,6 +155,43 @@ public class TestLambdaDeaggregation {
 		verifyOneToOneMapping(userRecords);
 	}
 
+	@Test
+	public void testMatchesSdkRecords() throws Exception {
+		// the direct conversion of event records matches going through an SDK record
+		KinesisEvent.Record r = new KinesisEvent.Record();
+		r.setPartitionKey(aggregated.getPartitionKey());
+		r.setSequenceNumber("1");
+		r.setEncryptionType("KMS");
+		r.setApproximateArrivalTimestamp(new Date(System.currentTimeMillis()));
+		r.setData(ByteBuffer.wrap(aggregated.toRecordBytes()));
+		KinesisEventRecord ker = new KinesisEventRecord();
+		ker.setKinesis(r);
+		List<KinesisEventRecord> input = new ArrayList<>(recordList);
+		input.add(ker);
+
+		List<KinesisClientRecord> expected = new RecordDeaggregator<Record>()
+				.deaggregate(DeaggregationUtils.convertToKinesis(input));
+		List<KinesisClientRecord> userRecords = deaggregator.deaggregate(input);
+
+		assertEquals("Deaggregated Records Match", expected, userRecords);
+		assertEquals("Event Data Unchanged", 0, r.getData().position());
+	}
+
+	@Test
+	public void testNullEncryptionType() throws Exception {
+		KinesisEvent.Record r = new KinesisEvent.Record();
+		r.setPartitionKey(aggregated.getPartitionKey());
+		r.setSequenceNumber("1");
+		r.setApproximateArrivalTimestamp(new Date(System.currentTimeMillis()));
+		r.setData(ByteBuffer.wrap(aggregated.toRecordBytes()));
+		KinesisEventRecord ker = new KinesisEventRecord();
+		ker.setKinesis(r);
+
+		assertNull("No Encryption Type", DeaggregationUtils.convertToClientRecord(ker).encryptionType());
+		List<KinesisClientRecord> userRecords = deaggregator.deaggregate(Arrays.asList(ker));
+		assertEquals("Deaggregated Count Matches", aggregated.getNumUserRecords(), userRecords.size());
+	}
+
 	@Test
 	public void testEmpty() throws Exception {
 		// invoke deaggregation on the static records, returning a List of UserRecord
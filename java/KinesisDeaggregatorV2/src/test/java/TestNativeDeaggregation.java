@@ -0,0 +1,320 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.amazonaws.kinesis.agg.RecordAggregator;
+import com.amazonaws.kinesis.deagg.HashKeyRange;
+import com.amazonaws.kinesis.deagg.RecordDeaggregator;
+import com.google.protobuf.ByteString;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.kinesis.retrieval.AggregatorUtil;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.kpl.Messages;
+
+/**
+ * Checks the built-in decoder against the KCL's AggregatorUtil.
+ */
+public class TestNativeDeaggregation {
+	private static final byte[] AGGREGATED_RECORD_MAGIC = new byte[] { (byte) 0xf3, (byte) 0x89, (byte) 0x9a,
+			(byte) 0xc2 };
+
+	private final RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+
+	private static Record record(String sequenceNumber, byte[] data) {
+		return Record.builder().partitionKey("pk").sequenceNumber(sequenceNumber)
+				.approximateArrivalTimestamp(Instant.ofEpochMilli(1_600_000_000_000L))
+				.data(SdkBytes.fromByteArray(data)).build();
+	}
+
+	private static byte[] aggregate(int count) throws Exception {
+		RecordAggregator aggregator = new RecordAggregator();
+		for (int i = 0; i < count; i++) {
+			// reuse keys, and give every third user record an explicit hash key
+			if (i % 3 == 0) {
+				aggregator.addUserRecord("pk" + i % 7, String.valueOf(i % 5), ("data " + i).getBytes());
+			} else {
+				aggregator.addUserRecord("pk" + i % 7, ("data " + i).getBytes());
+			}
+		}
+		return aggregator.clearAndGet().toRecordBytes();
+	}
+
+	private static byte[] frame(byte[] message) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(AGGREGATED_RECORD_MAGIC);
+		out.write(message);
+		out.write(MessageDigest.getInstance("MD5").digest(message));
+		return out.toByteArray();
+	}
+
+	private static List<KinesisClientRecord> kcl(List<Record> records) {
+		List<KinesisClientRecord> clientRecords = new ArrayList<>();
+		for (Record record : records) {
+			clientRecords.add(KinesisClientRecord.fromRecord(record));
+		}
+		return new AggregatorUtil().deaggregate(clientRecords);
+	}
+
+	private void assertMatchesKcl(List<Record> records) throws Exception {
+		List<KinesisClientRecord> expected = kcl(records);
+		List<KinesisClientRecord> actual = this.deaggregator.deaggregate(records);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testMatchesKcl() throws Exception {
+		assertMatchesKcl(Arrays.asList(record("1", aggregate(100)), record("2", "plain".getBytes()),
+				record("3", aggregate(1)), record("4", new byte[0])));
+	}
+
+	@Test
+	public void testTablesAfterRecords() throws Exception {
+		// the tables may follow the records on the wire
+		Messages.AggregatedRecord.Builder tables = Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+				.addPartitionKeyTable("b").addExplicitHashKeyTable("123");
+		Messages.AggregatedRecord.Builder records = Messages.AggregatedRecord.newBuilder()
+				.addRecords(Messages.Record.newBuilder().setPartitionKeyIndex(1).setData(ByteString.copyFromUtf8("x")))
+				.addRecords(Messages.Record.newBuilder().setPartitionKeyIndex(0).setExplicitHashKeyIndex(0)
+						.setData(ByteString.copyFromUtf8("y")));
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		records.build().writeTo(message);
+		tables.build().writeTo(message);
+
+		List<Record> input = Arrays.asList(record("1", frame(message.toByteArray())));
+		assertMatchesKcl(input);
+		assertEquals(2, this.deaggregator.deaggregate(input).size());
+	}
+
+	@Test
+	public void testInvalidRecordsArePassedOn() throws Exception {
+		byte[] badChecksum = aggregate(10);
+		badChecksum[badChecksum.length - 1] ^= 1;
+		byte[] truncated = frame(Arrays.copyOf(Arrays.copyOfRange(aggregate(10), 4, 40), 36));
+		byte[] missingData = frame(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+				.addRecords(Messages.Record.newBuilder().setPartitionKeyIndex(0).buildPartial()).buildPartial()
+				.toByteArray());
+
+		List<Record> input = Arrays.asList(record("1", badChecksum), record("2", truncated),
+				record("3", missingData));
+		assertMatchesKcl(input);
+		assertEquals(3, this.deaggregator.deaggregate(input).size());
+	}
+
+	@Test
+	public void testMissingKey() throws Exception {
+		byte[] data = frame(Messages.AggregatedRecord.newBuilder().addPartitionKeyTable("a")
+				.addRecords(Messages.Record.newBuilder().setPartitionKeyIndex(1).setData(ByteString.EMPTY)).build()
+				.toByteArray());
+		try {
+			this.deaggregator.deaggregate(record("1", data));
+			fail("Expected a missing partition key to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testIteratorIsLazy() throws Exception {
+		byte[] bad = frame(Messages.AggregatedRecord.newBuilder()
+				.addRecords(Messages.Record.newBuilder().setPartitionKeyIndex(0).setData(ByteString.EMPTY)).build()
+				.toByteArray());
+		Iterator<KinesisClientRecord> iterator = this.deaggregator
+				.iterator(Arrays.asList(record("1", aggregate(3)), record("2", bad)));
+
+		// the user records of the first record are available before the second is
+		// decoded
+		for (int i = 0; i < 3; i++) {
+			assertTrue(iterator.hasNext());
+			KinesisClientRecord userRecord = iterator.next();
+			assertEquals(i, userRecord.subSequenceNumber());
+			assertEquals("1", userRecord.sequenceNumber());
+		}
+		try {
+			iterator.hasNext();
+			fail("Expected the second record to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testStreamIsLazy() throws Exception {
+		AtomicInteger pulled = new AtomicInteger();
+		AtomicBoolean closed = new AtomicBoolean();
+		Stream<Record> input = Stream
+				.of(record("1", aggregate(3)), record("2", aggregate(3)), record("3", "x".getBytes()))
+				.peek(record -> pulled.incrementAndGet()).onClose(() -> closed.set(true));
+
+		try (Stream<KinesisClientRecord> userRecords = this.deaggregator.stream(input)) {
+			List<KinesisClientRecord> firstTwo = userRecords.limit(2).collect(Collectors.toList());
+			assertEquals(2, firstTwo.size());
+			assertEquals("1", firstTwo.get(1).sequenceNumber());
+		}
+		assertEquals(1, pulled.get());
+		assertTrue(closed.get());
+
+		List<Record> records = Arrays.asList(record("1", aggregate(3)), record("2", "x".getBytes()));
+		assertEquals(kcl(records), this.deaggregator.stream(records.stream()).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testParallelPreservesOrder() throws Exception {
+		List<Record> records = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			records.add(record(String.valueOf(i), i % 5 == 0 ? ("plain " + i).getBytes() : aggregate(i % 20 + 1)));
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			assertEquals(kcl(records), this.deaggregator.deaggregate(records, pool));
+			assertEquals(kcl(records.subList(0, 2)), this.deaggregator.deaggregate(records.subList(0, 2), pool));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testHashKeyRange() throws Exception {
+		// half of the hash key space, so that some partition keys hash into it
+		HashKeyRange range = new HashKeyRange(BigInteger.ZERO, BigInteger.ONE.shiftLeft(127));
+		// the aggregator gives every user record an explicit hash key, so add some
+		// that only have partition keys
+		Messages.AggregatedRecord.Builder withoutExplicitHashKeys = Messages.AggregatedRecord.newBuilder();
+		for (int i = 0; i < 20; i++) {
+			withoutExplicitHashKeys.addPartitionKeyTable("key " + i).addRecords(
+					Messages.Record.newBuilder().setPartitionKeyIndex(i).setData(ByteString.copyFromUtf8("x")));
+		}
+		List<Record> records = Arrays.asList(record("1", aggregate(100)), record("2", "plain".getBytes()),
+				record("3", frame(withoutExplicitHashKeys.build().toByteArray())));
+
+		// unlike the KCL, which drops the whole aggregated record if any of its
+		// user records is outside the range, only those user records are skipped
+		List<KinesisClientRecord> expected = new ArrayList<>();
+		for (KinesisClientRecord userRecord : kcl(records)) {
+			if (!userRecord.aggregated() || range.contains(hashKey(userRecord))) {
+				expected.add(userRecord);
+			}
+		}
+
+		RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+		deaggregator.setHashKeyRange(range);
+		List<KinesisClientRecord> userRecords = deaggregator.deaggregate(records);
+		assertEquals(expected, userRecords);
+		assertTrue(userRecords.size() > 1 && userRecords.size() < 121);
+		assertTrue(userRecords.stream().anyMatch(r -> r.sequenceNumber().equals("3")));
+	}
+
+	private static BigInteger hashKey(KinesisClientRecord userRecord) throws Exception {
+		if (userRecord.explicitHashKey() != null) {
+			return new BigInteger(userRecord.explicitHashKey());
+		}
+		return new BigInteger(1, MessageDigest.getInstance("MD5").digest(userRecord.partitionKey().getBytes("UTF-8")));
+	}
+
+	@Test
+	public void testPartitionKeyFilter() throws Exception {
+		List<Record> records = Arrays.asList(record("1", aggregate(100)), record("2", "plain".getBytes()),
+				record("3", aggregate(50)));
+		List<KinesisClientRecord> expected = kcl(records).stream()
+				.filter(r -> r.partitionKey().equals("pk1") || r.partitionKey().equals("pk"))
+				.collect(Collectors.toList());
+
+		// the filter is called once per partition key of each aggregated record
+		AtomicInteger calls = new AtomicInteger();
+		RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+		deaggregator.setPartitionKeyFilter(key -> {
+			calls.incrementAndGet();
+			return key.equals("pk1") || key.equals("pk");
+		});
+		assertEquals(expected, deaggregator.deaggregate(records));
+		assertEquals(7 + 1 + 7, calls.get());
+	}
+
+	@Test
+	public void testProjection() throws Exception {
+		List<Record> records = Arrays.asList(record("1", aggregate(100)), record("2", "plain".getBytes()));
+		List<KinesisClientRecord> full = kcl(records);
+
+		RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+		deaggregator.setProjection(RecordDeaggregator.Projection.KEYS_AND_METADATA);
+		List<KinesisClientRecord> withMetadata = deaggregator.deaggregate(records);
+		deaggregator.setProjection(RecordDeaggregator.Projection.KEYS);
+		List<KinesisClientRecord> keys = deaggregator.deaggregate(records);
+
+		assertEquals(full.size(), withMetadata.size());
+		assertEquals(full.size(), keys.size());
+		for (int i = 0; i < full.size(); i++) {
+			assertEquals(full.get(i).toBuilder().data(withMetadata.get(i).data()).build(), withMetadata.get(i));
+			assertEquals(0, withMetadata.get(i).data().remaining());
+			assertEquals(full.get(i).partitionKey(), keys.get(i).partitionKey());
+			assertEquals(full.get(i).explicitHashKey(), keys.get(i).explicitHashKey());
+			assertEquals(null, keys.get(i).sequenceNumber());
+			assertEquals(0, keys.get(i).data().remaining());
+		}
+	}
+
+	@Test
+	public void testSink() throws Exception {
+		List<Record> records = Arrays.asList(record("1", aggregate(100)), record("2", "plain".getBytes()),
+				record("3", aggregate(50)));
+		RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+		deaggregator.setPartitionKeyFilter(key -> !key.equals("pk3"));
+		List<KinesisClientRecord> expected = deaggregator.deaggregate(records);
+
+		// rebuild the user records from what the sink is given
+		List<KinesisClientRecord> userRecords = new ArrayList<>();
+		deaggregator.deaggregate(records, (context, partitionKeyIndex, explicitHashKeyIndex, buffer, offset, length,
+				subSequenceNumber) -> {
+			byte[] data = new byte[length];
+			for (int i = 0; i < length; i++) {
+				data[i] = buffer.get(offset + i);
+			}
+			KinesisClientRecord.KinesisClientRecordBuilder userRecord = context.getRecord().toBuilder()
+					.data(ByteBuffer.wrap(data)).partitionKey(context.getPartitionKey(partitionKeyIndex));
+			if (context.isAggregated()) {
+				userRecord.explicitHashKey(context.getExplicitHashKey(explicitHashKeyIndex))
+						.subSequenceNumber(subSequenceNumber).aggregated(true);
+			}
+			userRecords.add(userRecord.build());
+		});
+		assertEquals(expected, userRecords);
+	}
+
+	@Test
+	public void testZeroCopy() throws Exception {
+		RecordDeaggregator<Record> deaggregator = new RecordDeaggregator<>();
+		deaggregator.setZeroCopy(true);
+		Record record = record("1", aggregate(20));
+
+		List<KinesisClientRecord> userRecords = deaggregator.deaggregate(record);
+		assertEquals(kcl(Arrays.asList(record)), userRecords);
+		for (KinesisClientRecord userRecord : userRecords) {
+			assertTrue(userRecord.data().isReadOnly());
+		}
+	}
+
+	@Test
+	public void testEmptyIterator() throws Exception {
+		assertFalse(this.deaggregator.iterator(new ArrayList<>()).hasNext());
+	}
+}